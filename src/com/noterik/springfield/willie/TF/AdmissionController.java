@@ -0,0 +1,278 @@
+package com.noterik.springfield.willie.TF;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.noterik.springfield.willie.WillieServer;
+import com.noterik.springfield.willie.queue.Job;
+import com.noterik.springfield.willie.tools.TFHelper;
+
+/**
+ * Decides whether this willie has room for another job, before it claims
+ * one.
+ *
+ * A remote job needs room in the temporary directory for its input and
+ * output, estimated at admissiondiskfactor (default 2) times the input size
+ * or admissiondefaultsize MB (default 100) when the size is unknown. The room
+ * is reserved from the moment a job is claimed until it is released, so jobs
+ * claimed together don't count on the same free space. A job is rejected
+ * when the space left would drop below admissionmindisk MB (default 1024),
+ * or when the available memory is below admissionminmemory MB (default 256).
+ * The available memory is MemAvailable of /proc/meminfo, which counts the
+ * page cache that can be dropped; without it the memory isn't checked.
+ * When the cpu usage is above admissionmaxcpu percent (default 90) or the
+ * available memory is below twice the minimum the willie is busy, it still
+ * takes jobs but the decision engines bid lower, or claim a job only after
+ * it was seen for admissionbusydelay milliseconds (default 3000), so other
+ * willies get them first.
+ *
+ * @copyright Copyright: Noterik B.V. 2012
+ * @package com.noterik.springfield.willie.TF
+ * @access private
+ *
+ */
+public class AdmissionController {
+	/** The AdmissionController's log4j Logger */
+	private static final Logger log = Logger.getLogger(AdmissionController.class);
+
+	/** Outcomes of a check */
+	public static final int ADMIT = 0;
+	public static final int BUSY = 1;
+	public static final int REJECT = 2;
+
+	/** Default room needed per byte of input */
+	private static final int DEFAULT_DISK_FACTOR = 2;
+
+	/** Default room needed when the input size is unknown (in MB) */
+	private static final int DEFAULT_SIZE = 100;
+
+	/** Default space to keep free in the temporary directory (in MB) */
+	private static final int DEFAULT_MIN_DISK = 1024;
+
+	/** Default memory to keep free (in MB) */
+	private static final int DEFAULT_MIN_MEMORY = 256;
+
+	/** Default cpu usage above which the willie is busy (percent) */
+	private static final int DEFAULT_MAX_CPU = 90;
+
+	/** Default time a busy willie leaves a job to the others (in milliseconds) */
+	private static final int DEFAULT_BUSY_DELAY = 3000;
+
+	/** Memory statistics of the system */
+	private static final String MEMINFO = "/proc/meminfo";
+
+	private static final long MB = 1024L * 1024L;
+
+	/** instance */
+	private static AdmissionController instance = new AdmissionController();
+
+	/** Reserved room in the temporary directory by job uri (in bytes) */
+	private ConcurrentHashMap<String, Long> reservations;
+
+	/** Total reserved room (in bytes) */
+	private AtomicLong reserved;
+
+	/** Number of jobs rejected */
+	private AtomicLong rejected;
+
+	/** Time a job was first seen while busy, by job uri */
+	private ConcurrentHashMap<String, Long> busySince;
+
+	/** Time of the last cleanup of busySince */
+	private volatile long lastCleanup = 0;
+
+	/**
+	 * Sole constructor
+	 */
+	private AdmissionController() {
+		reservations = new ConcurrentHashMap<String, Long>();
+		reserved = new AtomicLong();
+		rejected = new AtomicLong();
+		busySince = new ConcurrentHashMap<String, Long>();
+	}
+
+	/**
+	 * Return AdmissionController instance
+	 *
+	 * @return AdmissionController instance
+	 */
+	public static AdmissionController instance() {
+		return instance;
+	}
+
+	/**
+	 * Checks whether there is room for a job
+	 *
+	 * @param job
+	 * @return ADMIT, BUSY or REJECT
+	 */
+	public int check(Job job) {
+		WillieServer server = WillieServer.instance();
+
+		// the disk, without what was reserved for this job already
+		String tempPath = server.getConfiguration().getProperty("temporary-directory");
+		if (tempPath!=null && new File(tempPath).exists()) {
+			Long own = reservations.get(job.getUri());
+			long available = new File(tempPath).getUsableSpace() - reserved.get() + (own==null ? 0 : own.longValue());
+			long needed = getNeededSpace(job);
+			if (available - needed < server.getConfigurationInt("admissionmindisk", DEFAULT_MIN_DISK) * MB) {
+				return reject(job, "not enough room in "+tempPath+", "+available/MB+" MB available, "+needed/MB+" MB needed");
+			}
+		}
+
+		// the memory and cpu of the whole system, ffmpeg doesn't run in this jvm
+		long minMemory = server.getConfigurationInt("admissionminmemory", DEFAULT_MIN_MEMORY) * MB;
+		long availableMemory = getAvailableMemory();
+		if (availableMemory >= 0 && availableMemory < minMemory) {
+			return reject(job, "not enough memory, "+availableMemory/MB+" MB available");
+		}
+		double cpu = getCpuLoad();
+		if ((availableMemory >= 0 && availableMemory < 2 * minMemory) || cpu > server.getConfigurationInt("admissionmaxcpu", DEFAULT_MAX_CPU) / 100.0) {
+			log.debug("busy, "+(availableMemory >= 0 ? availableMemory/MB+" MB available memory, " : "")+"cpu at "+Math.round(cpu*100)+"%");
+			return BUSY;
+		}
+		return ADMIT;
+	}
+
+	/**
+	 * Checks whether a busy willie may claim a job, that is when the job was
+	 * left to the other willies long enough
+	 *
+	 * @param job
+	 * @return true if the job may be claimed
+	 */
+	public boolean isBusyDelayOver(Job job) {
+		long now = System.currentTimeMillis();
+		long delay = WillieServer.instance().getConfigurationInt("admissionbusydelay", DEFAULT_BUSY_DELAY);
+		if (now - lastCleanup > delay) {
+			// forget the jobs that were claimed elsewhere meanwhile
+			lastCleanup = now;
+			for(Iterator<Long> iter = busySince.values().iterator(); iter.hasNext(); ) {
+				if (now - iter.next() > 10 * delay) {
+					iter.remove();
+				}
+			}
+		}
+		Long previous = busySince.putIfAbsent(job.getUri(), now);
+		return previous!=null && now - previous.longValue() >= delay;
+	}
+
+	/**
+	 * Reserves the room for a claimed job
+	 *
+	 * @param job
+	 */
+	public void reserve(Job job) {
+		busySince.remove(job.getUri());
+		long needed = getNeededSpace(job);
+		Long previous = reservations.put(job.getUri(), needed);
+		reserved.addAndGet(needed - (previous==null ? 0 : previous.longValue()));
+	}
+
+	/**
+	 * Releases the room of a job
+	 *
+	 * @param jobUri	uri of the job
+	 */
+	public void release(String jobUri) {
+		Long previous = reservations.remove(jobUri);
+		if (previous!=null) {
+			reserved.addAndGet(-previous.longValue());
+		}
+	}
+
+	/**
+	 * @return room reserved in the temporary directory (in bytes)
+	 */
+	public long getReservedBytes() {
+		return reserved.get();
+	}
+
+	/**
+	 * @return number of jobs rejected
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	private int reject(Job job, String reason) {
+		rejected.incrementAndGet();
+		log.info("no room for job "+job.getUri()+": "+reason);
+		return REJECT;
+	}
+
+	/**
+	 * Returns the available memory of the system
+	 *
+	 * @return size in bytes, -1 if unknown
+	 */
+	private long getAvailableMemory() {
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new FileReader(MEMINFO));
+			String line;
+			while ((line = reader.readLine())!=null) {
+				// MemAvailable:    1234567 kB
+				if (line.startsWith("MemAvailable:")) {
+					String[] parts = line.substring(13).trim().split("\\s+");
+					return Long.parseLong(parts[0]) * 1024L;
+				}
+			}
+		} catch(IOException e) {
+			// not on linux
+		} catch(NumberFormatException e) {
+			log.debug("could not parse "+MEMINFO);
+		} finally {
+			if (reader!=null) {
+				try {
+					reader.close();
+				} catch(IOException e) {
+					// ignore
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the cpu usage of the whole system
+	 *
+	 * @return usage between 0 and 1, negative if unknown
+	 */
+	@SuppressWarnings("deprecation")
+	static double getCpuLoad() {
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if (os instanceof com.sun.management.OperatingSystemMXBean) {
+			// getCpuLoad replaces it, but only from java 14
+			return ((com.sun.management.OperatingSystemMXBean) os).getSystemCpuLoad();
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the room a job needs in the temporary directory
+	 *
+	 * @return size in bytes
+	 */
+	private long getNeededSpace(Job job) {
+		// local jobs are transcoded on the mount itself
+		if (TFHelper.isLocalJob(job)) {
+			return 0;
+		}
+		WillieServer server = WillieServer.instance();
+		long size = CostEstimator.getInputSize(job);
+		if (size <= 0) {
+			return server.getConfigurationInt("admissiondefaultsize", DEFAULT_SIZE) * MB;
+		}
+		return size * server.getConfigurationInt("admissiondiskfactor", DEFAULT_DISK_FACTOR);
+	}
+}
@@ -0,0 +1,115 @@
+package com.noterik.springfield.willie.TF;
+
+import com.noterik.springfield.willie.WillieServer;
+import com.noterik.springfield.willie.queue.Job;
+
+/**
+ * Estimates the time the steps of a job take on this willie, from the
+ * original properties of the job and the measured speeds:
+ * 
+ * - the transfer time of the input, from its size and the measured transfer
+ *   rate of the mount (transferrate in KB/s until measured, default 10240)
+ * - the encode time, from the duration of the input and the measured encode
+ *   speed of this willie (encodespeed times realtime until measured, default 10)
+ * 
+ * The original properties are only known once the job is resolved.
+ *
+ * @copyright Copyright: Noterik B.V. 2012
+ * @package com.noterik.springfield.willie.TF
+ * @access private
+ *
+ */
+public class CostEstimator {
+	/** Default transfer rate (in KB/s) */
+	private static final int DEFAULT_TRANSFER_RATE = 10240;
+	
+	/** Default encode speed (seconds of media per second) */
+	private static final int DEFAULT_ENCODE_SPEED = 10;
+	
+	/** Encode time when nothing is known about the input (in seconds) */
+	public static final double DEFAULT_ENCODE_TIME = 60.0;
+	
+	/**
+	 * Returns the time to download the input (in seconds)
+	 */
+	public static double getTransferTime(Job job) {
+		long size = getInputSize(job);
+		if (size <= 0) {
+			return 0.0;
+		}
+		String mount = job.getProperty("mount").split(",")[0];
+		double rate = TranscodeStatistics.instance().getTransferRate(mount);
+		if (rate <= 0) {
+			rate = getConfiguration("transferrate", DEFAULT_TRANSFER_RATE) * 1024.0;
+		}
+		return size / rate;
+	}
+	
+	/**
+	 * Returns the time to encode the input (in seconds)
+	 */
+	public static double getEncodeTime(Job job) {
+		double duration = TranscoderWorker.getMediaDuration(job);
+		if (duration <= 0) {
+			return getAverageEncodeTime();
+		}
+		double speed = TranscodeStatistics.instance().getEncodeSpeed();
+		if (speed <= 0) {
+			speed = getConfiguration("encodespeed", DEFAULT_ENCODE_SPEED);
+		}
+		return duration / speed;
+	}
+	
+	/**
+	 * Returns the time an average job takes to encode (in seconds), for jobs
+	 * nothing is known about
+	 */
+	public static double getAverageEncodeTime() {
+		long average = TranscodeStatistics.instance().getAverageDuration();
+		return average > 0 ? average / 1000.0 : DEFAULT_ENCODE_TIME;
+	}
+	
+	/**
+	 * Returns the size of the input (in bytes), from the file size or else
+	 * the duration and bitrate of the original
+	 */
+	public static long getInputSize(Job job) {
+		String filesize = getProperty(job, "filesize");
+		if (filesize!=null) {
+			try {
+				return Long.parseLong(filesize.trim());
+			} catch (NumberFormatException e) {
+				// try the bitrate
+			}
+		}
+		double duration = TranscoderWorker.getMediaDuration(job);
+		String bitrate = getProperty(job, "audiobitrate");
+		if (duration <= 0 || bitrate==null) {
+			return -1;
+		}
+		try {
+			double bps = Double.parseDouble(bitrate.trim());
+			// bitrates are given in kbit/s or bit/s
+			if (bps < 10000) {
+				bps = bps * 1000;
+			}
+			return (long) (duration * bps / 8);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+	
+	/**
+	 * Returns a property of the original, or of the job itself while it isn't
+	 * resolved, so jobs can be estimated without fetching their parent
+	 */
+	static String getProperty(Job job, String name) {
+		String value = job.getOriginalProperty(name);
+		return value!=null || job.isResolved() ? value : job.getProperty(name);
+	}
+	
+	private static int getConfiguration(String key, int defaultValue) {
+		WillieServer server = WillieServer.instance();
+		return server==null ? defaultValue : server.getConfigurationInt(key, defaultValue);
+	}
+}
@@ -0,0 +1,256 @@
+package com.noterik.springfield.willie.TF;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.noterik.springfield.willie.WillieServer;
+import com.noterik.springfield.willie.queue.Job;
+import com.noterik.springfield.willie.queue.QueueManager;
+import com.noterik.springfield.willie.queue.dist.WorkStealer;
+import com.noterik.springfield.willie.tools.TFHelper;
+
+/**
+ * Claims the next jobs while the workers are transcoding, and downloads
+ * their input to the temporary directory. Workers take these jobs first, so
+ * they don't have to wait for the download before they can transcode.
+ *
+ * The number of jobs claimed ahead is limited by the prefetchdepth (default
+ * 1, 0 disables prefetching) and the downloaded inputs by the
+ * prefetchdiskbudget (in MB, default 2048). The jobs to fill up the
+ * lookahead are claimed together in one round. The size of an input is
+ * taken from its original before the download, inputs that don't fit in
+ * the budget or whose size isn't known are downloaded by the worker.
+ *
+ * @copyright Copyright: Noterik B.V. 2012
+ * @package com.noterik.springfield.willie.TF
+ * @access private
+ *
+ */
+public class InputPrefetcher {
+	/** The InputPrefetcher's log4j logger */
+	private static final Logger log = Logger.getLogger(InputPrefetcher.class);
+
+	/** Default number of jobs claimed ahead */
+	private static final int DEFAULT_DEPTH = 1;
+
+	/** Default space the prefetched inputs may take (in MB) */
+	private static final int DEFAULT_DISK_BUDGET = 2048;
+
+	/** Time to wait for a running prefetch round on shutdown (in seconds) */
+	private static final int SHUTDOWN_TIMEOUT = 5;
+
+	/** Claimed jobs ready to be transcoded */
+	private LinkedBlockingQueue<Job> ready;
+
+	/** Size of the downloaded input of the prefetched jobs, by job uri */
+	private ConcurrentHashMap<String, Long> staged;
+
+	/** Total size of the downloaded inputs */
+	private AtomicLong stagedBytes;
+
+	/** Set while a prefetch round is running */
+	private AtomicBoolean prefetching;
+
+	/** Runs the prefetch rounds */
+	private ExecutorService executor;
+
+	private int depth;
+	private long diskBudget;
+
+	/**
+	 * Sole constructor
+	 */
+	public InputPrefetcher() {
+		depth = WillieServer.instance().getConfigurationInt("prefetchdepth", DEFAULT_DEPTH);
+		diskBudget = WillieServer.instance().getConfigurationInt("prefetchdiskbudget", DEFAULT_DISK_BUDGET) * 1024L * 1024L;
+		ready = new LinkedBlockingQueue<Job>();
+		staged = new ConcurrentHashMap<String, Long>();
+		stagedBytes = new AtomicLong();
+		prefetching = new AtomicBoolean(false);
+		executor = Executors.newSingleThreadExecutor();
+		log.info("prefetch depth: "+depth+", disk budget: "+diskBudget+" bytes");
+	}
+
+	/**
+	 * Returns the next prefetched job
+	 *
+	 * @return the job, null if there is none
+	 */
+	public Job next() {
+		Job job = ready.poll();
+		if (job!=null) {
+			WorkStealer.instance().withdraw(job);
+		}
+		return job;
+	}
+	
+	/**
+	 * Takes the prefetched jobs that read the same input as a job, so they
+	 * are transcoded together with it
+	 *
+	 * @param job
+	 * @return the prefetched siblings of the job
+	 */
+	public List<Job> takeSiblings(Job job) {
+		List<Job> siblings = new ArrayList<Job>();
+		String key = job.getSiblingKey();
+		if (key==null) {
+			return siblings;
+		}
+		for(Job other : ready) {
+			if (key.equals(other.getSiblingKey()) && ready.remove(other)) {
+				WorkStealer.instance().withdraw(other);
+				siblings.add(other);
+			}
+		}
+		return siblings;
+	}
+	
+	/**
+	 * Gives up a prefetched job that hasn't been started, so another willie
+	 * can take it.
+	 * 
+	 * @param job
+	 * @return true if the job was given up, false if a worker already took it
+	 */
+	public boolean yield(Job job) {
+		if (!ready.remove(job)) {
+			return false;
+		}
+		finished(job);
+		TFactory.discardStagedInput(job);
+		return true;
+	}
+
+	/**
+	 * Starts claiming and downloading the next jobs in the background, up
+	 * to the lookahead depth and disk budget.
+	 */
+	public void prefetch() {
+		if (depth<=0 || !prefetching.compareAndSet(false, true)) {
+			return;
+		}
+		executor.execute(new Runnable() {
+			public void run() {
+				try {
+					fill();
+				} catch(Exception e) {
+					log.error("Prefetching failed",e);
+				} finally {
+					prefetching.set(false);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Releases the disk budget of a transcoded job
+	 *
+	 * @param job
+	 */
+	public void finished(Job job) {
+		Long size = staged.remove(job.getUri());
+		if (size!=null) {
+			stagedBytes.addAndGet(-size);
+		}
+	}
+
+	/**
+	 * @return number of claimed jobs waiting for a worker
+	 */
+	public int size() {
+		return ready.size();
+	}
+
+	/**
+	 * @return space taken by the prefetched inputs (in bytes)
+	 */
+	public long getStagedBytes() {
+		return stagedBytes.get();
+	}
+
+	/**
+	 * Shutdown. The jobs that were claimed ahead are handed back, so other
+	 * willies can take them right away, and their inputs are removed.
+	 */
+	public void destroy() {
+		executor.shutdownNow();
+		try {
+			// a prefetch round may still be claiming
+			executor.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		QueueManager qm = WillieServer.instance().getQueueManager();
+		List<Job> jobs = new ArrayList<Job>();
+		ready.drainTo(jobs);
+		for(Job job : jobs) {
+			WorkStealer.instance().withdraw(job);
+			if (qm!=null) {
+				qm.handBack(job);
+			}
+			finished(job);
+			TFactory.deleteTempFiles(job.getId());
+		}
+		if (!jobs.isEmpty()) {
+			log.info("handed back "+jobs.size()+" jobs claimed ahead");
+		}
+	}
+
+	/**
+	 * Takes room in the disk budget before a download starts
+	 *
+	 * @param size	expected size of the input (in bytes)
+	 * @return false if the input doesn't fit
+	 */
+	private boolean reserve(long size) {
+		while (true) {
+			long current = stagedBytes.get();
+			if (current + size > diskBudget) {
+				return false;
+			}
+			if (stagedBytes.compareAndSet(current, current + size)) {
+				return true;
+			}
+		}
+	}
+
+	private void fill() {
+		QueueManager qm = WillieServer.instance().getQueueManager();
+		if (qm==null) {
+			return;
+		}
+
+		// claim the jobs to fill up the lookahead in one round
+		List<Job> jobs = qm.claimJobs(depth - ready.size());
+		for(Job job : jobs) {
+			long expected = TFHelper.isLocalJob(job) ? -1 : CostEstimator.getInputSize(job);
+			if (expected > 0 && reserve(expected)) {
+				log.debug("prefetching input of job "+job.getId());
+				long start = System.currentTimeMillis();
+				if (new TFactory().stageInput(job)) {
+					long size = new File(TFactory.getStagedInputFile(job)).length();
+					staged.put(job.getUri(), size);
+					stagedBytes.addAndGet(size-expected);
+					log.debug("prefetched "+size+" bytes for job "+job.getId()+" in "+(System.currentTimeMillis()-start)+" ms");
+				} else {
+					stagedBytes.addAndGet(-expected);
+				}
+			}
+			ready.add(job);
+			
+			// idle willies may take it over until a worker starts it
+			WorkStealer.instance().offer(job);
+		}
+	}
+}
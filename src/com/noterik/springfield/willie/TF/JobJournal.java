@@ -0,0 +1,390 @@
+package com.noterik.springfield.willie.TF;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Append-only journal of the jobs this willie works on, so a restart can
+ * continue where it left off instead of starting over.
+ *
+ * Every step of a job (claimed, downloaded, transcoded, uploaded to a mount,
+ * finalized) is appended as one line to a memory mapped file and forced to
+ * disk. A line is checksum,state,job uri,job id,detail separated by tabs,
+ * reading stops at the first line with a wrong checksum, so a line that was
+ * only half written is ignored. When the file is full it is rewritten with
+ * only the jobs that aren't finalized.
+ *
+ * @copyright Copyright: Noterik B.V. 2012
+ * @package com.noterik.springfield.willie.TF
+ * @access private
+ *
+ */
+public class JobJournal {
+	/** The JobJournal's log4j Logger */
+	private static final Logger log = Logger.getLogger(JobJournal.class);
+
+	/** States of a job */
+	public static final String CLAIMED = "claimed";
+	public static final String DOWNLOADED = "downloaded";
+	public static final String TRANSCODED = "transcoded";
+	public static final String UPLOADED = "uploaded";
+	public static final String FINALIZED = "finalized";
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** instance */
+	private static JobJournal instance = new JobJournal();
+
+	/** The journal file, null when not opened */
+	private File file;
+
+	private FileChannel channel;
+	private MappedByteBuffer buffer;
+
+	/** Jobs that aren't finalized by uri */
+	private Map<String, Entry> entries;
+
+	/** Jobs found unfinished at startup that weren't picked up yet */
+	private LinkedList<String> resumable;
+
+	/**
+	 * Sole constructor
+	 */
+	private JobJournal() {
+		entries = new LinkedHashMap<String, Entry>();
+		resumable = new LinkedList<String>();
+	}
+
+	/**
+	 * Return JobJournal instance
+	 *
+	 * @return JobJournal instance
+	 */
+	public static JobJournal instance() {
+		return instance;
+	}
+
+	/**
+	 * Opens the journal and reads the jobs that weren't finalized
+	 *
+	 * @param file	the journal file
+	 * @param size	minimal size of the journal (in bytes)
+	 * @throws IOException
+	 */
+	public synchronized void open(File file, int size) throws IOException {
+		close();
+		if (file.getParentFile()!=null) {
+			file.getParentFile().mkdirs();
+		}
+		map(file, size);
+		this.file = file;
+
+		entries.clear();
+		int end = read();
+		// clear what's left of a half written line
+		for(int i=end; i<buffer.capacity(); i++) {
+			buffer.put(i, (byte) 0);
+		}
+		buffer.position(end);
+
+		resumable.clear();
+		resumable.addAll(entries.keySet());
+		log.info("opened job journal "+file+", "+entries.size()+" unfinished jobs");
+	}
+
+	/**
+	 * Closes the journal
+	 */
+	public synchronized void close() {
+		if (channel!=null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				log.error("Could not close job journal",e);
+			}
+		}
+		channel = null;
+		buffer = null;
+		file = null;
+	}
+
+	/**
+	 * Records a step of a job
+	 *
+	 * @param uri		uri of the job
+	 * @param id		id of the job
+	 * @param state		the step
+	 * @param detail	detail of the step, like the mount uploaded to
+	 */
+	public synchronized void record(String uri, String id, String state, String detail) {
+		if (!apply(uri, id, state, detail)) {
+			return;
+		}
+		if (buffer==null) {
+			return;
+		}
+		try {
+			append(uri, id, state, detail);
+		} catch (IOException e) {
+			log.error("Could not write to job journal",e);
+		}
+	}
+
+	/**
+	 * Records that this willie is done with a job
+	 *
+	 * @param uri	uri of the job
+	 */
+	public synchronized void finish(String uri) {
+		if (entries.containsKey(uri)) {
+			record(uri, entries.get(uri).getJobId(), FINALIZED, "");
+		}
+		resumable.remove(uri);
+	}
+
+	/**
+	 * @param uri	uri of the job
+	 * @return a copy of the journaled state of a job, null if it isn't journaled
+	 */
+	public synchronized Entry getEntry(String uri) {
+		Entry entry = entries.get(uri);
+		return entry==null ? null : new Entry(entry);
+	}
+
+	/**
+	 * @return copies of the journaled jobs that aren't finalized
+	 */
+	public synchronized List<Entry> getUnfinished() {
+		List<Entry> result = new ArrayList<Entry>();
+		for(Entry entry : entries.values()) {
+			result.add(new Entry(entry));
+		}
+		return result;
+	}
+
+	/**
+	 * @param uri	uri of the job
+	 * @return true if the job was unfinished at startup and wasn't picked up yet
+	 */
+	public synchronized boolean isResumable(String uri) {
+		return resumable.contains(uri);
+	}
+
+	/**
+	 * Takes the next job that was unfinished at startup
+	 *
+	 * @return uri of the job, null if there are none left
+	 */
+	public synchronized String pollResumable() {
+		return resumable.poll();
+	}
+
+	/**
+	 * Rewrites the journal with only the jobs that aren't finalized
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void compact() throws IOException {
+		if (file==null) {
+			return;
+		}
+		File target = file;
+		int size = buffer.capacity();
+		int needed = 0;
+		List<String[]> records = new ArrayList<String[]>();
+		for(Entry entry : entries.values()) {
+			records.add(new String[] {entry.uri, entry.jobId, CLAIMED, ""});
+			if (entry.downloaded!=null) {
+				records.add(new String[] {entry.uri, entry.jobId, DOWNLOADED, entry.downloaded});
+			}
+			if (entry.output!=null) {
+				records.add(new String[] {entry.uri, entry.jobId, TRANSCODED, entry.output});
+			}
+			for(String mount : entry.uploaded) {
+				records.add(new String[] {entry.uri, entry.jobId, UPLOADED, mount});
+			}
+		}
+		for(String[] record : records) {
+			needed += encode(record[0], record[1], record[2], record[3]).length;
+		}
+		while (needed * 2 > size) {
+			size *= 2;
+		}
+
+		// write a new file next to the old one and swap them
+		File tmp = new File(target.getPath()+".tmp");
+		tmp.delete();
+		close();
+		map(tmp, size);
+		for(String[] record : records) {
+			buffer.put(encode(record[0], record[1], record[2], record[3]));
+		}
+		buffer.force();
+		channel.close();
+		if (!tmp.renameTo(target)) {
+			target.delete();
+			if (!tmp.renameTo(target)) {
+				throw new IOException("Could not replace job journal "+target);
+			}
+		}
+		int position = needed;
+		map(target, size);
+		buffer.position(position);
+		file = target;
+		log.debug("compacted job journal to "+entries.size()+" jobs");
+	}
+
+	private void append(String uri, String id, String state, String detail) throws IOException {
+		byte[] line = encode(uri, id, state, detail);
+		if (buffer.remaining() < line.length) {
+			compact();
+		}
+		buffer.put(line);
+		buffer.force();
+	}
+
+	private void map(File file, int size) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		channel = raf.getChannel();
+		long length = Math.max(size, channel.size());
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+	}
+
+	/**
+	 * Reads the records from the start of the buffer
+	 *
+	 * @return position after the last valid record
+	 */
+	private int read() {
+		int start = 0;
+		int capacity = buffer.capacity();
+		while (start < capacity && buffer.get(start)!=0) {
+			int end = start;
+			while (end < capacity && buffer.get(end)!='\n') {
+				end++;
+			}
+			if (end >= capacity) {
+				break;
+			}
+			byte[] bytes = new byte[end-start];
+			for(int i=0; i<bytes.length; i++) {
+				bytes[i] = buffer.get(start+i);
+			}
+			String[] fields = new String(bytes, UTF8).split("\t", -1);
+			if (fields.length!=5 || !fields[0].equals(checksum(fields[1], fields[2], fields[3], fields[4]))) {
+				log.warn("job journal ends with a broken record at "+start);
+				break;
+			}
+			apply(fields[2], fields[3], fields[1], fields[4]);
+			start = end+1;
+		}
+		return start;
+	}
+
+	/**
+	 * Applies a record to the entries
+	 *
+	 * @return true if the record changes something
+	 */
+	private boolean apply(String uri, String id, String state, String detail) {
+		Entry entry = entries.get(uri);
+		if (state.equals(FINALIZED)) {
+			return entries.remove(uri)!=null;
+		}
+		if (entry==null) {
+			entry = new Entry(uri, id);
+			entries.put(uri, entry);
+		} else if (state.equals(CLAIMED)) {
+			// claimed again, what was done before is still valid
+			return false;
+		}
+		if (state.equals(DOWNLOADED)) {
+			entry.downloaded = detail;
+		} else if (state.equals(TRANSCODED)) {
+			entry.output = detail;
+		} else if (state.equals(UPLOADED)) {
+			return entry.uploaded.add(detail);
+		}
+		return true;
+	}
+
+	private static byte[] encode(String uri, String id, String state, String detail) {
+		String line = checksum(state, uri, id, detail)+"\t"+state+"\t"+uri+"\t"+id+"\t"+detail+"\n";
+		return line.getBytes(UTF8);
+	}
+
+	private static String checksum(String state, String uri, String id, String detail) {
+		CRC32 crc = new CRC32();
+		crc.update((state+"\t"+uri+"\t"+id+"\t"+detail).getBytes(UTF8));
+		return Long.toHexString(crc.getValue());
+	}
+
+	/**
+	 * Journaled state of a job
+	 */
+	public static class Entry {
+		private String uri;
+		private String jobId;
+		private String downloaded;
+		private String output;
+		private Set<String> uploaded;
+
+		private Entry(String uri, String jobId) {
+			this.uri = uri;
+			this.jobId = jobId;
+			uploaded = new HashSet<String>();
+		}
+
+		private Entry(Entry other) {
+			uri = other.uri;
+			jobId = other.jobId;
+			downloaded = other.downloaded;
+			output = other.output;
+			uploaded = new HashSet<String>(other.uploaded);
+		}
+
+		public String getUri() {
+			return uri;
+		}
+
+		public String getJobId() {
+			return jobId;
+		}
+
+		/**
+		 * @return path of the downloaded input, null if it wasn't downloaded
+		 */
+		public String getDownloaded() {
+			return downloaded;
+		}
+
+		/**
+		 * @return path of the transcoded output, null if it wasn't transcoded
+		 */
+		public String getOutput() {
+			return output;
+		}
+
+		/**
+		 * @param mount
+		 * @return true if the output was uploaded to the mount
+		 */
+		public boolean isUploaded(String mount) {
+			return uploaded.contains(mount);
+		}
+	}
+}
@@ -3,7 +3,12 @@ package com.noterik.springfield.willie.TF;
 import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
@@ -46,8 +51,8 @@ public class TFactory {
 	/** Current duration of transcoding */
 	private long curDuration;
 	
-	/** Current job */
-	private Job _job;
+	/** Current jobs, transcoded in the same run */
+	private List<Job> _jobs;
 	
 	/** ffmpeg path */
 	private static String ffmpegPath;
@@ -61,6 +66,9 @@ public class TFactory {
 	/** batch files extension */
 	private static String batchFilesExtension;
 	
+	/** default size of the job journal (in KB) */
+	private static final int DEFAULT_JOURNAL_SIZE = 1024;
+	
 	/** time in between status updates */
 	private static final long STATUS_UPDATE_TIME = 2 * 1000;
 	
@@ -99,107 +107,343 @@ public class TFactory {
 		smithers.put(rawUri + "/properties/reencode", "false", "text/xml");
 	}	
 	
+	/**
+	 * Opens the job journal and checks the jobs that were unfinished when
+	 * willie stopped. Inputs whose download may have been cut off are removed,
+	 * the rest is kept so the jobs can continue where they left off.
+	 */
+	public static void recover() {
+		if (tempPath==null) {
+			log.info("no temporary directory, jobs can't be resumed after a restart");
+			return;
+		}
+		JobJournal journal = JobJournal.instance();
+		String journalFile = WillieServer.instance().getConfiguration().getProperty("journalfile", tempPath+File.separator+"willie.journal");
+		int size = WillieServer.instance().getConfigurationInt("journalsize", DEFAULT_JOURNAL_SIZE) * 1024;
+		try {
+			journal.open(new File(journalFile), size);
+		} catch (IOException e) {
+			log.error("Could not open job journal "+journalFile+", jobs can't be resumed after a restart",e);
+			return;
+		}
+		
+		for(JobJournal.Entry entry : journal.getUnfinished()) {
+			if (entry.getDownloaded()==null && entry.getOutput()==null) {
+				// nothing finished, a download may have been cut off
+				deleteTempFiles(entry.getJobId());
+			}
+			log.info("job "+entry.getUri()+" was unfinished"+(entry.getOutput()!=null ? ", transcoded" : entry.getDownloaded()!=null ? ", downloaded" : ""));
+		}
+		try {
+			journal.compact();
+		} catch (IOException e) {
+			log.error("Could not compact job journal",e);
+		}
+	}
+	
+	/**
+	 * Removes the temporary files of a job.
+	 * 
+	 * @param jobId		id of the job
+	 */
+	public static void deleteTempFiles(String jobId) {
+		if (tempPath==null || jobId==null || jobId.equals("")) {
+			return;
+		}
+		File folder = new File(tempPath+File.separator+jobId);
+		if (!folder.isDirectory()) {
+			return;
+		}
+		File[] files = folder.listFiles();
+		if (files!=null) {
+			for(File f : files) {
+				f.delete();
+			}
+		}
+		folder.delete();
+	}
+	
 	/*
 	 * Transcoding of a job using the parameters sent in the Job instance
 	 */
 	public boolean transcode(Job job){
-		log.info("Transcode job("+job.getId()+")");
-		
-		// check job
-		String mount = job.getProperty("mount");
-		String extension = job.getProperty("extension");
-		String referid = job.getProperty("referid");
-		String abitrate = job.getProperty("wantedbitrate");
-
-		if(mount==null || extension==null || referid==null || abitrate==null) {
-			log.error("incorrect parameters passed");
-			job.setError("Transcoding Failed", "incorrect parameters passed");
-			return false;
+		List<Job> jobs = new ArrayList<Job>();
+		jobs.add(job);
+		return transcode(jobs).contains(job);
+	}
+	
+	/**
+	 * Transcodes jobs that read the same input. The input is fetched and
+	 * decoded once, a single ffmpeg run writes the outputs of all jobs. Jobs
+	 * with a batch file, or that are local when the first job isn't or the
+	 * other way around, are transcoded on their own. Every job keeps its own
+	 * status and errors. When the shared run fails, the output of every job is
+	 * checked on its own and the jobs without a good output are transcoded
+	 * again on their own, so one bad output doesn't fail the others.
+	 * 
+	 * @param jobs	jobs with the same input, the first one leads
+	 * @return the jobs that were transcoded successfully
+	 */
+	public List<Job> transcode(List<Job> jobs) {
+		Job lead = jobs.get(0);
+		boolean local = TFHelper.isLocalJob(lead);
+		List<Job> group = new ArrayList<Job>();
+		List<Job> single = new ArrayList<Job>();
+		for(Job job : jobs) {
+			if (job==lead || (lead.getProperty("batchfile")==null && job.getProperty("batchfile")==null && TFHelper.isLocalJob(job)==local)) {
+				group.add(job);
+			} else {
+				single.add(job);
+			}
 		}
 		
-		// get path to input file, and output directory
-		String inputFile = "";
-		String outputDir = "";
-		boolean local = TFHelper.isLocalJob(job); 
-		try {
-			_job = job;
-			String[] streamname = TFHelper.getStreams(job);
-			String streamPath = TFHelper.getPathOfStream(streamname[0]);
-			
-			// check stream path
-			log.debug("stream path is: " + streamPath);
-			if(streamPath==null) {
-				log.error("Transcoding failed, mount was incorrectly set");
-				job.setError("Transcoding failed", "mount was incorrectly set");
-				return false;
+		List<Job> succeeded = transcodeGroup(group, local);
+		for(Job job : single) {
+			if (new TFactory().transcode(job)) {
+				succeeded.add(job);
 			}
-			
-			// get input
-			String path = job.getInputURI();
-			//log.debug("original: " + path);
-			
-			if(!local) {
-				//log.debug("file is REMOTE");
-				// get file if not local
-				outputDir = tempPath +File.separator +job.getId()+File.separator;
-				if(!(new File(outputDir)).exists()){
-					(new File(outputDir)).mkdirs();
+		}
+		return succeeded;
+	}
+	
+	/**
+	 * Transcodes jobs with the same input in one ffmpeg run, then puts the
+	 * output of every job on its streams.
+	 * 
+	 * @param group	jobs with the same input
+	 * @param local	whether the jobs are local
+	 * @return the jobs that were transcoded successfully
+	 */
+	private List<Job> transcodeGroup(List<Job> group, boolean local) {
+		List<Job> succeeded = new ArrayList<Job>();
+		_jobs = group;
+		
+		// what was done before a restart
+		JobJournal journal = JobJournal.instance();
+		
+		// get path to input file, and output directory of every job
+		String inputFile = null;
+		Map<Job, String> outputDirs = new LinkedHashMap<Job, String>();
+		List<Job> todo = new ArrayList<Job>();
+		for(Job job : group) {
+			log.info("Transcode job("+job.getId()+")");
+			try {
+				String outputDir = getOutputDir(job, local);
+				if (outputDir==null) {
+					continue;
 				}
-				
-				getOriginalFileWithFtp(job);
-				inputFile = tempPath+File.separator+job.getId()+File.separator+"input."+job.getProperty("extension");
-
-			} else {
-				if (job.getOutputURI() != null) {
-					inputFile = streamPath + path + job.getInputFilename(); 
-					outputDir = streamPath + job.getOutputURI();
-				} else {				
-					inputFile = streamPath + path + File.separator + job.getInputFilename(); 
-					outputDir = streamPath + File.separator + job.getProperty("referid") + File.separator;
+				JobJournal.Entry done = journal.getEntry(job.getUri());
+				if (inputFile==null) {
+					inputFile = getInputFile(job, local, done);
 				}
-				// create output folder
-				if(!(new File(outputDir)).exists()) {
-					(new File(outputDir)).mkdirs();
+				outputDirs.put(job, outputDir);
+				
+				String output = outputDir + (job.getOutputFilename() != null ? job.getOutputFilename() : "raw." + job.getProperty("extension"));
+				if (done!=null && output.equals(done.getOutput()) && (new File(output).isFile() || isUploaded(job, done, local))) {
+					log.info("using output transcoded before the restart for job("+job.getId()+")");
+				} else {
+					todo.add(job);
 				}
+			} catch(Exception e) {
+				job.setError("Transcoding failed","");
+				log.error("Transcoding failed",e);
+				outputDirs.remove(job);
 			}
-			
-			// custom batch file 
-			if (job.getProperty("batchfile") != null) {
-				String batchfile = job.getProperty("batchfile")+batchFilesExtension;
-				log.debug("transcode using batch file "+batchfile);
-			
-				String originalBitrate = job.getOriginalProperty("audiobitrate") != null ? job.getOriginalProperty("audiobitrate") : "0";
-				String originalDuration = job.getOriginalProperty("duration") != null ? job.getOriginalProperty("duration") : "1";
-				String originalExtension = job.getOriginalProperty("extension") != null ? job.getOriginalProperty("extension") : "unknown";
-				
-				String[] cmdArray = new String[] {batchFilesPath+File.separator+batchfile, ffmpegPath+File.separator, inputFile, job.getProperty("wantedbitrate"), outputDir, job.getProperty("extension"), tempPath, job.getId(), originalBitrate, originalDuration, originalExtension};
-				log.debug("command: "+batchFilesPath+File.separator+batchfile+" "+ffmpegPath+File.separator+" "+inputFile+" "+ job.getProperty("wantedbitrate")+" "+outputDir+" "+job.getProperty("extension")+" "+tempPath+" "+job.getId()+" "+originalBitrate+" "+originalDuration+" "+originalExtension);
-				
-				File bFile = new File(batchFilesPath+File.separator+batchfile);
-				if (!bFile.exists()) {
-					log.debug("Batch file not found "+batchFilesPath+File.separator+batchfile);
-					job.setError("Error", "Transcoding Failed, batch file not found");
-					return false;
+		}
+		
+		try {
+			if (!todo.isEmpty()) {
+				// a custom batch file goes before the built-in profiles, such a job is never grouped
+				boolean batch = todo.get(0).getProperty("batchfile") != null;
+				List<String> command = null;
+				if (batch) {
+					command = getBatchCommand(todo.get(0), inputFile, outputDirs.get(todo.get(0)));
+				} else {
+					for(Iterator<Job> iter = todo.iterator(); iter.hasNext(); ) {
+						Job job = iter.next();
+						TranscodingProfile profile = getProfile(job);
+						if (profile==null) {
+							iter.remove();
+							outputDirs.remove(job);
+							continue;
+						}
+						if (command==null) {
+							command = TranscodingProfile.getInputCommand(ffmpegPath, inputFile);
+						}
+						command.addAll(profile.getOutputArguments(job.getProperty("wantedbitrate"), outputDirs.get(job) + "raw." + job.getProperty("extension")));
+					}
 				}
 				
-				this.commandRunner(cmdArray);
-			
-				if(new File(outputDir + "raw." + job.getProperty("extension")).isFile()){
-					// TODO: check filesize after transcode
-					if (job.getOutputFilename() != null) {
-						new File(outputDir + "raw." + job.getProperty("extension")).renameTo(new File(outputDir+job.getOutputFilename()));
-					}					
-					log.debug("Transcoding finished.");
-				}else{
-					job.setError("Error", "Transcoding Failed");
-					return false;
+				if (command==null) {
+					for(Job job : todo) {
+						outputDirs.remove(job);
+					}
+				} else {
+					log.debug("command: "+command);
+					int exit = this.commandRunner(command);
+					
+					for(Job job : todo) {
+						String outputDir = outputDirs.get(job);
+						File raw = new File(outputDir + "raw." + job.getProperty("extension"));
+						// the exit code of batch files is not reliable, only check their output
+						boolean ok = raw.isFile() && (batch || exit==0);
+						if (!ok && !batch && todo.size() > 1) {
+							// one failing output fails the whole run, and the outputs of a
+							// run that was cut off may still decode while truncated, so only
+							// the exit code of a run of the job on its own counts
+							ok = transcodeAlone(job, inputFile, raw);
+						}
+						if(ok){
+							// TODO: check filesize after transcode
+							if (job.getOutputFilename() != null) {
+								raw.renameTo(new File(outputDir+job.getOutputFilename()));
+							}					
+							log.debug("Transcoding finished.");
+							journal.record(job.getUri(), job.getId(), JobJournal.TRANSCODED, outputDir + (job.getOutputFilename() != null ? job.getOutputFilename() : "raw." + job.getProperty("extension")));
+						}else{
+							if (!batch) {
+								log.error("ffmpeg exited with "+exit+" for job("+job.getId()+")");
+								raw.delete();
+							}
+							job.setError("Error", "Transcoding Failed");
+							outputDirs.remove(job);
+						}
+					}
 				}
 			}
 		}catch(Exception e) {
-			job.setError("Transcoding failed","");
+			for(Job job : todo) {
+				if (outputDirs.remove(job)!=null) {
+					job.setError("Transcoding failed","");
+				}
+			}
 			log.error("Transcoding failed",e);
+		}
+		
+		for(Map.Entry<Job, String> entry : outputDirs.entrySet()) {
+			deliver(entry.getKey(), entry.getValue(), local, journal.getEntry(entry.getKey().getUri()));
+			succeeded.add(entry.getKey());
+		}
+		return succeeded;
+	}
+	
+	/**
+	 * Transcodes a job of a failed ffmpeg run on its own.
+	 * 
+	 * @param job
+	 * @param inputFile	the shared input
+	 * @param output	output of the job
+	 * @return true if the output was written
+	 */
+	private boolean transcodeAlone(Job job, String inputFile, File output) {
+		log.info("transcoding job("+job.getId()+") on its own");
+		output.delete();
+		TranscodingProfile profile = TranscodingProfiles.getProfile(job);
+		if (profile==null) {
 			return false;
 		}
+		List<Job> previous = _jobs;
+		List<Job> single = new ArrayList<Job>();
+		single.add(job);
+		_jobs = single;
+		try {
+			int exit = commandRunner(profile.getCommand(ffmpegPath, inputFile, job.getProperty("wantedbitrate"), output.getPath()));
+			return exit==0 && output.isFile();
+		} finally {
+			_jobs = previous;
+		}
+	}
+	
+	/**
+	 * Checks the parameters of a job and returns where its output goes.
+	 * 
+	 * @param job
+	 * @param local	whether the job is local
+	 * @return the output directory, null if the job can't be transcoded
+	 */
+	private String getOutputDir(Job job, boolean local) {
+		// check job
+		if(job.getProperty("mount")==null || job.getProperty("extension")==null || job.getProperty("referid")==null || job.getProperty("wantedbitrate")==null) {
+			log.error("incorrect parameters passed");
+			job.setError("Transcoding Failed", "incorrect parameters passed");
+			return null;
+		}
+		
+		String streamPath = getStreamPath(job);
+		
+		// check stream path
+		log.debug("stream path is: " + streamPath);
+		if(streamPath==null) {
+			log.error("Transcoding failed, mount was incorrectly set");
+			job.setError("Transcoding failed", "mount was incorrectly set");
+			return null;
+		}
+		
+		String outputDir;
+		if(!local) {
+			outputDir = tempPath +File.separator +job.getId()+File.separator;
+		} else if (job.getOutputURI() != null) {
+			outputDir = streamPath + job.getOutputURI();
+		} else {				
+			outputDir = streamPath + File.separator + job.getProperty("referid") + File.separator;
+		}
+		// create output folder
+		if(!(new File(outputDir)).exists()) {
+			(new File(outputDir)).mkdirs();
+		}
+		return outputDir;
+	}
+	
+	/**
+	 * Returns the input of a job, a remote input is fetched first.
+	 * 
+	 * @param job
+	 * @param local	whether the job is local
+	 * @param done	what was done before a restart, null if nothing
+	 * @return path to the input file
+	 */
+	private String getInputFile(Job job, boolean local, JobJournal.Entry done) {
+		String path = job.getInputURI();
+		//log.debug("original: " + path);
+		
+		if(!local) {
+			//log.debug("file is REMOTE");
+			// get file if not local, unless it was prefetched already
+			if(!job.isInputStaged()) {
+				if(done!=null && done.getDownloaded()!=null && new File(done.getDownloaded()).isFile()) {
+					log.info("using input downloaded before the restart for job("+job.getId()+")");
+					job.setInputStaged(true);
+				} else {
+					stageInput(job);
+				}
+			}
+			return getStagedInputFile(job);
+		}
+		
+		String streamPath = getStreamPath(job);
+		if (job.getOutputURI() != null) {
+			return streamPath + path + job.getInputFilename(); 
+		}
+		return streamPath + path + File.separator + job.getInputFilename(); 
+	}
+	
+	private static String getStreamPath(Job job) {
+		String[] streamname = TFHelper.getStreams(job);
+		return TFHelper.getPathOfStream(streamname[0]);
+	}
+	
+	/**
+	 * Puts the output of a transcoded job on its other streams, and if not
+	 * local on all streams.
+	 * 
+	 * @param job
+	 * @param outputDir	directory of the output
+	 * @param local		whether the job is local
+	 * @param done		what was done before a restart, null if nothing
+	 */
+	private void deliver(Job job, String outputDir, boolean local, JobJournal.Entry done) {
+		JobJournal journal = JobJournal.instance();
+		String extension = job.getProperty("extension");
 		
 		log.debug("putting transcoded file on other streams");
 		
@@ -207,6 +451,10 @@ public class TFactory {
 		String[] streams = TFHelper.getStreams(job);
 		for(int i = local ? 1: 0; i<streams.length; i++) {
 			String stream = streams[i];
+			if (done!=null && done.isUploaded(stream)) {
+				log.debug("already sent to "+stream+" before the restart");
+				continue;
+			}
 			MountProperties mp = LazyHomer.getMountProperties(stream);
 			String server = mp.getHostname();
 			String username = mp.getAccount();
@@ -220,6 +468,8 @@ public class TFactory {
 			boolean ok = FtpHelper.commonsSendFile(server, username, password, rFolder, lFolder, filename);
 			if(!ok) {
 				log.error("Could not send file to ftp. " + server + " -- " + job.getProperty("referid"));
+			} else {
+				journal.record(job.getUri(), job.getId(), JobJournal.UPLOADED, stream);
 			}
 		}
 		
@@ -242,6 +492,108 @@ public class TFactory {
 		// everything went fine
 		job.setStatus("Progress", "Done");
 		log.info("Transcode done job("+job.getId()+")");
+	}
+	
+	/**
+	 * Returns the command to transcode a job with its batch file.
+	 * 
+	 * @return the command, null if the batch file doesn't exist
+	 */
+	private List<String> getBatchCommand(Job job, String inputFile, String outputDir) {
+		String batchfile = job.getProperty("batchfile")+batchFilesExtension;
+		log.debug("transcode using batch file "+batchfile);
+		
+		File bFile = new File(batchFilesPath+File.separator+batchfile);
+		if (!bFile.exists()) {
+			log.debug("Batch file not found "+batchFilesPath+File.separator+batchfile);
+			job.setError("Error", "Transcoding Failed, batch file not found");
+			return null;
+		}
+		
+		String originalBitrate = job.getOriginalProperty("audiobitrate") != null ? job.getOriginalProperty("audiobitrate") : "0";
+		String originalDuration = job.getOriginalProperty("duration") != null ? job.getOriginalProperty("duration") : "1";
+		String originalExtension = job.getOriginalProperty("extension") != null ? job.getOriginalProperty("extension") : "unknown";
+		
+		return Arrays.asList(batchFilesPath+File.separator+batchfile, ffmpegPath+File.separator, inputFile, job.getProperty("wantedbitrate"), outputDir, job.getProperty("extension"), tempPath, job.getId(), originalBitrate, originalDuration, originalExtension);
+	}
+	
+	/**
+	 * Returns the transcoding profile of a job.
+	 * 
+	 * @return the profile, null if there is no profile for the job
+	 */
+	private TranscodingProfile getProfile(Job job) {
+		TranscodingProfile profile = TranscodingProfiles.getProfile(job);
+		if (profile==null) {
+			log.error("no transcoding profile for job("+job.getId()+"), extension "+job.getProperty("extension"));
+			job.setError("Error", "Transcoding Failed, no profile for extension "+job.getProperty("extension"));
+			return null;
+		}
+		log.debug("transcode job("+job.getId()+") using profile "+profile);
+		return profile;
+	}
+	
+	/**
+	 * Downloads the input of a remote job to the temporary directory.
+	 * 
+	 * @param job	The job
+	 * @return		Successfully got the input or not.
+	 */
+	public boolean stageInput(Job job) {
+		String outputDir = tempPath +File.separator +job.getId()+File.separator;
+		if(!(new File(outputDir)).exists()){
+			(new File(outputDir)).mkdirs();
+		}
+		
+		long start = System.currentTimeMillis();
+		boolean success = getOriginalFileWithFtp(job);
+		job.setInputStaged(success);
+		if (success) {
+			JobJournal.instance().record(job.getUri(), job.getId(), JobJournal.DOWNLOADED, getStagedInputFile(job));
+			String mount = job.getProperty("mount").split(",")[0];
+			TranscodeStatistics.instance().recordTransfer(mount, new File(getStagedInputFile(job)).length(), System.currentTimeMillis()-start);
+		}
+		return success;
+	}
+	
+	/**
+	 * Removes the downloaded input of a job that won't be transcoded here.
+	 * 
+	 * @param job	The job
+	 */
+	public static void discardStagedInput(Job job) {
+		File f = new File(getStagedInputFile(job));
+		if (f.exists()) {
+			f.delete();
+		}
+		File folder = new File(tempPath+File.separator+job.getId());
+		if (folder.exists()) {
+			folder.delete();
+		}
+		job.setInputStaged(false);
+	}
+	
+	/**
+	 * Returns the local path of the downloaded input of a remote job.
+	 * 
+	 * @param job	The job
+	 * @return		path of the input in the temporary directory
+	 */
+	public static String getStagedInputFile(Job job) {
+		return tempPath+File.separator+job.getId()+File.separator+"input."+job.getProperty("extension");
+	}
+	
+	/**
+	 * Returns whether the output of a job was sent to all its other streams
+	 * before a restart.
+	 */
+	private static boolean isUploaded(Job job, JobJournal.Entry done, boolean local) {
+		String[] streams = TFHelper.getStreams(job);
+		for(int i = local ? 1: 0; i<streams.length; i++) {
+			if (!done.isUploaded(streams[i])) {
+				return false;
+			}
+		}
 		return true;
 	}
 	
@@ -333,91 +685,51 @@ public class TFactory {
 	 
  
 	/**
-	 * Runs command.
+	 * Runs command, without a shell in between. The output and errors are
+	 * read together, ffmpeg reports its progress on the errors.
 	 * 
 	 * @param cmd
+	 * @return exit code of the command, -1 if it could not be run
 	 */
-	private void commandRunner(String[] cmd) {
+	private int commandRunner(List<String> cmd) {
 		// TODO: research on linux "nice" command for priority set
 		totalFfmpegCalls = 1;
 		currentFfmpegCall = 1;
 	
+		ProcessBuilder builder = new ProcessBuilder(cmd);
+		builder.redirectErrorStream(true);
+		Process child = null;
 		try {
 			// Execute command
-			final Process child = Runtime.getRuntime().exec(cmd);
+			child = builder.start();
 			
-			// Handle stdout...
-			new Thread() {
-			    public void run() {
-			    	BufferedInputStream bis = null;
-			    	try {		
-						// Get the input stream and read from it
-						InputStream is = child.getInputStream();
-
-						if (is != null) {
-							bis = new BufferedInputStream(is);
-							int c;
-							StringBuffer line = new StringBuffer();
-							while ((c = bis.read()) != -1) {
-								if(c != '\r' && c != '\n'){
-									line.append((char) c);
-								} else {
-									parseOutput(line.toString());
-									line = new StringBuffer();
-								}
-							}
-						}
-					} catch (IOException e) {
-						e.printStackTrace();
-					} finally {
-						try {
-							bis.close();
-						} catch (IOException e) {
-							e.printStackTrace();
-						}
-					}
-			    }
-			}.start();
-
-			// Handle stderr...
-			new Thread() {
-			    public void run() {
-			    	BufferedInputStream bis = null;
-			    	try {		
-						// Get the error stream and read from it
-						InputStream is = child.getErrorStream();
-
-						if (is != null) {
-							bis = new BufferedInputStream(is);
-							int c;
-							StringBuffer line = new StringBuffer();
-							while ((c = bis.read()) != -1) {
-								if(c != '\r' && c != '\n'){
-									line.append((char) c);
-								} else {
-									parseOutput(line.toString());
-									line = new StringBuffer();
-								}
-							}
-						}
-					} catch (IOException e) {
-						e.printStackTrace();
-					} finally {
-						try {
-							bis.close();
-						} catch (IOException e) {
-							e.printStackTrace();
-						}
+			BufferedInputStream bis = new BufferedInputStream(child.getInputStream());
+			try {
+				int c;
+				StringBuilder line = new StringBuilder();
+				while ((c = bis.read()) != -1) {
+					if(c != '\r' && c != '\n'){
+						line.append((char) c);
+					} else if (line.length() > 0) {
+						parseOutput(line.toString());
+						line.setLength(0);
 					}
-			    }
-			}.start();	
-			
-			child.waitFor();
+				}
+				if (line.length() > 0) {
+					parseOutput(line.toString());
+				}
+			} finally {
+				bis.close();
+			}
+			return child.waitFor();
 		} catch (IOException e) {
-			e.printStackTrace();
+			log.error("Could not run "+cmd.get(0),e);
 		} catch (InterruptedException e) {
-			e.printStackTrace();
+			log.error("Interrupted while running "+cmd.get(0),e);
+			child.destroy();
+			Thread.currentThread().interrupt();
 		}
+		return -1;
 	}
 	
 	/**
@@ -507,13 +819,15 @@ public class TFactory {
 			    long currentTime = System.currentTimeMillis();
 			    // only log every so many seconds
 			    if( (currentTime - statusLastUpdatedTime) > STATUS_UPDATE_TIME) {
-				_job.setStatus("Progress", Double.toString(progr));
+				setStatus("Progress", Double.toString(progr));
 				statusLastUpdatedTime = System.currentTimeMillis(); // setStatus could have taken some time
 			    }
 			}
 		} catch(Exception e) {
 			log.error("Could not parse ffmpeg output",e);
-			_job.setError("Error", "Transcoding Failed, corrupted audio");
+			for(Job job : _jobs) {
+				job.setError("Error", "Transcoding Failed, corrupted audio");
+			}
 		}
 	}
 	
@@ -532,9 +846,21 @@ public class TFactory {
 			log.debug("Total progress: "+now);
 			// only log every so many seconds
 			if( (currentTime - statusLastUpdatedTime) > STATUS_UPDATE_TIME ) {
-				_job.setStatus("Progress", now + "");
+				setStatus("Progress", now + "");
 				statusLastUpdatedTime = System.currentTimeMillis(); // setStatus could have taken some time
 			}
 		}
 	}
-}
\ No newline at end of file
+	
+	/**
+	 * Sets the status of all current jobs.
+	 * 
+	 * @param message
+	 * @param details
+	 */
+	private void setStatus(String message, String details) {
+		for(Job job : _jobs) {
+			job.setStatus(message, details);
+		}
+	}
+}
@@ -0,0 +1,164 @@
+package com.noterik.springfield.willie.TF;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Keeps track of the transcodes done by this willie, to measure the
+ * throughput, the encode speed and the transfer rate of every mount.
+ *
+ * @copyright Copyright: Noterik B.V. 2012
+ * @package com.noterik.springfield.willie.TF
+ * @access private
+ *
+ */
+public class TranscodeStatistics {
+	/** Period the throughput is measured over (in milliseconds) */
+	private static final long WINDOW = 10 * 60 * 1000L;
+
+	/** Weight of a new sample in the speed averages */
+	private static final double WEIGHT = 0.2;
+
+	/** instance */
+	private static TranscodeStatistics instance = new TranscodeStatistics();
+
+	/** Finish times of the transcodes in the last window, oldest first */
+	private LinkedList<Long> finished;
+
+	private long completed = 0;
+	private long failed = 0;
+	private long totalDuration = 0;
+
+	/** Average seconds of media encoded per second, -1 if not measured yet */
+	private double encodeSpeed = -1;
+
+	/** Average transfer rate (in bytes per second) by mount */
+	private Map<String, Double> transferRates;
+
+	/**
+	 * Sole constructor
+	 */
+	private TranscodeStatistics() {
+		finished = new LinkedList<Long>();
+		transferRates = new HashMap<String, Double>();
+	}
+
+	/**
+	 * Return TranscodeStatistics instance
+	 *
+	 * @return TranscodeStatistics instance
+	 */
+	public static TranscodeStatistics instance() {
+		return instance;
+	}
+
+	/**
+	 * Records a finished transcode
+	 *
+	 * @param success	whether the transcode succeeded
+	 * @param duration	time the transcode took (in milliseconds)
+	 */
+	public synchronized void record(boolean success, long duration) {
+		record(success, duration, -1);
+	}
+
+	/**
+	 * Records a finished transcode
+	 *
+	 * @param success		whether the transcode succeeded
+	 * @param duration		time the transcode took (in milliseconds)
+	 * @param mediaDuration	duration of the transcoded media (in seconds), -1 if unknown
+	 */
+	public synchronized void record(boolean success, long duration, double mediaDuration) {
+		if (success && mediaDuration > 0 && duration > 0) {
+			encodeSpeed = average(encodeSpeed, mediaDuration / (duration / 1000.0));
+		}
+		long now = System.currentTimeMillis();
+		finished.add(now);
+		expire(now);
+		if (success) {
+			completed++;
+		} else {
+			failed++;
+		}
+		totalDuration += duration;
+	}
+
+	/**
+	 * Records a download of an input
+	 *
+	 * @param mount		mount the input was downloaded from
+	 * @param bytes		size of the input
+	 * @param duration	time the download took (in milliseconds)
+	 */
+	public synchronized void recordTransfer(String mount, long bytes, long duration) {
+		if (bytes <= 0 || duration <= 0) {
+			return;
+		}
+		Double rate = transferRates.get(mount);
+		transferRates.put(mount, average(rate==null ? -1 : rate.doubleValue(), bytes / (duration / 1000.0)));
+	}
+
+	/**
+	 * @return average seconds of media encoded per second, -1 if not measured yet
+	 */
+	public synchronized double getEncodeSpeed() {
+		return encodeSpeed;
+	}
+
+	/**
+	 * @param mount
+	 * @return average transfer rate from the mount (in bytes per second), -1 if not measured yet
+	 */
+	public synchronized double getTransferRate(String mount) {
+		Double rate = transferRates.get(mount);
+		return rate==null ? -1 : rate.doubleValue();
+	}
+
+	/**
+	 * Returns the number of transcodes finished per minute, measured over the
+	 * last ten minutes
+	 *
+	 * @return transcodes per minute
+	 */
+	public synchronized double getJobsPerMinute() {
+		expire(System.currentTimeMillis());
+		return finished.size() / (WINDOW / 60000.0);
+	}
+
+	/**
+	 * @return number of successful transcodes
+	 */
+	public synchronized long getCompleted() {
+		return completed;
+	}
+
+	/**
+	 * @return number of failed transcodes
+	 */
+	public synchronized long getFailed() {
+		return failed;
+	}
+
+	/**
+	 * @return average time a transcode took (in milliseconds)
+	 */
+	public synchronized long getAverageDuration() {
+		return completed+failed == 0 ? 0 : totalDuration / (completed+failed);
+	}
+
+	private static double average(double current, double sample) {
+		return current < 0 ? sample : (1 - WEIGHT) * current + WEIGHT * sample;
+	}
+
+	private void expire(long now) {
+		for(Iterator<Long> iter = finished.iterator(); iter.hasNext(); ) {
+			if (now - iter.next() <= WINDOW) {
+				return;
+			}
+			iter.remove();
+		}
+	}
+}
@@ -1,6 +1,12 @@
 package com.noterik.springfield.willie.TF;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.log4j.Logger;
 import org.springfield.mojo.interfaces.ServiceInterface;
@@ -16,9 +22,11 @@ import com.noterik.springfield.willie.homer.MargeObserver;
 import com.noterik.springfield.willie.homer.MountProperties;
 import com.noterik.springfield.willie.queue.Job;
 import com.noterik.springfield.willie.queue.QueueManager;
+import com.noterik.springfield.willie.queue.dist.WorkStealer;
 
 /**
- * Worker thread that picks up jobs.
+ * Worker that picks up jobs. Signals only wake the worker up, the jobs
+ * are run on the worker executor so the marge threads are never blocked.
  *
  * @author Derk Crezee <d.crezee@noterik.nl>
  * @author Daniel Ockeloen <daniel@noterik.nl>
@@ -28,26 +36,47 @@ import com.noterik.springfield.willie.queue.QueueManager;
  * @version $Id: TranscoderWorker.java,v 1.30 2012-07-31 19:06:36 daniel Exp $
  *
  */
-public class TranscoderWorker implements MargeObserver {
+public class TranscoderWorker implements MargeObserver, Runnable {
 	/**	the TranscoderWorker's log4j logger */
 	private static final Logger log = Logger.getLogger(TranscoderWorker.class);
 	
-	private boolean busy = false;
+	private volatile boolean busy = false;
+	
+	/** Inactive workers finish their current job but don't pick up new ones */
+	private volatile boolean active = true;
 	
 	/**
 	 * Current executing job
 	 */
 	private Job cJob = null;
 	
-	public void init() {
+	/** Current executing job and the jobs with the same input transcoded along */
+	private volatile List<Job> cJobs = new ArrayList<Job>();
+	
+	/** Executor the worker runs on */
+	private Executor executor;
+	
+	/** Set when the worker is submitted to the executor or running */
+	private AtomicBoolean scheduled = new AtomicBoolean(false);
+	
+	/** Set when a signal arrived that wasn't handled yet */
+	private AtomicBoolean wakeup = new AtomicBoolean(false);
+	
+	public void init(Executor executor) {
 		log.info("Starting worker");
+		this.executor = executor;
 		
-		// subscribe to changed on the queue's
-				LazyMarge.addObserver("/domain/webtv/service/willie/queue", this);
-				LazyMarge.addTimedObserver("/domain/webtv/service/willie/queue",6,this);
+		// subscribe to changes on the queue's of every domain, also the ones added later on
+		String queues = QueueManager.QUEUE_URI.replace("{domain}", "*");
+		LazyMarge.addObserver(queues, this);
+		LazyMarge.addTimedObserver(queues,6,this);
 	}
 	
 	public synchronized boolean checkForNewJob() {
+		if (!active) {
+			return false;
+		}
+		
 		// get next job
 		busy = true;
 		
@@ -57,26 +86,82 @@ public class TranscoderWorker implements MargeObserver {
 			busy = false;
 			return false;
 		}
-		cJob = qm.getJob();
+		// jobs that were claimed ahead go first
+		InputPrefetcher prefetcher = WillieServer.instance().getInputPrefetcher();
+		cJob = prefetcher==null ? null : prefetcher.next();
+		if(cJob==null) {
+			cJob = qm.getJob();
+		}
+		// nothing to do, take over a job another willie didn't start yet
+		if(cJob==null) {
+			cJob = WorkStealer.instance().steal();
+		}
 		if(cJob!=null) {
 			//log.debug("TR="+cJob.getStatusProperty("trancoder"));
 			if (cJob.getStatusProperty("trancoder")==null) { // no transcoder
 				
 				log.debug("got new job: "+cJob);
+				
+				// the jobs that read the same input are transcoded along
+				List<Job> group = new ArrayList<Job>();
+				group.add(cJob);
+				if (prefetcher!=null) {
+					group.addAll(prefetcher.takeSiblings(cJob));
+				}
+				group.addAll(qm.claimSiblings(cJob));
+				
+				// a job claimed by another willie at the same moment isn't started
+				for(Iterator<Job> iter = group.iterator(); iter.hasNext(); ) {
+					Job job = iter.next();
+					if (!qm.confirm(job)) {
+						log.info("lost job "+job+" to another willie");
+						iter.remove();
+						qm.release(job);
+						if (prefetcher!=null) {
+							prefetcher.finished(job);
+						}
+						TFactory.discardStagedInput(job);
+					}
+				}
+				if (group.isEmpty()) {
+					busy = false;
+					return true;
+				}
+				cJob = group.get(0);
+				cJobs = group;
+				if (group.size() > 1) {
+					log.debug("transcoding "+(group.size()-1)+" jobs with the same input along");
+				}
+				
+				// get the input of the next job while this one transcodes
+				if (prefetcher!=null) {
+					prefetcher.prefetch();
+				}
 
-				// transcode job
-				boolean success = transcode();
-				log.debug("finished transcoding successfully: "+Boolean.toString(success));
-			
-				// call to job finished
-				jobFinished(success);
-			
-				// remove job
-				removeJob();
+				// transcode jobs
+				long start = System.currentTimeMillis();
+				List<Job> succeeded = transcode(group);
+				// the jobs of a group share one run, each is counted for its share of it
+				long duration = (System.currentTimeMillis()-start) / group.size();
+				for(Job job : group) {
+					boolean success = succeeded.contains(job);
+					log.debug("finished transcoding "+job+" successfully: "+Boolean.toString(success));
+					TranscodeStatistics.instance().record(success, duration, getMediaDuration(job));
+				
+					// call to job finished
+					jobFinished(job, success);
+				
+					// remove job
+					removeJob(job);
+					if (prefetcher!=null) {
+						prefetcher.finished(job);
+					}
+				}
 				busy = false;
-				return success;
+				return succeeded.contains(cJob);
 			} else {
 				log.debug("JOB TAKEN BY = "+cJob.getStatusProperty("trancoder"));
+				qm.release(cJob);
 			}
 		} else {
 			log.debug("No job found");
@@ -87,15 +172,93 @@ public class TranscoderWorker implements MargeObserver {
 	
 	public void remoteSignal(String from,String method,String url) {
 		if (from.equals("localhost") || method.equals("POST")) {
-			if (!busy) {
+			wakeUp();
+		}
+	}
+	
+	/**
+	 * Lets the worker look for jobs, without waiting for a signal
+	 */
+	public void wakeUp() {
+		wakeup.set(true);
+		schedule();
+	}
+	
+	/**
+	 * Picks up jobs until there are none left. Signals that arrive meanwhile
+	 * are handled before the worker gives up its thread.
+	 */
+	public void run() {
+		while (true) {
+			wakeup.set(false);
+			try {
 				boolean donework = checkForNewJob();
 				while (donework) {
 					donework = checkForNewJob();
 				}
+			} catch(Exception e) {
+				log.error("Worker failed",e);
+			}
+			scheduled.set(false);
+			if (!wakeup.get() || !scheduled.compareAndSet(false, true)) {
+				return;
 			}
 		}
 	}
 	
+	/**
+	 * Submits the worker to the executor, unless it is already submitted or running
+	 */
+	private void schedule() {
+		if (executor==null || !scheduled.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			executor.execute(this);
+		} catch(RejectedExecutionException e) {
+			log.debug("Worker executor is shut down");
+			scheduled.set(false);
+		}
+	}
+	
+	/**
+	 * Returns the duration of the input of a job
+	 * 
+	 * @param job
+	 * @return duration in seconds, -1 if unknown
+	 */
+	public static double getMediaDuration(Job job) {
+		String duration = CostEstimator.getProperty(job, "duration");
+		if (duration==null) {
+			return -1;
+		}
+		try {
+			return Double.parseDouble(duration.trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+	
+	/**
+	 * Activates or deactivates the worker
+	 * 
+	 * @param active
+	 */
+	public void setActive(boolean active) {
+		this.active = active;
+		if (active) {
+			wakeUp();
+		}
+	}
+	
+	public boolean isActive() {
+		return active;
+	}
+	
+	public boolean isBusy() {
+		return busy;
+	}
+	
 	/**
 	 * Get the current executing job
 	 * 
@@ -106,19 +269,30 @@ public class TranscoderWorker implements MargeObserver {
 	}
 	
 	/**
-	 * Handles the job
-	 * 
 	 * @param job
+	 * @return true if the job is executing, on its own or along with the current job
+	 */
+	public boolean isRunning(Job job) {
+		return cJobs.contains(job);
+	}
+	
+	/**
+	 * Handles the jobs
+	 * 
+	 * @param jobs	jobs with the same input
+	 * @return the jobs that were transcoded successfully
 	 */
-	public boolean transcode() {
+	public List<Job> transcode(List<Job> jobs) {
 		// get uri and streams
 		TFactory tf = new TFactory();
 		
 		// set the reencode to false
-		tf.setReencodeToFalse(cJob);
+		for(Job job : jobs) {
+			tf.setReencodeToFalse(job);
+		}
 		
 		// transcode
-		return tf.transcode(cJob);
+		return tf.transcode(jobs);
 	}
 	
 	/**
@@ -126,14 +300,20 @@ public class TranscoderWorker implements MargeObserver {
 	 * 
 	 * @param job
 	 */
-	public void removeJob() {
-		log.debug("removing job: "+cJob);
+	public void removeJob(Job job) {
+		log.debug("removing job: "+job);
 		
 		// send delete call
 		ServiceInterface smithers = ServiceManager.getService("smithers");
 		if (smithers==null) return;
-		smithers.delete( cJob.getUri(), null, null);
-		log.debug("send delete call to "+cJob.getUri());
+		smithers.delete( job.getUri(), null, null);
+		log.debug("send delete call to "+job.getUri());
+		
+		// don't wait for the signal to drop it from the index
+		QueueManager qm = WillieServer.instance().getQueueManager();
+		if (qm!=null) {
+			qm.removeFromIndex(job);
+		}
 	}
 	
 	/**
@@ -142,11 +322,11 @@ public class TranscoderWorker implements MargeObserver {
 	 * @param job
 	 * @param success
 	 */
-	private void jobFinished(boolean success){
+	private void jobFinished(Job job, boolean success){
 		log.debug("call to jobFinished");
 		
 		// rawaudio uri 
-		String rawUri = cJob.getProperty("referid");
+		String rawUri = job.getProperty("referid");
 		
 		// set the transferred property
 		ServiceInterface smithers = ServiceManager.getService("smithers");
@@ -161,7 +341,7 @@ public class TranscoderWorker implements MargeObserver {
 			smithers.put(rawUri + "/properties/status", "failed", "text/xml");
 		}
 		//Check if an additional script is provided to run after the job finished
-		String mount = cJob.getProperty("mount");
+		String mount = job.getProperty("mount");
 		if (mount.indexOf(",") > -1) {
 			mount = mount.substring(0,mount.indexOf(","));
 		}
@@ -173,7 +353,7 @@ public class TranscoderWorker implements MargeObserver {
 			String batchFilesPath = WillieServer.instance().getConfiguration().getProperty("batchFilesPath");
 			String batchFilesExtension = WillieServer.instance().getConfiguration().getProperty("batchFilesExtension");
 			
-			String filename = cJob.getProperty("filename");
+			String filename = job.getProperty("filename");
 			String filePath = filename.substring(0, filename.lastIndexOf("/"));
 			
 			String[] cmdArray = new String[] {batchFilesPath+File.separator+jobFinished+batchFilesExtension, filePath};
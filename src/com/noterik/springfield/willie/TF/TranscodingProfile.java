@@ -0,0 +1,174 @@
+package com.noterik.springfield.willie.TF;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Named ffmpeg preset, mapping an output extension, codec and bitrate to the
+ * ffmpeg arguments. The arguments that don't depend on the job are put
+ * together once, a job only fills in its input, bitrate and output.
+ *
+ * @copyright Copyright: Noterik B.V. 2012
+ * @package com.noterik.springfield.willie.TF
+ * @access private
+ *
+ */
+public class TranscodingProfile {
+	/** Name of the profile */
+	private String name;
+
+	/** Extension of the output */
+	private String extension;
+
+	/** ffmpeg audio codec */
+	private String codec;
+
+	/** Bitrate used when the job doesn't ask for one (in kbit/s), 0 for lossless codecs */
+	private int defaultBitrate;
+
+	/** Arguments in between the input and the bitrate */
+	private String[] arguments;
+
+	/**
+	 * Constructor
+	 *
+	 * @param name				name of the profile
+	 * @param extension			extension of the output
+	 * @param codec				ffmpeg audio codec
+	 * @param defaultBitrate	bitrate used when the job doesn't ask for one (in kbit/s), 0 for lossless codecs
+	 * @param options			extra ffmpeg options, put after the codec
+	 */
+	public TranscodingProfile(String name, String extension, String codec, int defaultBitrate, String... options) {
+		this.name = name;
+		this.extension = extension;
+		this.codec = codec;
+		this.defaultBitrate = defaultBitrate;
+
+		List<String> args = new ArrayList<String>();
+		args.add("-vn");
+		args.add("-acodec");
+		args.add(codec);
+		args.addAll(Arrays.asList(options));
+		arguments = args.toArray(new String[args.size()]);
+	}
+
+	/**
+	 * Parses a profile from the configuration, written as
+	 * extension,codec,bitrate followed by the extra ffmpeg options separated
+	 * by spaces, for example "mp3,libmp3lame,192,-ar 44100"
+	 *
+	 * @param name	name of the profile
+	 * @param value	the configured profile
+	 * @return the profile, null if the value is not a valid profile
+	 */
+	public static TranscodingProfile parse(String name, String value) {
+		if (value==null) {
+			return null;
+		}
+		String[] parts = value.split(",", 4);
+		if (parts.length < 3 || parts[0].trim().equals("") || parts[1].trim().equals("")) {
+			return null;
+		}
+		try {
+			int bitrate = Integer.parseInt(parts[2].trim());
+			String[] options = parts.length < 4 || parts[3].trim().equals("") ? new String[0] : parts[3].trim().split("\\s+");
+			return new TranscodingProfile(name, parts[0].trim(), parts[1].trim(), bitrate, options);
+		} catch(NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the ffmpeg command for a job
+	 *
+	 * @param ffmpegPath	directory of ffmpeg, null to find it on the path
+	 * @param input			input file
+	 * @param bitrate		wanted bitrate, in kbit/s or with an ffmpeg unit, null for the default
+	 * @param output		output file
+	 * @return the command
+	 */
+	public List<String> getCommand(String ffmpegPath, String input, String bitrate, String output) {
+		List<String> command = getInputCommand(ffmpegPath, input);
+		command.addAll(getOutputArguments(bitrate, output));
+		return command;
+	}
+
+	/**
+	 * Returns the start of an ffmpeg command, up to the outputs. The outputs
+	 * of several profiles can follow, ffmpeg then decodes the input once for
+	 * all of them.
+	 *
+	 * @param ffmpegPath	directory of ffmpeg, null to find it on the path
+	 * @param input			input file
+	 * @return the command
+	 */
+	public static List<String> getInputCommand(String ffmpegPath, String input) {
+		List<String> command = new ArrayList<String>();
+		command.add(ffmpegPath==null || ffmpegPath.equals("") ? "ffmpeg" : ffmpegPath+File.separator+"ffmpeg");
+		command.add("-y");
+		command.add("-i");
+		command.add(input);
+		return command;
+	}
+
+	/**
+	 * Returns the ffmpeg arguments of one output
+	 *
+	 * @param bitrate	wanted bitrate, in kbit/s or with an ffmpeg unit, null for the default
+	 * @param output	output file
+	 * @return the arguments
+	 */
+	public List<String> getOutputArguments(String bitrate, String output) {
+		List<String> args = new ArrayList<String>(arguments.length + 3);
+		args.addAll(Arrays.asList(arguments));
+		if (defaultBitrate > 0) {
+			args.add("-ab");
+			args.add(getBitrate(bitrate));
+		}
+		args.add(output);
+		return args;
+	}
+
+	/**
+	 * Returns the bitrate as ffmpeg argument. Plain numbers below 1000 are
+	 * taken as kbit/s, higher ones as bit/s.
+	 */
+	private String getBitrate(String bitrate) {
+		if (bitrate==null || bitrate.trim().equals("")) {
+			return defaultBitrate+"k";
+		}
+		bitrate = bitrate.trim();
+		try {
+			long value = Long.parseLong(bitrate);
+			if (value <= 0) {
+				return defaultBitrate+"k";
+			}
+			return value < 1000 ? value+"k" : Long.toString(value);
+		} catch(NumberFormatException e) {
+			// already has a unit, like 128k
+			return bitrate;
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getExtension() {
+		return extension;
+	}
+
+	public String getCodec() {
+		return codec;
+	}
+
+	public int getDefaultBitrate() {
+		return defaultBitrate;
+	}
+
+	public String toString() {
+		return name+" ("+extension+", "+codec+(defaultBitrate > 0 ? ", "+defaultBitrate+"k" : "")+")";
+	}
+}
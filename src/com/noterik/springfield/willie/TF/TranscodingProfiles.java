@@ -0,0 +1,103 @@
+package com.noterik.springfield.willie.TF;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+import com.noterik.springfield.willie.WillieServer;
+import com.noterik.springfield.willie.queue.Job;
+
+/**
+ * Registry of the transcoding profiles.
+ *
+ * There are built-in profiles for the common audio formats. A job picks a
+ * profile with its profile property, or else gets the profile of its
+ * extension. A profile.{name} configuration option adds a profile or
+ * replaces a built-in one, see TranscodingProfile.parse for the format.
+ *
+ * @copyright Copyright: Noterik B.V. 2012
+ * @package com.noterik.springfield.willie.TF
+ * @access private
+ *
+ */
+public class TranscodingProfiles {
+	/** The TranscodingProfiles' log4j Logger */
+	private static final Logger log = Logger.getLogger(TranscodingProfiles.class);
+
+	/** Built-in profiles by name */
+	private static final Map<String, TranscodingProfile> BUILTIN = new LinkedHashMap<String, TranscodingProfile>();
+
+	/** Name of the profile of an extension */
+	private static final Map<String, String> EXTENSIONS = new HashMap<String, String>();
+
+	/** Profiles read from the configuration by name=value */
+	private static final Map<String, TranscodingProfile> configured = new ConcurrentHashMap<String, TranscodingProfile>();
+
+	static {
+		add(new TranscodingProfile("mp3", "mp3", "libmp3lame", 128), "mp3");
+		add(new TranscodingProfile("aac", "m4a", "aac", 128, "-strict", "experimental"), "m4a", "aac", "mp4");
+		add(new TranscodingProfile("ogg", "ogg", "libvorbis", 128), "ogg", "oga");
+		add(new TranscodingProfile("wav", "wav", "pcm_s16le", 0), "wav");
+		add(new TranscodingProfile("flac", "flac", "flac", 0), "flac");
+	}
+
+	private static void add(TranscodingProfile profile, String... extensions) {
+		BUILTIN.put(profile.getName(), profile);
+		for(String extension : extensions) {
+			EXTENSIONS.put(extension, profile.getName());
+		}
+	}
+
+	/**
+	 * Returns the profile of a job
+	 *
+	 * @param job
+	 * @return the profile, null if there is none for the job
+	 */
+	public static TranscodingProfile getProfile(Job job) {
+		String name = job.getProperty("profile");
+		if (name==null || name.trim().equals("")) {
+			String extension = job.getProperty("extension");
+			name = extension==null ? null : EXTENSIONS.get(extension.trim().toLowerCase());
+		}
+		return name==null ? null : getProfile(name.trim());
+	}
+
+	/**
+	 * Returns a profile by name, the configured one before the built-in one
+	 *
+	 * @param name
+	 * @return the profile, null if there is no profile with this name
+	 */
+	public static TranscodingProfile getProfile(String name) {
+		String value = WillieServer.instance().getConfiguration().getProperty("profile."+name);
+		if (value!=null) {
+			// parsed once for every configured value
+			String key = name+"="+value;
+			TranscodingProfile profile = configured.get(key);
+			if (profile==null) {
+				profile = TranscodingProfile.parse(name, value);
+				if (profile==null) {
+					log.error("invalid transcoding profile "+name+": "+value);
+				} else {
+					configured.put(key, profile);
+				}
+			}
+			if (profile!=null) {
+				return profile;
+			}
+		}
+		return BUILTIN.get(name);
+	}
+
+	/**
+	 * @return the built-in profiles
+	 */
+	public static Collection<TranscodingProfile> getBuiltinProfiles() {
+		return BUILTIN.values();
+	}
+}
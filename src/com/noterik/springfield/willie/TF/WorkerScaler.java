@@ -0,0 +1,245 @@
+package com.noterik.springfield.willie.TF;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.springfield.mojo.interfaces.ServiceInterface;
+import org.springfield.mojo.interfaces.ServiceManager;
+
+import com.noterik.springfield.willie.WillieServer;
+import com.noterik.springfield.willie.homer.HeartbeatMonitor;
+import com.noterik.springfield.willie.homer.LazyHomer;
+import com.noterik.springfield.willie.queue.QueueManager;
+
+/**
+ * Grows or shrinks the number of active workers between the minworkers and
+ * maxworkers bounds.
+ *
+ * Every scaleinterval seconds the system load (per core) and cpu usage are
+ * measured. When either is above scalehighload percent a worker is
+ * deactivated, it finishes its current job first. When both are below
+ * scalelowload percent, all active workers are busy and there are jobs
+ * waiting, a worker is activated. A worker is only added when the previous
+ * one raised the throughput. After a change no decisions are made for
+ * scalecooldown seconds, so the measurements can settle. The number of
+ * active workers is published in the activeworkers property of the node of
+ * this willie, the other willies count on it.
+ *
+ * @copyright Copyright: Noterik B.V. 2012
+ * @package com.noterik.springfield.willie.TF
+ * @access private
+ *
+ */
+public class WorkerScaler {
+	/** The WorkerScaler's log4j logger */
+	private static final Logger log = Logger.getLogger(WorkerScaler.class);
+
+	/** Default time between decisions (in seconds) */
+	private static final int DEFAULT_INTERVAL = 30;
+
+	/** Default time to wait after a change (in seconds) */
+	private static final int DEFAULT_COOLDOWN = 120;
+
+	/** Default load above which workers are removed (percent) */
+	private static final int DEFAULT_HIGH_LOAD = 90;
+
+	/** Default load below which workers are added (percent) */
+	private static final int DEFAULT_LOW_LOAD = 60;
+
+	/** All workers, the first ones are active */
+	private TranscoderWorker[] workers;
+
+	private int minWorkers;
+	private int maxWorkers;
+	private int activeWorkers;
+	private long cooldown;
+	private double highLoad;
+	private double lowLoad;
+
+	/** Time of the last change */
+	private long lastChange = 0;
+
+	/** Whether the last change added a worker */
+	private boolean lastGrow = false;
+
+	/** Throughput before the last worker was added */
+	private double jobsPerMinuteBeforeGrow = 0.0;
+
+	/** Last measurements, -1 when not available */
+	private volatile double load = -1;
+	private volatile double cpu = -1;
+
+	/** Last decision, for the status */
+	private volatile String lastDecision = "none";
+
+	/** Runs the decisions */
+	private ScheduledExecutorService executor;
+
+	/**
+	 * Constructor
+	 *
+	 * @param workers		all workers, at least maxworkers
+	 * @param minWorkers	minimum number of active workers
+	 * @param maxWorkers	maximum number of active workers
+	 * @param activeWorkers	number of workers active at the start
+	 */
+	public WorkerScaler(TranscoderWorker[] workers, int minWorkers, int maxWorkers, int activeWorkers) {
+		this.workers = workers;
+		this.minWorkers = minWorkers;
+		this.maxWorkers = maxWorkers;
+		this.activeWorkers = activeWorkers;
+
+		WillieServer server = WillieServer.instance();
+		cooldown = server.getConfigurationInt("scalecooldown", DEFAULT_COOLDOWN) * 1000L;
+		highLoad = server.getConfigurationInt("scalehighload", DEFAULT_HIGH_LOAD) / 100.0;
+		lowLoad = server.getConfigurationInt("scalelowload", DEFAULT_LOW_LOAD) / 100.0;
+
+		for(int i=0; i<workers.length; i++) {
+			workers[i].setActive(i < activeWorkers);
+		}
+	}
+
+	/**
+	 * Starts making decisions, when there is something to scale
+	 */
+	public void start() {
+		publish();
+		if (maxWorkers <= minWorkers) {
+			log.info("worker scaling disabled, "+activeWorkers+" workers");
+			return;
+		}
+		int interval = WillieServer.instance().getConfigurationInt("scaleinterval", DEFAULT_INTERVAL);
+		log.info("worker scaling between "+minWorkers+" and "+maxWorkers+" workers, every "+interval+" seconds");
+
+		executor = Executors.newSingleThreadScheduledExecutor();
+		executor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					evaluate();
+				} catch(Exception e) {
+					log.error("Worker scaling failed",e);
+				}
+			}
+		}, interval, interval, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Shutdown
+	 */
+	public void destroy() {
+		if (executor!=null) {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * @return number of active workers
+	 */
+	public synchronized int getActiveWorkers() {
+		return activeWorkers;
+	}
+
+	public int getMinWorkers() {
+		return minWorkers;
+	}
+
+	public int getMaxWorkers() {
+		return maxWorkers;
+	}
+
+	/**
+	 * @return last measured system load per core, -1 if not available
+	 */
+	public double getLoad() {
+		return load;
+	}
+
+	/**
+	 * @return last measured cpu usage (0.0 - 1.0), -1 if not available
+	 */
+	public double getCpu() {
+		return cpu;
+	}
+
+	/**
+	 * @return the last decision made
+	 */
+	public String getLastDecision() {
+		return lastDecision;
+	}
+
+	private synchronized void evaluate() {
+		measure();
+
+		double jobsPerMinute = TranscodeStatistics.instance().getJobsPerMinute();
+		int busy = 0;
+		for(int i=0; i<activeWorkers; i++) {
+			if (workers[i].isBusy()) {
+				busy++;
+			}
+		}
+		QueueManager qm = WillieServer.instance().getQueueManager();
+		int waiting = qm==null ? 0 : qm.getNumberOfJobs();
+
+		String state = "load="+format(load)+" cpu="+format(cpu)+" busy="+busy+"/"+activeWorkers+" waiting="+waiting+" jobsperminute="+format(jobsPerMinute);
+		log.debug("worker scaling: "+state);
+
+		if (System.currentTimeMillis() - lastChange < cooldown) {
+			return;
+		}
+
+		boolean overloaded = load > highLoad || cpu > highLoad;
+		boolean underused = load < lowLoad && cpu < lowLoad;
+
+		if (overloaded && activeWorkers > minWorkers) {
+			activeWorkers--;
+			workers[activeWorkers].setActive(false);
+			changed("shrink to "+activeWorkers+" ("+state+")", false, jobsPerMinute);
+		} else if (underused && busy == activeWorkers && waiting > 0 && activeWorkers < maxWorkers) {
+			if (lastGrow && jobsPerMinute <= jobsPerMinuteBeforeGrow) {
+				lastDecision = "hold at "+activeWorkers+", throughput did not improve ("+state+")";
+				log.debug("worker scaling: "+lastDecision);
+				return;
+			}
+			workers[activeWorkers].setActive(true);
+			activeWorkers++;
+			changed("grow to "+activeWorkers+" ("+state+")", true, jobsPerMinute);
+		}
+	}
+
+	private void changed(String decision, boolean grow, double jobsPerMinute) {
+		lastChange = System.currentTimeMillis();
+		lastGrow = grow;
+		jobsPerMinuteBeforeGrow = jobsPerMinute;
+		lastDecision = decision;
+		log.info("worker scaling: "+decision);
+		publish();
+	}
+
+	/**
+	 * Publishes the number of active workers in the node of this willie
+	 */
+	private void publish() {
+		ServiceInterface smithers = ServiceManager.getService("smithers");
+		if (smithers==null || LazyHomer.myip==null) return;
+		smithers.put(HeartbeatMonitor.NODES_URI+"/"+LazyHomer.myip+"/properties/activeworkers", ""+activeWorkers, "text/xml");
+	}
+
+	private void measure() {
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		double average = os.getSystemLoadAverage();
+		load = average < 0 ? -1 : average / os.getAvailableProcessors();
+
+		// cpu usage of the whole system, the ffmpeg processes are not part of this jvm
+		double systemCpu = AdmissionController.getCpuLoad();
+		cpu = systemCpu < 0 ? -1 : systemCpu;
+	}
+
+	private static String format(double value) {
+		return String.format("%.2f", value);
+	}
+}
@@ -8,18 +8,20 @@ import java.net.URL;
 import java.net.URLConnection;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
-import org.dom4j.Document;
-import org.dom4j.DocumentHelper;
-import org.dom4j.Element;
-import org.springfield.mojo.interfaces.ServiceInterface;
-import org.springfield.mojo.interfaces.ServiceManager;
 
+import com.noterik.springfield.willie.TF.InputPrefetcher;
+import com.noterik.springfield.willie.TF.JobJournal;
+import com.noterik.springfield.willie.TF.TFactory;
 import com.noterik.springfield.willie.TF.TranscoderWorker;
+import com.noterik.springfield.willie.TF.WorkerScaler;
 import com.noterik.springfield.willie.homer.LazyHomer;
 import com.noterik.springfield.willie.homer.WillieProperties;
 import com.noterik.springfield.willie.queue.Job;
@@ -35,9 +37,6 @@ public class WillieServer {
 	/** The WillieServer's log4j Logger */
 	private static Logger log = Logger.getLogger(WillieServer.class);
 
-	/** base uri of the file system */
-	private static String DOMAIN_URI = "/domain";	
-
 	/** service type of this service */
 	private static final String SERVICE_TYPE = "transcodingservice";
 	
@@ -55,7 +54,16 @@ public class WillieServer {
 	private QueueManager qm;
 	
 	/** An array of transcoder threads */
-	private TranscoderWorker[] workers;
+	private volatile TranscoderWorker[] workers;
+	
+	/** Runs the workers, one thread per worker */
+	private ExecutorService workerExecutor;
+	
+	/** Changes the number of active workers on the load */
+	private WorkerScaler scaler;
+	
+	/** Claims and downloads the next jobs while the workers transcode */
+	private InputPrefetcher prefetcher;
 	
 	/** Decision Engine, which determines which jobs should be picked up by this willie */
 	private DecisionEngine dEngine;
@@ -98,6 +106,24 @@ public class WillieServer {
 		return qm;
 	}
 	
+	/**
+	 * Return the worker scaler
+	 * 
+	 * @return The worker scaler
+	 */
+	public WorkerScaler getWorkerScaler() {
+		return scaler;
+	}
+	
+	/**
+	 * Return the input prefetcher
+	 * 
+	 * @return The input prefetcher
+	 */
+	public InputPrefetcher getInputPrefetcher() {
+		return prefetcher;
+	}
+	
 	/**
 	 * Returns the decision engine.
 	 * 
@@ -116,6 +142,25 @@ public class WillieServer {
 		return configuration;
 	}
 	
+	/**
+	 * Returns an integer configuration property.
+	 * 
+	 * @param key			configuration key
+	 * @param defaultValue	value to use when the property is not set or invalid
+	 * @return The configured value, or the default value.
+	 */
+	public int getConfigurationInt(String key, int defaultValue) {
+		if (configuration==null || configuration.getProperty(key)==null) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(configuration.getProperty(key).trim());
+		} catch(NumberFormatException e) {
+			log.debug("Could not parse configuration property "+key+", switching to default ("+defaultValue+").");
+		}
+		return defaultValue;
+	}
+	
 	/**
 	 * Set root path
 	 */
@@ -138,6 +183,9 @@ public class WillieServer {
 				// read configuration for decision engine
 				initDecisionEngine();
 		
+				// read what was going on before a restart
+				TFactory.recover();
+		
 				// init queue manager
 				initQueueManager();
 		
@@ -161,6 +209,7 @@ public class WillieServer {
 		
 		WillieProperties mp = LazyHomer.getMyWillieProperties();
 		if (mp!=null) {
+			configuration.putAll(mp.getOptions());
 			configuration.put("decision-engine", mp.getDecisionEngine());
 			configuration.put("number-of-workers", mp.getNumberOfWorkers());
 			configuration.put("default-log-level", mp.getDefaultLogLevel());
@@ -201,9 +250,10 @@ public class WillieServer {
 	 * @return
 	 */
 	public List<String> getOwnDomains() {
-			List<String> domains = new ArrayList<String>();
-			domains.add("webtv");
-			return domains;
+			if (qm==null) {
+				return new ArrayList<String>();
+			}
+			return qm.getDomains();
 	}
 	
 
@@ -216,25 +266,9 @@ public class WillieServer {
 		// create new queue manager
 		qm = new QueueManager();
 		
-		String uri = DOMAIN_URI;
-		String xml = "<fsxml><properties><depth>1</depth></properties></fsxml>";
-		ServiceInterface smithers = ServiceManager.getService("smithers");
-		if (smithers==null) return;
-		String response = smithers.get(uri,xml,"text/xml");
+		// add the queues of every domain, new domains are picked up later on
+		qm.discoverDomains();
 		
-		try {
-			// parse response
-			Document doc = DocumentHelper.parseText(response);
-			Element root = doc.getRootElement();
-			Element elem;;
-			for(Iterator<Element> iter = root.elementIterator("domain"); iter.hasNext(); ) {
-				elem = iter.next();
-				String id = elem.valueOf("@id");
-				qm.addDomain(id);
-			}
-		} catch(Exception e) {
-			log.error("Could not retrieve domains.");
-		}
 		log.info("Initializing queuemanager done.");
 	}
 	
@@ -253,25 +287,100 @@ public class WillieServer {
 		}		
 		log.info("number of workers: " + numberOfWorkers);
 		
-		// create workers array
-		workers = new TranscoderWorker[numberOfWorkers];
+		// bounds for the autoscaling, by default the number of workers is fixed
+		int minWorkers = Math.max(1, getConfigurationInt("minworkers", numberOfWorkers));
+		int maxWorkers = Math.max(minWorkers, getConfigurationInt("maxworkers", numberOfWorkers));
+		numberOfWorkers = Math.min(Math.max(numberOfWorkers, minWorkers), maxWorkers);
+		
+		// prefetch inputs for the workers
+		prefetcher = new InputPrefetcher();
+		
+		// workers run on their own threads, never on the marge threads that signal them
+		workerExecutor = Executors.newFixedThreadPool(maxWorkers, new ThreadFactory() {
+			private AtomicInteger count = new AtomicInteger();
+			
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "willie-worker-"+count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		
+		// create workers array, only the first ones start active, it is
+		// published when complete since the status can be read meanwhile
+		TranscoderWorker[] created = new TranscoderWorker[maxWorkers];
+		for(int i=0; i<maxWorkers; i++) {
+			created[i] = new TranscoderWorker();
+		}
+		workers = created;
+		scaler = new WorkerScaler(workers, minWorkers, maxWorkers, numberOfWorkers);
 
-		// setup new workers and start them
-		for(int i=0; i<numberOfWorkers; i++) {
-			workers[i] = new TranscoderWorker();
-			workers[i].init();
+		// start the workers
+		for(int i=0; i<maxWorkers; i++) {
+			workers[i].init(workerExecutor);
 		}
+		scaler.start();
 		
 		log.info("Initializing workers done.");
 	}
 	
     
+    /**
+     * Returns the number of workers that pick up jobs
+     */
+    public int getNumberOfActiveWorkers() {
+    	int active = 0;
+    	if (workers==null) {
+    		return active;
+    	}
+    	for(TranscoderWorker worker : workers) {
+    		if(worker.isActive()) {
+    			active++;
+    		}
+    	}
+    	return active;
+    }
+    
+    /**
+     * Returns the number of workers that are working on a job
+     */
+    public int getNumberOfBusyWorkers() {
+    	int busy = 0;
+    	if (workers==null) {
+    		return busy;
+    	}
+    	for(TranscoderWorker worker : workers) {
+    		if(worker.isBusy()) {
+    			busy++;
+    		}
+    	}
+    	return busy;
+    }
+    
+    /**
+     * Lets the active workers look for jobs, for jobs that became available
+     * without a signal on the queue
+     */
+    public void wakeWorkers() {
+    	if (workers==null) {
+    		return;
+    	}
+    	for(TranscoderWorker worker : workers) {
+    		if(worker.isActive()) {
+    			worker.wakeUp();
+    		}
+    	}
+    }
+    
     /**
      * Checks if the workers are currently processing this job
      */
     public boolean runningJob(Job job) {
+    	if (workers==null) {
+    		return false;
+    	}
     	for(TranscoderWorker worker : workers) {
-    		if(job.equals(worker.getCurrentJob())) {
+    		if(worker.isRunning(job)) {
     			return true;
     		}
     	}
@@ -282,7 +391,19 @@ public class WillieServer {
      * Shutdown
      */
 	public void destroy() {
-		qm.destroy();
+		if (scaler!=null) {
+			scaler.destroy();
+		}
+		if (workerExecutor!=null) {
+			workerExecutor.shutdownNow();
+		}
+		if (prefetcher!=null) {
+			prefetcher.destroy();
+		}
+		if (qm!=null) {
+			qm.destroy();
+		}
+		JobJournal.instance().close();
 		instance = null;
 		running = false;
 	}
@@ -0,0 +1,123 @@
+package com.noterik.springfield.willie.homer;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.noterik.springfield.willie.WillieServer;
+
+/**
+ * Consistent hash ring, maps keys like job uris on members like willies.
+ *
+ * Every member is put on the ring a number of times (virtual nodes) at the
+ * MD5 hash of its name and the replica number. A key belongs to the first
+ * member at or after the hash of the key. When a member joins or leaves only
+ * the keys next to its virtual nodes move, about 1/N of all keys, and the
+ * virtual nodes spread the keys evenly.
+ *
+ * @copyright Copyright: Noterik B.V. 2012
+ * @package com.noterik.springfield.willie.homer
+ * @access private
+ *
+ */
+public class HashRing {
+	/** Default number of virtual nodes per member */
+	private static final int DEFAULT_REPLICAS = 100;
+
+	/** Ring over the live willies, rebuilt when they change */
+	private static volatile HashRing willieRing = null;
+
+	/** Members by position on the ring */
+	private TreeMap<Long, String> ring;
+
+	/** Members, sorted */
+	private List<String> members;
+
+	/**
+	 * Constructor
+	 *
+	 * @param members	names of the members
+	 * @param replicas	number of virtual nodes per member
+	 */
+	public HashRing(Collection<String> members, int replicas) {
+		this.members = new ArrayList<String>(members);
+		Collections.sort(this.members);
+		ring = new TreeMap<Long, String>();
+		for(String member : this.members) {
+			for(int i=0; i<replicas; i++) {
+				ring.put(hash(member+"#"+i), member);
+			}
+		}
+	}
+
+	/**
+	 * Returns the member a key belongs to
+	 *
+	 * @param key
+	 * @return name of the member, null if the ring is empty
+	 */
+	public String getOwner(String key) {
+		if (ring.isEmpty()) {
+			return null;
+		}
+		Map.Entry<Long, String> entry = ring.ceilingEntry(hash(key));
+		if (entry==null) {
+			entry = ring.firstEntry();
+		}
+		return entry.getValue();
+	}
+
+	/**
+	 * @return names of the members, sorted
+	 */
+	public List<String> getMembers() {
+		return Collections.unmodifiableList(members);
+	}
+
+	/**
+	 * Returns the ring over the live willies, by name. A willie that stops
+	 * sending heartbeats drops off the ring, so its keys move to the others.
+	 *
+	 * @return the ring
+	 */
+	public static HashRing getWillieRing() {
+		List<String> names = new ArrayList<String>();
+		for(WillieProperties willie : HeartbeatMonitor.instance().getLiveWillies()) {
+			names.add(willie.getName());
+		}
+		Collections.sort(names);
+
+		HashRing current = willieRing;
+		if (current==null || !current.members.equals(names)) {
+			WillieServer server = WillieServer.instance();
+			int replicas = server==null ? DEFAULT_REPLICAS : server.getConfigurationInt("hashringreplicas", DEFAULT_REPLICAS);
+			current = new HashRing(names, replicas);
+			willieRing = current;
+		}
+		return current;
+	}
+
+	/**
+	 * Returns the position of a key on the ring, the first 8 bytes of its MD5
+	 */
+	private static long hash(String key) {
+		try {
+			byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes("UTF-8"));
+			long hash = 0;
+			for(int i=0; i<8; i++) {
+				hash = (hash << 8) | (digest[i] & 0xff);
+			}
+			return hash;
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("MD5 not available", e);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException("UTF-8 not available", e);
+		}
+	}
+}
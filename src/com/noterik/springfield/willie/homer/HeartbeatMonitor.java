@@ -0,0 +1,139 @@
+package com.noterik.springfield.willie.homer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+import com.noterik.springfield.willie.WillieServer;
+
+/**
+ * Keeps track of the lastseen heartbeats the willies write every 10 seconds,
+ * to tell which willies are alive. A heartbeat is timed on arrival with the
+ * local clock, the lastseen values read from smithers are only used until
+ * the first heartbeat of a willie comes in.
+ *
+ * A willie is dead when no heartbeat came in for heartbeattimeout seconds
+ * (default 60). Until this willie has been up that long, no willie is
+ * considered dead.
+ *
+ * @copyright Copyright: Noterik B.V. 2012
+ * @package com.noterik.springfield.willie.homer
+ * @access private
+ *
+ */
+public class HeartbeatMonitor implements MargeObserver {
+	/** The HeartbeatMonitor's log4j Logger */
+	private static final Logger LOG = Logger.getLogger(HeartbeatMonitor.class);
+
+	/** Uri of the willie nodes */
+	public static final String NODES_URI = "/domain/internal/service/willie/nodes";
+
+	/** Default time without heartbeat before a willie is dead (in seconds) */
+	private static final int DEFAULT_TIMEOUT = 60;
+
+	/** instance */
+	private static HeartbeatMonitor instance = new HeartbeatMonitor();
+
+	/** Arrival time of the last heartbeat, by ip number */
+	private Map<String, Long> heartbeats;
+
+	/** Time this monitor started */
+	private long started;
+
+	/**
+	 * Sole constructor
+	 */
+	private HeartbeatMonitor() {
+		heartbeats = new ConcurrentHashMap<String, Long>();
+		started = System.currentTimeMillis();
+	}
+
+	/**
+	 * Return HeartbeatMonitor instance
+	 *
+	 * @return HeartbeatMonitor instance
+	 */
+	public static HeartbeatMonitor instance() {
+		return instance;
+	}
+
+	/**
+	 * A node property changed, record it when it is a heartbeat
+	 */
+	public void remoteSignal(String from, String method, String url) {
+		String prefix = NODES_URI+"/";
+		if (!url.startsWith(prefix) || !url.endsWith("/properties/lastseen")) {
+			return;
+		}
+		String ipnumber = url.substring(prefix.length(), url.indexOf("/", prefix.length()));
+		if (heartbeats.put(ipnumber, System.currentTimeMillis())==null) {
+			LOG.debug("first heartbeat of willie "+ipnumber);
+		}
+	}
+
+	/**
+	 * @param mp	the willie
+	 * @return true if the willie has sent a heartbeat recently
+	 */
+	public boolean isAlive(WillieProperties mp) {
+		if (LazyHomer.myip.equals(mp.getIpNumber())) {
+			return true;
+		}
+		long now = System.currentTimeMillis();
+		long timeout = getTimeout();
+		if (now - started < timeout) {
+			return true;
+		}
+		Long heard = heartbeats.get(mp.getIpNumber());
+		long last = heard!=null ? heard.longValue() : mp.getLastSeen();
+		return now - last <= timeout;
+	}
+
+	/**
+	 * @param name	name of the willie
+	 * @return true if a known willie has this name and is alive
+	 */
+	public boolean isAlive(String name) {
+		for(WillieProperties mp : LazyHomer.getWillies()) {
+			if (name.equals(mp.getName())) {
+				return isAlive(mp);
+			}
+		}
+		// not a willie (anymore)
+		return System.currentTimeMillis() - started < getTimeout();
+	}
+
+	/**
+	 * @return the willies that are alive
+	 */
+	public List<WillieProperties> getLiveWillies() {
+		List<WillieProperties> live = new ArrayList<WillieProperties>();
+		for(WillieProperties mp : LazyHomer.getWillies()) {
+			if (isAlive(mp)) {
+				live.add(mp);
+			}
+		}
+		return live;
+	}
+
+	/**
+	 * @return number of willies that are alive and switched on, at least 1 (this one)
+	 */
+	public int getNumberOfActiveWillies() {
+		int active = 0;
+		for(WillieProperties mp : getLiveWillies()) {
+			if ("on".equals(mp.getStatus())) {
+				active++;
+			}
+		}
+		return Math.max(1, active);
+	}
+
+	private long getTimeout() {
+		WillieServer server = WillieServer.instance();
+		return (server==null ? DEFAULT_TIMEOUT : server.getConfigurationInt("heartbeattimeout", DEFAULT_TIMEOUT)) * 1000L;
+	}
+}
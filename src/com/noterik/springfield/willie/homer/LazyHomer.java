@@ -8,9 +8,11 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
 import java.net.MulticastSocket;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 
@@ -43,7 +45,9 @@ public class LazyHomer implements MargeObserver {
 	private static WillieServer serv;
 	private static Map<String, SmithersProperties> smithers = new HashMap<String, SmithersProperties>();
 	private static Map<String, WillieProperties> willies = new HashMap<String, WillieProperties>();
-	private static Map<String, MountProperties> mounts = null;
+	private static volatile Map<String, MountProperties> mounts = null;
+	private static volatile int mountsVersion = 0;
+	private static final String MOUNTS_URI = "/domain/internal/service/willie/mounts";
 	private static LazyHomer ins;
 
 	private int retryCounter;
@@ -70,6 +74,10 @@ public class LazyHomer implements MargeObserver {
 		
 		// lets watch for changes in the service nodes in smithers
 		marge.addObserver("/domain/internal/service/willie/nodes/"+myip, ins);
+		// and for changes in the mounts
+		LazyMarge.addObserver(MOUNTS_URI, ins);
+		// and for the heartbeats of the other willies
+		LazyMarge.addObserver(HeartbeatMonitor.NODES_URI, HeartbeatMonitor.instance());
 		marge.addTimedObserver("/smithers/downcheck",6,this);
 		new DiscoveryThread();	
 	}
@@ -148,6 +156,20 @@ public class LazyHomer implements MargeObserver {
 		return willies.size();
 	}
 	
+	/**
+	 * Returns all known willies, including this one
+	 */
+	public static List<WillieProperties> getWillies() {
+		return new ArrayList<WillieProperties>(willies.values());
+	}
+	
+	/**
+	 * Returns the known willie with an ip number
+	 */
+	public static WillieProperties getWillie(String ipnumber) {
+		return willies.get(ipnumber);
+	}
+	
 	private Boolean checkKnown() {
 		String xml = "<fsxml><properties><depth>1</depth></properties></fsxml>";
 		//String nodes = LazyHomer.sendRequest("GET","/domain/internal/service/willie/nodes",xml,"text/xml");
@@ -188,6 +210,20 @@ public class LazyHomer implements MargeObserver {
 					mp.setBatchFilesExtension(child.selectSingleNode("properties/batchfilesextension").getText());
 					boolean handleTriggers = child.selectSingleNode("properties/handletriggers") == null ? true : Boolean.parseBoolean(child.selectSingleNode("properties/handletriggers").getText());
 					mp.setHandleTriggers(handleTriggers);
+					Node lastseen = child.selectSingleNode("properties/lastseen");
+					if (lastseen!=null) {
+						try {
+							mp.setLastSeen(Long.parseLong(lastseen.getText().trim()));
+						} catch (NumberFormatException e) {
+							log.debug("LazyHomer : invalid lastseen for "+ipnumber);
+						}
+					}
+					
+					// keep all node properties as options, so tuning settings don't need their own field
+					for(Object item : ((Element)child.selectSingleNode("properties")).elements()) {
+						Element property = (Element) item;
+						mp.setOption(property.getName(), property.getText());
+					}
 
 					if (ipnumber.equals(myip)) {
 						foundmynode = true;
@@ -356,6 +392,9 @@ public class LazyHomer implements MargeObserver {
 					LazyHomer.send("INFO","/domain/internal/service/getname");
 				}
 			}
+		} else if (url.startsWith(MOUNTS_URI)) {
+			log.info("Mounts changed, reading them again");
+			readMounts();
 		} else {
 		// only one trigger is set for now so we know its for nodes :)
 			if (ins.checkKnown()) {
@@ -446,11 +485,21 @@ public class LazyHomer implements MargeObserver {
 		return mounts.get(name);
 	}
 	
-	private static void readMounts() {
-		mounts = new HashMap<String, MountProperties>();
+	/**
+	 * Returns the version of the mounts, it changes every time the mounts are read
+	 */
+	public static int getMountsVersion() {
+		return mountsVersion;
+	}
+	
+	private static synchronized void readMounts() {
+		Map<String, MountProperties> mounts = new HashMap<String, MountProperties>();
 		ServiceInterface smithers = ServiceManager.getService("smithers");
-		if (smithers==null) return;
-		String mountslist = smithers.get("/domain/internal/service/willie/mounts",null,null);
+		if (smithers==null) {
+			LazyHomer.mounts = mounts;
+			return;
+		}
+		String mountslist = smithers.get(MOUNTS_URI,null,null);
 		//String mountslist = LazyHomer.sendRequest("GET","/domain/internal/service/willie/mounts",null,null);
 		try { 
 			Document result = DocumentHelper.parseText(mountslist);
@@ -477,6 +526,8 @@ public class LazyHomer implements MargeObserver {
 		} catch (DocumentException e) {
 			log.info("LazyHomer: "+e.getMessage());
 		}
+		LazyHomer.mounts = mounts;
+		mountsVersion++;
 	}
 	
 	/**
@@ -5,7 +5,9 @@ import java.net.InetAddress;
 import java.net.MulticastSocket;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.apache.log4j.Logger;
 
@@ -18,7 +20,7 @@ public class LazyMarge extends Thread {
 	int errorcounter2 = 0;
 	private static final Logger LOG = Logger.getLogger(LazyMarge.class);
 	private static boolean running = false;
-	private static Map<String, MargeObserver> observers = new HashMap<String, MargeObserver>();
+	private static Map<String, List<MargeObserver>> observers = new HashMap<String, List<MargeObserver>>();
 	private static enum methods { GET,POST,PUT,DELETE,INFO,TRACE,LINK; }
 	private static MargeTimerThread timerthread = null;
 	MulticastSocket s = null;
@@ -35,7 +37,28 @@ public class LazyMarge extends Thread {
 	}
 	
 	public static void addObserver(String url,MargeObserver o) {
-		observers.put(url, o);
+		synchronized (observers) {
+			List<MargeObserver> list = observers.get(url);
+			if (list==null) {
+				list = new CopyOnWriteArrayList<MargeObserver>();
+				observers.put(url, list);
+			}
+			if (!list.contains(o)) {
+				list.add(o);
+			}
+		}
+	}
+	
+	public static void removeObserver(String url,MargeObserver o) {
+		synchronized (observers) {
+			List<MargeObserver> list = observers.get(url);
+			if (list!=null) {
+				list.remove(o);
+				if (list.isEmpty()) {
+					observers.remove(url);
+				}
+			}
+		}
 	}
 	
 	public static void addTimedObserver(String url,int counter,MargeObserver o) {
@@ -128,38 +151,46 @@ public class LazyMarge extends Thread {
 		String ourl = url;		
 		int pos = url.lastIndexOf("/");
 		while (pos!=-1) { // we need to walk up the tree to check
-			// only works for one entry now, daniel (no dubs in urls)
-			
-			// check for direct matches
-			Object obs = observers.get(url);
+			// check for direct matches, every observer of this url gets the signal
+			// with the full url so it can tell what changed below it
+			List<MargeObserver> obs = getObservers(url);
 			if (obs!=null) {
-				if (obs instanceof MargeObserver) {
-					((MargeObserver)obs).remoteSignal(from, method, url);
-				} // should also have a list
+				for (MargeObserver o : obs) {
+					o.remoteSignal(from, method, ourl);
+				}
 			}
-			
 
 			url = url.substring(0,pos);
 			pos = url.lastIndexOf("/");
 		}
 		
 		// more complex matches won't be found so we have to check them one by one
-		for (Iterator<String> i = observers.keySet().iterator(); i.hasNext();) {
+		Map<String, List<MargeObserver>> complex = new HashMap<String, List<MargeObserver>>();
+		synchronized (observers) {
+			for (Iterator<String> i = observers.keySet().iterator(); i.hasNext();) {
+				String key = i.next();
+				if (key.indexOf("*")!=-1) { // its a complex one so check
+					complex.put(key, observers.get(key));
+				}
+			}
+		}
+		for (Iterator<String> i = complex.keySet().iterator(); i.hasNext();) {
 			String key = i.next();
-			if (key.indexOf("*")!=-1) { // its a complex one so check
-				if (isObserverMatch(key,ourl)) {
-					Object obs = observers.get(key);
-					if (obs!=null) {
-						if (obs instanceof MargeObserver) {
-							((MargeObserver)obs).remoteSignal(from, method, ourl+","+key);
-						} // should also have a list
-					}
+			if (isObserverMatch(key,ourl)) {
+				for (MargeObserver o : complex.get(key)) {
+					o.remoteSignal(from, method, ourl+","+key);
 				}
 			}
 		}
 		
 	}
 	
+	private static List<MargeObserver> getObservers(String url) {
+		synchronized (observers) {
+			return observers.get(url);
+		}
+	}
+	
 	private boolean isObserverMatch(String key,String url) {
 		String[] keya= key.split("/");
 		String[] urla= url.split("/");
@@ -1,5 +1,8 @@
 package com.noterik.springfield.willie.homer;
 
+import java.util.HashMap;
+import java.util.Map;
+
 public class WillieProperties {
 	private String ipnumber;
 	private String name;
@@ -13,6 +16,8 @@ public class WillieProperties {
 	private String batchFilesPath;
 	private String batchFilesExtension;
 	private boolean handleTriggers;
+	private long lastseen = 0;
+	private Map<String, String> options = new HashMap<String, String>();
 	
 	public void setIpNumber(String i) {
 		ipnumber = i;
@@ -62,6 +67,14 @@ public class WillieProperties {
 		handleTriggers = t;
 	}
 	
+	public void setLastSeen(long l) {
+		lastseen = l;
+	}
+	
+	public void setOption(String name, String value) {
+		options.put(name, value);
+	}
+	
 	public String getName() {
 		return name;
 	}
@@ -110,4 +123,16 @@ public class WillieProperties {
 	public boolean getHandleTriggers() {
 		return handleTriggers;
 	}
+	
+	public long getLastSeen() {
+		return lastseen;
+	}
+	
+	public String getOption(String name) {
+		return options.get(name);
+	}
+	
+	public Map<String, String> getOptions() {
+		return options;
+	}
 }
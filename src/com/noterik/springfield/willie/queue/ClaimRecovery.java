@@ -0,0 +1,209 @@
+package com.noterik.springfield.willie.queue;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.springfield.mojo.interfaces.ServiceInterface;
+import org.springfield.mojo.interfaces.ServiceManager;
+
+import com.noterik.springfield.willie.WillieServer;
+import com.noterik.springfield.willie.TF.JobJournal;
+import com.noterik.springfield.willie.homer.HeartbeatMonitor;
+import com.noterik.springfield.willie.homer.LazyHomer;
+import com.noterik.springfield.willie.homer.WillieProperties;
+import com.noterik.springfield.willie.queue.dist.JobLease;
+import com.noterik.springfield.willie.util.NameEncoding;
+
+/**
+ * Releases the claims of willies that stopped sending heartbeats, so their
+ * jobs are picked up again. A claim is the transcoder, lease or winning
+ * offer status property of a job. Once after startup, the claims of this
+ * willie on jobs it isn't working on, left over from before a restart, are
+ * released as well. Owners that aren't known willies are taken to be alive.
+ *
+ * Every claimrecoveryinterval seconds (default 60) the willies are checked,
+ * the indexed jobs are only scanned when a willie died since the last check,
+ * so a healthy cluster, or one with a willie that stays down, doesn't pay
+ * for it. Only the claim properties are removed, the rest of the status is
+ * kept.
+ *
+ * @copyright Copyright: Noterik B.V. 2012
+ * @package com.noterik.springfield.willie.queue
+ * @access private
+ *
+ */
+public class ClaimRecovery {
+	/** The ClaimRecovery's log4j Logger */
+	private static final Logger LOG = Logger.getLogger(ClaimRecovery.class);
+
+	/** Default time between checks (in seconds) */
+	private static final int DEFAULT_INTERVAL = 60;
+
+	/** The queue manager whose jobs are checked */
+	private QueueManager qm;
+
+	/** Number of jobs whose claim was released */
+	private AtomicLong recovered;
+
+	/** Set until the first check ran */
+	private volatile boolean firstScan = true;
+
+	/** Names of the willies that were dead at the last check */
+	private Set<String> dead = new HashSet<String>();
+
+	/** Runs the checks */
+	private ScheduledExecutorService executor;
+
+	/**
+	 * Constructor
+	 *
+	 * @param qm	the queue manager whose jobs are checked
+	 */
+	public ClaimRecovery(QueueManager qm) {
+		this.qm = qm;
+		recovered = new AtomicLong();
+	}
+
+	/**
+	 * Starts checking
+	 */
+	public void start() {
+		WillieServer server = WillieServer.instance();
+		int interval = server==null ? DEFAULT_INTERVAL : server.getConfigurationInt("claimrecoveryinterval", DEFAULT_INTERVAL);
+		executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "willie-claim-recovery");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		executor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					scan();
+				} catch(Exception e) {
+					LOG.error("Claim recovery failed",e);
+				}
+			}
+		}, interval, interval, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Shutdown
+	 */
+	public void destroy() {
+		if (executor!=null) {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * @return number of jobs whose claim was released
+	 */
+	public long getRecoveredJobs() {
+		return recovered.get();
+	}
+
+	/**
+	 * Releases the stale claims on the indexed jobs
+	 */
+	public synchronized void scan() {
+		WillieProperties mp = LazyHomer.getMyWillieProperties();
+		if (mp==null) {
+			return;
+		}
+		String myname = firstScan ? mp.getName() : null;
+
+		// willies that died since the last check
+		HeartbeatMonitor heartbeats = HeartbeatMonitor.instance();
+		Set<String> nowDead = new HashSet<String>();
+		for(WillieProperties willie : LazyHomer.getWillies()) {
+			if (!heartbeats.isAlive(willie)) {
+				nowDead.add(willie.getName());
+			}
+		}
+		Set<String> newlyDead = new HashSet<String>(nowDead);
+		newlyDead.removeAll(dead);
+		dead = nowDead;
+		if (!firstScan && newlyDead.isEmpty()) {
+			return;
+		}
+		firstScan = false;
+
+		List<Job> jobs = qm.getIndexedJobs();
+		for(Job job : jobs) {
+			// our own workers are on it, or will continue it after the restart
+			if (qm.isClaimed(job.getUri()) || JobJournal.instance().isResumable(job.getUri())) {
+				continue;
+			}
+			Map<String,String> status = job.getStatusPropertyMap();
+			if (status==null) {
+				continue;
+			}
+			String owner = getOwner(status);
+			if (owner!=null && (owner.equals(myname) || newlyDead.contains(owner))) {
+				release(job, owner, status);
+			}
+		}
+	}
+
+	/**
+	 * Returns the owner of the claim on a job
+	 *
+	 * @return the owner, null if the job is not claimed
+	 */
+	private String getOwner(Map<String,String> status) {
+		if (status.get("transcoder")!=null) {
+			return NameEncoding.decode(status.get("transcoder"));
+		}
+		JobLease lease = JobLease.parse(status.get(JobLease.PROPERTY));
+		if (lease!=null) {
+			return lease.getOwner();
+		}
+		return getWinningOffer(status);
+	}
+
+	private String getWinningOffer(Map<String,String> status) {
+		String winner = null;
+		int maxscore = -1;
+		for(Map.Entry<String,String> offer : status.entrySet()) {
+			if (offer.getKey().indexOf("offer_")==0) {
+				try {
+					int score = Integer.parseInt(offer.getValue().trim());
+					if (score>maxscore) {
+						maxscore = score;
+						winner = NameEncoding.decode(offer.getKey().substring(6));
+					}
+				} catch (NumberFormatException e) {
+					// not an offer
+				}
+			}
+		}
+		return winner;
+	}
+
+	/**
+	 * Removes the claim properties of a job, so every willie can claim it
+	 * again. The offers of all willies go, so they all make a new offer.
+	 */
+	private void release(Job job, String owner, Map<String,String> status) {
+		ServiceInterface smithers = ServiceManager.getService("smithers");
+		if (smithers==null) return;
+		String properties = job.getUri()+"/status/1/properties/";
+		for(String property : status.keySet()) {
+			if (property.equals("transcoder") || property.equals(JobLease.PROPERTY) || property.startsWith("offer_") || property.startsWith(JobLease.CLAIM_PREFIX)) {
+				smithers.delete(properties+property, null, null);
+			}
+		}
+		recovered.incrementAndGet();
+		LOG.info("released job "+job.getUri()+" claimed by "+owner+" that is no longer working on it");
+	}
+}
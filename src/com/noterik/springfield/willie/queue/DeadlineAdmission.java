@@ -0,0 +1,209 @@
+package com.noterik.springfield.willie.queue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+import com.noterik.springfield.willie.WillieServer;
+import com.noterik.springfield.willie.TF.TranscodeStatistics;
+import com.noterik.springfield.willie.TF.TranscoderWorker;
+import com.noterik.springfield.willie.homer.HashRing;
+import com.noterik.springfield.willie.homer.HeartbeatMonitor;
+import com.noterik.springfield.willie.homer.LazyHomer;
+import com.noterik.springfield.willie.homer.WillieProperties;
+
+/**
+ * Tells whether the jobs with a deadline can be done in time at the current
+ * capacity, in the admission status property of the job (ok or late).
+ *
+ * The indexed jobs are laid out in the order they will be picked up over
+ * the active workers of all live willies, as each willie reports them in
+ * the activeworkers property of its node, each job taking the estimated
+ * time of a transcode: its media duration at the measured encode speed, or
+ * the average duration of a transcode. The check runs at most every
+ * admissioninterval seconds. Only the owner of a job on the hash ring
+ * writes the property, and only when it changes, so the willies don't
+ * overwrite each other's verdicts.
+ *
+ * @copyright Copyright: Noterik B.V. 2012
+ * @package com.noterik.springfield.willie.queue
+ * @access private
+ *
+ */
+public class DeadlineAdmission {
+	/** The DeadlineAdmission's log4j Logger */
+	private static final Logger LOG = Logger.getLogger(DeadlineAdmission.class);
+
+	/** Name of the status property with the feedback */
+	public static final String PROPERTY = "admission";
+	public static final String OK = "ok";
+	public static final String LATE = "late";
+
+	/** Default time between checks (in seconds) */
+	private static final int DEFAULT_INTERVAL = 30;
+
+	/** Default estimate of a transcode when nothing was measured yet (in seconds) */
+	private static final int DEFAULT_ESTIMATE = 60;
+
+	/** Feedback given by job uri */
+	private Map<String, String> reported;
+
+	/** Time of the last check */
+	private volatile long lastCheck = 0;
+
+	/** Number of jobs that will miss their deadline */
+	private volatile int lateJobs = 0;
+
+	/**
+	 * Sole constructor
+	 */
+	public DeadlineAdmission() {
+		reported = new ConcurrentHashMap<String, String>();
+	}
+
+	/**
+	 * Checks the deadlines of the scheduled jobs, unless that was done recently
+	 *
+	 * @param schedulers	schedulers of all domains
+	 */
+	public synchronized void check(Collection<JobScheduler> schedulers) {
+		WillieServer server = WillieServer.instance();
+		long now = System.currentTimeMillis();
+		if (now - lastCheck < server.getConfigurationInt("admissioninterval", DEFAULT_INTERVAL) * 1000L) {
+			return;
+		}
+		lastCheck = now;
+
+		// all jobs in the order they will be picked up
+		final Map<String, Long> ranks = new HashMap<String, Long>();
+		Map<String, Long> deadlines = new HashMap<String, Long>();
+		List<Job> jobs = new ArrayList<Job>();
+		boolean any = false;
+		for(JobScheduler scheduler : schedulers) {
+			for(Job job : scheduler) {
+				long deadline = scheduler.getDeadline(job.getUri());
+				ranks.put(job.getUri(), scheduler.getRank(job.getUri()));
+				deadlines.put(job.getUri(), deadline);
+				jobs.add(job);
+				any |= deadline > 0;
+			}
+		}
+		if (!any) {
+			reported.clear();
+			lateJobs = 0;
+			return;
+		}
+		Collections.sort(jobs, new Comparator<Job>() {
+			public int compare(Job j1, Job j2) {
+				return ranks.get(j1.getUri()).compareTo(ranks.get(j2.getUri()));
+			}
+		});
+
+		// time every worker becomes free
+		int capacity = getCapacity(server);
+		WillieProperties mp = LazyHomer.getMyWillieProperties();
+		String myname = mp==null ? null : mp.getName();
+		HashRing ring = HashRing.getWillieRing();
+		PriorityQueue<Long> workers = new PriorityQueue<Long>();
+		for(int i=0; i<capacity; i++) {
+			workers.add(now);
+		}
+
+		long defaultEstimate = server.getConfigurationInt("admissionestimate", DEFAULT_ESTIMATE) * 1000L;
+		Set<String> checked = new HashSet<String>();
+		int late = 0;
+		for(Job job : jobs) {
+			long finish = workers.poll() + getEstimate(job, defaultEstimate);
+			workers.add(finish);
+
+			long deadline = deadlines.get(job.getUri());
+			if (deadline <= 0) {
+				continue;
+			}
+			checked.add(job.getUri());
+			String admission = finish <= deadline ? OK : LATE;
+			if (LATE.equals(admission)) {
+				late++;
+			}
+			if (myname==null || !myname.equals(ring.getOwner(job.getUri()))) {
+				// another willie gives the feedback on this job
+				continue;
+			}
+			if (!admission.equals(reported.get(job.getUri()))) {
+				reported.put(job.getUri(), admission);
+				job.setStatusProperty(PROPERTY, admission);
+				if (LATE.equals(admission)) {
+					LOG.warn("job "+job.getUri()+" will miss its deadline by "+(finish-deadline)/1000+" seconds at the current capacity of "+capacity+" workers");
+				}
+			}
+		}
+		reported.keySet().retainAll(checked);
+		lateJobs = late;
+	}
+
+	/**
+	 * @return number of jobs that will miss their deadline at the last check
+	 */
+	public int getLateJobs() {
+		return lateJobs;
+	}
+
+	/**
+	 * Returns the number of active workers of all live willies that are on
+	 */
+	private static int getCapacity(WillieServer server) {
+		int capacity = 0;
+		for(WillieProperties willie : HeartbeatMonitor.instance().getLiveWillies()) {
+			if (LazyHomer.myip.equals(willie.getIpNumber())) {
+				capacity += Math.max(1, server.getNumberOfActiveWorkers());
+			} else if ("on".equals(willie.getStatus())) {
+				capacity += getReportedWorkers(willie);
+			}
+		}
+		return Math.max(1, capacity);
+	}
+
+	/**
+	 * Returns the active workers a willie reported, or else its configured
+	 * number of workers
+	 */
+	private static int getReportedWorkers(WillieProperties willie) {
+		String[] values = {willie.getOption("activeworkers"), willie.getNumberOfWorkers()};
+		for(String value : values) {
+			if (value!=null) {
+				try {
+					return Math.max(1, Integer.parseInt(value.trim()));
+				} catch(NumberFormatException e) {
+					// try the next one
+				}
+			}
+		}
+		return 1;
+	}
+
+	/**
+	 * Estimates the time a transcode of a job takes
+	 *
+	 * @return estimate in milliseconds
+	 */
+	private static long getEstimate(Job job, long defaultEstimate) {
+		TranscodeStatistics statistics = TranscodeStatistics.instance();
+		double duration = TranscoderWorker.getMediaDuration(job);
+		double speed = statistics.getEncodeSpeed();
+		if (duration > 0 && speed > 0) {
+			return (long) (duration / speed * 1000);
+		}
+		long average = statistics.getAverageDuration();
+		return average > 0 ? average : defaultEstimate;
+	}
+}
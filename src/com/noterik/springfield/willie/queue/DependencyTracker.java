@@ -0,0 +1,283 @@
+package com.noterik.springfield.willie.queue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.log4j.Logger;
+import org.dom4j.Document;
+import org.dom4j.DocumentException;
+import org.dom4j.DocumentHelper;
+import org.dom4j.Node;
+import org.springfield.mojo.ftp.URIParser;
+import org.springfield.mojo.interfaces.ServiceInterface;
+import org.springfield.mojo.interfaces.ServiceManager;
+
+import com.noterik.springfield.willie.WillieServer;
+import com.noterik.springfield.willie.homer.LazyMarge;
+import com.noterik.springfield.willie.homer.MargeObserver;
+
+/**
+ * Parks the jobs that use another raw (the useraw property) until that raw
+ * is done. The status of the raw is read once when the job is parked, after
+ * that only when marge signals a change of the status of the raw. Those
+ * reads run on a separate thread, never on the marge thread that signals
+ * them. When the raw is done the jobs are released and the workers are
+ * woken up.
+ *
+ * @copyright Copyright: Noterik B.V. 2012
+ * @package com.noterik.springfield.willie.queue
+ * @access private
+ *
+ */
+public class DependencyTracker implements MargeObserver {
+	/** The DependencyTracker's log4j Logger */
+	private static final Logger LOG = Logger.getLogger(DependencyTracker.class);
+
+	/** Status of a raw that can be used */
+	private static final String DONE = "done";
+
+	/** Parked jobs by the uri of the raw they wait for */
+	private Map<String, Set<String>> parked;
+
+	/** Uri of the raw by parked job */
+	private Map<String, String> dependencies;
+
+	/** Jobs whose raw is done */
+	private Set<String> released;
+
+	/** Raws whose status is about to be read */
+	private Set<String> checking;
+
+	/** Reads the status of signalled raws */
+	private ExecutorService executor;
+
+	/**
+	 * Sole constructor
+	 */
+	public DependencyTracker() {
+		parked = new HashMap<String, Set<String>>();
+		dependencies = new HashMap<String, String>();
+		released = new HashSet<String>();
+		checking = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "willie-dependency-tracker");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Shutdown
+	 */
+	public void destroy() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Returns whether a job can be claimed, parks it when it waits for a raw
+	 *
+	 * @param job
+	 * @return true if the job doesn't use a raw or the raw is done
+	 */
+	public boolean isSatisfied(Job job) {
+		String useraw = job.getProperty("useraw");
+		if (useraw==null) {
+			return true;
+		}
+		String jobUri = job.getUri();
+		synchronized (this) {
+			if (released.contains(jobUri)) {
+				return true;
+			}
+			if (dependencies.containsKey(jobUri)) {
+				return false;
+			}
+		}
+
+		String referid = job.getProperty("referid");
+		if (referid==null) {
+			LOG.debug("job "+jobUri+" uses raw "+useraw+" but has no referid");
+			return false;
+		}
+		String rawUri = URIParser.getPreviousUri(referid)+"/"+useraw;
+
+		// subscribe before reading, so a change in between is not missed
+		park(jobUri, rawUri);
+		if (isDone(rawUri)) {
+			release(rawUri);
+			synchronized (this) {
+				return released.contains(jobUri);
+			}
+		}
+		LOG.debug("parked job "+jobUri+" until "+rawUri+" is done");
+		return false;
+	}
+
+	/**
+	 * Forgets a job, for jobs that are gone
+	 *
+	 * @param jobUri
+	 */
+	public void forget(String jobUri) {
+		String rawUri;
+		synchronized (this) {
+			released.remove(jobUri);
+			rawUri = dependencies.remove(jobUri);
+			if (rawUri==null) {
+				return;
+			}
+			Set<String> jobs = parked.get(rawUri);
+			if (jobs!=null) {
+				jobs.remove(jobUri);
+				if (!jobs.isEmpty()) {
+					return;
+				}
+				parked.remove(rawUri);
+			}
+		}
+		LazyMarge.removeObserver(rawUri, this);
+	}
+
+	/**
+	 * Reads the status of all raws jobs wait for, in case a signal was missed
+	 */
+	public void recheck() {
+		List<String> rawUris;
+		synchronized (this) {
+			rawUris = new ArrayList<String>(parked.keySet());
+		}
+		for(String rawUri : rawUris) {
+			if (isDone(rawUri)) {
+				release(rawUri);
+			}
+		}
+	}
+
+	/**
+	 * @return number of parked jobs
+	 */
+	public synchronized int getNumberOfParkedJobs() {
+		return dependencies.size();
+	}
+
+	/**
+	 * Handles changes of the status of the raws the parked jobs wait for
+	 */
+	public void remoteSignal(String from, String method, String url) {
+		if (method.equals("DELETE")) {
+			return;
+		}
+		String rawUri = null;
+		synchronized (this) {
+			for(String uri : parked.keySet()) {
+				// other properties, like the progress, don't matter
+				if (url.equals(uri) || url.equals(uri+"/properties") || url.equals(uri+"/properties/status")) {
+					rawUri = uri;
+					break;
+				}
+			}
+		}
+		if (rawUri!=null) {
+			check(rawUri);
+		}
+	}
+
+	/**
+	 * Reads the status of a raw on the executor, at most one read per raw
+	 * is pending
+	 */
+	private void check(final String rawUri) {
+		if (!checking.add(rawUri)) {
+			return;
+		}
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					checking.remove(rawUri);
+					try {
+						if (isDone(rawUri)) {
+							release(rawUri);
+						}
+					} catch(Exception e) {
+						LOG.error("Could not check raw "+rawUri,e);
+					}
+				}
+			});
+		} catch(RejectedExecutionException e) {
+			// shutting down
+			checking.remove(rawUri);
+		}
+	}
+
+	private void park(String jobUri, String rawUri) {
+		synchronized (this) {
+			dependencies.put(jobUri, rawUri);
+			Set<String> jobs = parked.get(rawUri);
+			if (jobs!=null) {
+				jobs.add(jobUri);
+				return;
+			}
+			jobs = new HashSet<String>();
+			jobs.add(jobUri);
+			parked.put(rawUri, jobs);
+		}
+		LazyMarge.addObserver(rawUri, this);
+	}
+
+	private void release(String rawUri) {
+		synchronized (this) {
+			Set<String> jobs = parked.remove(rawUri);
+			if (jobs==null) {
+				return;
+			}
+			for(String jobUri : jobs) {
+				dependencies.remove(jobUri);
+				released.add(jobUri);
+			}
+			LOG.info("raw "+rawUri+" is done, released "+jobs.size()+" jobs");
+		}
+		LazyMarge.removeObserver(rawUri, this);
+
+		// the released jobs can be picked up now
+		WillieServer server = WillieServer.instance();
+		if (server!=null) {
+			server.wakeWorkers();
+		}
+	}
+
+	/**
+	 * Reads the status of a raw
+	 *
+	 * @param rawUri
+	 * @return true if the raw is done
+	 */
+	private boolean isDone(String rawUri) {
+		ServiceInterface smithers = ServiceManager.getService("smithers");
+		if (smithers==null) return false;
+		String xml = "<fsxml><properties><depth>1</depth></properties></fsxml>";
+		String response = smithers.get(rawUri, xml, "text/xml");
+		if (response==null) {
+			return false;
+		}
+		try {
+			Document doc = DocumentHelper.parseText(response);
+			Node node = doc.selectSingleNode("//properties/status");
+			return node!=null && node.getText().trim().toLowerCase().equals(DONE);
+		} catch (DocumentException e) {
+			LOG.error("Could not parse response from smithers "+response);
+		}
+		return false;
+	}
+}
@@ -17,6 +17,8 @@ import org.springfield.mojo.ftp.URIParser;
 import org.springfield.mojo.interfaces.ServiceInterface;
 import org.springfield.mojo.interfaces.ServiceManager;
 
+import com.noterik.springfield.willie.queue.dist.JobStatusReader;
+
 /**
  * Container for jobs
  *
@@ -27,7 +29,6 @@ import org.springfield.mojo.interfaces.ServiceManager;
  * @access private
  * @version $Id: Job.java,v 1.31 2012-08-02 04:16:38 daniel Exp $
  *
- * TODO: optimize getOriginal and getInput (audio xml is requested twice)
  */
 public class Job {
 	/** the Job's log4j logger */
@@ -88,6 +89,16 @@ public class Job {
 	 */
 	private boolean validJob = false;
 	
+	/**
+	 * Parent XML has been parsed
+	 */
+	private boolean resolved = false;
+	
+	/**
+	 * Input has already been downloaded to the temporary directory
+	 */
+	private volatile boolean inputStaged = false;
+	
 	
 	/**
 	 * Default constructor
@@ -145,14 +156,38 @@ public class Job {
 		validJob = true;
 		originalProperties = new HashMap<String,String>();
 		
-		// parse parent XML
-		parseParentXML();
+		// the parent XML is only parsed once the job is claimed, see resolve()
+	}
+	
+	/**
+	 * Resolves the original, input and output of this job from the parent
+	 * XML. Until then the job only holds what was listed in the queue (id,
+	 * mount, extension, referid, useraw, ...), which is all the decision
+	 * engines need. When the parent can't be read right now the job stays
+	 * unresolved, so it can be resolved again later.
+	 * 
+	 * @return true if the job is still valid after resolving
+	 */
+	public synchronized boolean resolve() {
+		if (!resolved && validJob) {
+			resolved = parseParentXML();
+		}
+		return validJob;
+	}
+	
+	/**
+	 * @return true if the original, input and output have been resolved
+	 */
+	public boolean isResolved() {
+		return resolved;
 	}
 	
 	/**
 	 * Parse the XML of the parent URI to determine original and input audio
+	 * 
+	 * @return false if a document could not be read right now
 	 */
-	private void parseParentXML() {
+	private boolean parseParentXML() {
 		log.debug("parsing parent XML for job "+uri);
 			
 		// get some variables
@@ -160,93 +195,96 @@ public class Job {
 		String parentURI = URIParser.getParentUri(referid);
 		String useraw = getProperty("useraw");
 		
-		// get all the raw audios
-		log.debug("sending get request to: " + parentURI);
-		
-		ServiceInterface smithers = ServiceManager.getService("smithers");
-		if (smithers==null) return;
-		String response = smithers.get(parentURI, null, null);
-
-		log.debug("response was: " + response);
+		// get all the raw audios, the parent is shared with the other jobs of this audio
+		ParentDocumentCache cache = ParentDocumentCache.instance();
+		Document doc = cache.get(parentURI);
+		if (doc==null) return false;
 		
 		// parse document
 		try {
-			Document doc = DocumentHelper.parseText(response);
-			
-			// determine original
-			Node oNode = doc.selectSingleNode("//rawaudio/properties[original='true']");
-			if(oNode!=null) {
-				List<Node> children = oNode.selectNodes("child::*");
-				Node child;
-				for(Iterator<Node> iter = children.iterator(); iter.hasNext(); ) {
-					child = iter.next();				
-					originalProperties.put(child.getName(), child.getText());
-				}
+			// the document is shared with other jobs, parse it one job at a time
+			synchronized (doc) {
+				// determine original
+				Node oNode = doc.selectSingleNode("//rawaudio/properties[original='true']");
+				if(oNode!=null) {
+					List<Node> children = oNode.selectNodes("child::*");
+					Node child;
+					for(Iterator<Node> iter = children.iterator(); iter.hasNext(); ) {
+						child = iter.next();				
+						originalProperties.put(child.getName(), child.getText());
+					}
 				
-				String extension = oNode.valueOf("extension");
-				String filename = oNode.valueOf("filename");
+					String extension = oNode.valueOf("extension");
+					String filename = oNode.valueOf("filename");
 
-				if (filename != null && !filename.equals("")) {
-					//check if filename was set, use that
-					if (filename.indexOf("/") > -1) {							
-						original = filename.substring(0, filename.lastIndexOf("/")+1);
-						originalFilename = filename.substring(filename.lastIndexOf("/")+1);
+					if (filename != null && !filename.equals("")) {
+						//check if filename was set, use that
+						if (filename.indexOf("/") > -1) {							
+							original = filename.substring(0, filename.lastIndexOf("/")+1);
+							originalFilename = filename.substring(filename.lastIndexOf("/")+1);
+						} else {
+							original = parentURI + File.separator + "rawaudio" + File.separator + oNode.getParent().valueOf("@id") + File.separator;
+							originalFilename = filename;
+						}							
 					} else {
-						original = parentURI + File.separator + "rawaudio" + File.separator + oNode.getParent().valueOf("@id") + File.separator;
-						originalFilename = filename;
-					}							
-				} else {
-					// construct original path and filename
-					original = parentURI + "/rawaudio/" + oNode.getParent().valueOf("@id");
-					originalFilename = "raw." + extension;
-				}
+						// construct original path and filename
+						original = parentURI + "/rawaudio/" + oNode.getParent().valueOf("@id");
+						originalFilename = "raw." + extension;
+					}
 				 
-				//set output uri if this was set in the requested raw audio
-				if (properties.containsKey("filename") && !properties.get("filename").equals("")) {
-					String requestedFilename = properties.get("filename");	
-					if (requestedFilename.indexOf("/") > -1) {
-						outputURI = requestedFilename.substring(0, requestedFilename.lastIndexOf("/")+1);
-						outputFilename = requestedFilename.substring(requestedFilename.lastIndexOf("/")+1);
-					} else {
-						outputURI = referid+File.separator;
-						outputFilename = requestedFilename;
- 					}
-				} 				
-			} else {
-				oNode = doc.selectSingleNode("//rawaudio/properties[contains(original,'/domain/')]");
-				if (oNode != null) {
-					//get original refered audio for original path and filename
-					String resp = smithers.get(oNode.valueOf("original"), null, null);
-					Document oDoc = DocumentHelper.parseText(resp);
-					String filename = oDoc.selectSingleNode("//rawaudio/properties/filename") == null ? "" : oDoc.selectSingleNode("//rawaudio/properties/filename").getText();
-					original = filename.substring(0, filename.lastIndexOf("/")+1);
-					originalFilename = filename.substring(filename.lastIndexOf("/")+1);
-
-					filename = doc.selectSingleNode("//rawaudio/properties/filename") == null ? "raw." + oNode.valueOf("extension") : doc.selectSingleNode("//rawaudio/properties/filename").getText();
-					outputURI = filename.substring(0, filename.lastIndexOf("/")+1);
-					outputFilename = filename.substring(filename.lastIndexOf("/")+1);
+					//set output uri if this was set in the requested raw audio
+					if (properties.containsKey("filename") && !properties.get("filename").equals("")) {
+						String requestedFilename = properties.get("filename");	
+						if (requestedFilename.indexOf("/") > -1) {
+							outputURI = requestedFilename.substring(0, requestedFilename.lastIndexOf("/")+1);
+							outputFilename = requestedFilename.substring(requestedFilename.lastIndexOf("/")+1);
+						} else {
+							outputURI = referid+File.separator;
+							outputFilename = requestedFilename;
+	 					}
+					} 				
 				} else {
-					log.debug("could not find original");
+					oNode = doc.selectSingleNode("//rawaudio/properties[contains(original,'/domain/')]");
+					if (oNode != null) {
+						//get original refered audio for original path and filename
+						Document oDoc = cache.get(oNode.valueOf("original"));
+						if (oDoc==null) {
+							log.info("could not read original "+oNode.valueOf("original")+" of job "+uri+", resolving it later");
+							return false;
+						}
+						String filename;
+						synchronized (oDoc) {
+							filename = oDoc.selectSingleNode("//rawaudio/properties/filename") == null ? "" : oDoc.selectSingleNode("//rawaudio/properties/filename").getText();
+						}
+						original = filename.substring(0, filename.lastIndexOf("/")+1);
+						originalFilename = filename.substring(filename.lastIndexOf("/")+1);
+
+						filename = doc.selectSingleNode("//rawaudio/properties/filename") == null ? "raw." + oNode.valueOf("extension") : doc.selectSingleNode("//rawaudio/properties/filename").getText();
+						outputURI = filename.substring(0, filename.lastIndexOf("/")+1);
+						outputFilename = filename.substring(filename.lastIndexOf("/")+1);
+					} else {
+						log.debug("could not find original");
+					}
 				}
-			}
 			
-			// determine input URI and filename
-			if(useraw==null) {
-				inputURI = original;
-				inputFilename = originalFilename;
-			} else {
-				Node inpNode = doc.selectSingleNode("//rawaudio[@id='"+useraw+"']/properties");
-				if(inpNode!=null) {
-					String filename = inpNode.valueOf("filename");
+				// determine input URI and filename
+				if(useraw==null) {
+					inputURI = original;
+					inputFilename = originalFilename;
+				} else {
+					Node inpNode = doc.selectSingleNode("//rawaudio[@id='"+useraw+"']/properties");
+					if(inpNode!=null) {
+						String filename = inpNode.valueOf("filename");
 					
-					if (filename != null && !filename.equals("")) {
-						//check if filename was set, use that
-						inputURI = filename.substring(0, filename.lastIndexOf("/")+1);
-						inputFilename = filename.substring(filename.lastIndexOf("/")+1);
-					} else {
-						// construct original path and filename
-						inputURI = parentURI + "/rawaudio/" + inpNode.getParent().valueOf("@id");
-						inputFilename = "raw." + inpNode.valueOf("extension");
+						if (filename != null && !filename.equals("")) {
+							//check if filename was set, use that
+							inputURI = filename.substring(0, filename.lastIndexOf("/")+1);
+							inputFilename = filename.substring(filename.lastIndexOf("/")+1);
+						} else {
+							// construct original path and filename
+							inputURI = parentURI + "/rawaudio/" + inpNode.getParent().valueOf("@id");
+							inputFilename = "raw." + inpNode.valueOf("extension");
+						}
 					}
 				}
 			}
@@ -257,7 +295,23 @@ public class Job {
 		
 		log.debug("Result of parsing parent - original: "+original+", originalFilename: "+originalFilename+", inputURI: "+inputURI+", inputFilename: "+inputFilename);
 		log.debug("Result of parsing parent - original: "+original+", originalFilename: "+originalFilename+", inputURI: "+inputURI+", inputFilename: "+inputFilename);
+		return true;
+	}
 
+	/**
+	 * Returns what this job has in common with the other jobs of the same
+	 * audio that read the same input. Jobs with the same key can be
+	 * transcoded in one go.
+	 * 
+	 * @return the key, null if the job has no referid
+	 */
+	public String getSiblingKey() {
+		String referid = getProperty("referid");
+		if (referid==null) {
+			return null;
+		}
+		String useraw = getProperty("useraw");
+		return URIParser.getParentUri(referid) + (useraw==null ? "" : "/rawaudio/"+useraw);
 	}
 
 	/**
@@ -453,6 +507,14 @@ public class Job {
 		return results;
 	}
 
+	/**
+	 * Returns all status properties in one request
+	 * 
+	 * @return the status properties by name, null if there was an error
+	 */
+	public Map<String,String> getStatusPropertyMap() {
+		return JobStatusReader.read(ServiceManager.getService("smithers"), uri);
+	}
 	
 	public void setStatusProperty(String property, String value) {
 		// set status message
@@ -468,4 +530,15 @@ public class Job {
 	public boolean isValidJob() {
 		return validJob;
 	}
+	
+	/**
+	 * @return true if the input has already been downloaded to the temporary directory
+	 */
+	public boolean isInputStaged() {
+		return inputStaged;
+	}
+	
+	public void setInputStaged(boolean inputStaged) {
+		this.inputStaged = inputStaged;
+	}
 }
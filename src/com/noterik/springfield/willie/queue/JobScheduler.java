@@ -0,0 +1,357 @@
+package com.noterik.springfield.willie.queue;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.noterik.springfield.willie.TF.CostEstimator;
+import com.noterik.springfield.willie.tools.TFHelper;
+
+/**
+ * Orders the jobs of all queues on priority and age.
+ *
+ * The rank of a job is the time it was first seen minus a bonus for the
+ * priority of its queue. A job that has waited one aging interval longer
+ * ranks the same as a job one priority level higher, so low priority jobs
+ * are promoted over time and can't be starved. Since the rank of a job never
+ * changes the jobs are kept in a sorted set, and selecting the next job is
+ * O(log n) instead of a sort and full scan per request.
+ *
+ * In edf mode the rank is the deadline of the job, earliest deadline first.
+ * The deadline is the deadline property of the job, or the deadline of its
+ * queue after the job arrived. Jobs without a deadline are due a slack time
+ * after they arrived for a high priority, twice that for medium and three
+ * times for low, so their priorities are still honored.
+ *
+ * In sejf mode (shortest expected job first) the estimated time of the
+ * transcode is added to the priority rank, up to a starvation bound. Short
+ * jobs overtake long ones, but a job that waited longer than the bound goes
+ * before every job that arrived after it. The estimate is made once, when the
+ * job is first scheduled. A job isn't resolved for it, a job that isn't
+ * resolved yet is estimated from the filesize and duration the index has of
+ * it, or else gets the average cost.
+ *
+ * @copyright Copyright: Noterik B.V. 2012
+ * @package com.noterik.springfield.willie.queue
+ * @access private
+ *
+ */
+public class JobScheduler implements Iterable<Job> {
+	/** The JobScheduler's log4j Logger */
+	private static final Logger LOG = Logger.getLogger(JobScheduler.class);
+
+	/** Scheduling modes */
+	public static final String MODE_PRIORITY = "priority";
+	public static final String MODE_EDF = "edf";
+	public static final String MODE_SEJF = "sejf";
+
+	/** Aging interval used when aging is disabled, large enough to never promote a job */
+	private static final long NO_AGING = Long.MAX_VALUE / (4 * Queue.PRIORITY_HIGH);
+
+	/** Scheduled jobs ordered on rank */
+	private ConcurrentSkipListSet<Entry> entries;
+
+	/** Scheduled jobs by uri */
+	private ConcurrentHashMap<String, Entry> jobs;
+
+	/** Sequence to keep the order of jobs with the same rank */
+	private AtomicLong sequence;
+
+	/** Time a job has to wait to be promoted one priority level (in milliseconds) */
+	private long agingInterval;
+
+	/** Scheduling mode */
+	private String mode;
+
+	/** Time a high priority job without deadline is due after it arrived in edf mode (in milliseconds) */
+	private long slack;
+
+	/** Longest a job can be passed over for shorter jobs in sejf mode (in milliseconds) */
+	private long starvationBound;
+
+	/**
+	 * Constructor
+	 *
+	 * @param agingInterval		time a job waits before it is promoted one priority level (in milliseconds), 0 disables aging
+	 */
+	public JobScheduler(long agingInterval) {
+		this(agingInterval, MODE_PRIORITY, 0, 0);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param agingInterval		time a job waits before it is promoted one priority level (in milliseconds), 0 disables aging
+	 * @param mode				scheduling mode, MODE_PRIORITY, MODE_EDF or MODE_SEJF
+	 * @param slack				time a high priority job without deadline is due after it arrived in edf mode (in milliseconds)
+	 * @param starvationBound	longest a job can be passed over for shorter jobs in sejf mode (in milliseconds)
+	 */
+	public JobScheduler(long agingInterval, String mode, long slack, long starvationBound) {
+		this.agingInterval = agingInterval > 0 ? agingInterval : NO_AGING;
+		this.mode = mode;
+		this.slack = slack;
+		this.starvationBound = starvationBound;
+		entries = new ConcurrentSkipListSet<Entry>(new RankComparator());
+		jobs = new ConcurrentHashMap<String, Entry>();
+		sequence = new AtomicLong();
+	}
+
+	/**
+	 * Adds a job, or updates it when it is already scheduled. An updated job
+	 * keeps its age.
+	 *
+	 * @param queue		queue of the job
+	 * @param job		the job
+	 */
+	public synchronized void add(Queue queue, Job job) {
+		Entry entry = jobs.get(job.getUri());
+		long firstSeen = entry!=null ? entry.firstSeen : System.currentTimeMillis();
+		long deadline = getDeadline(queue, job, firstSeen);
+		long cost = 0;
+		if (mode.equals(MODE_SEJF)) {
+			cost = entry!=null ? entry.cost : getCost(job);
+		}
+		long rank = getRank(queue, deadline, cost, firstSeen);
+		if (entry!=null && entry.rank==rank) {
+			entry.job = job;
+			return;
+		}
+
+		if (entry!=null) {
+			// priority or deadline changed, reschedule with the same age
+			entries.remove(entry);
+		}
+
+		entry = new Entry(job, queue, firstSeen, deadline, cost, rank, sequence.incrementAndGet());
+		jobs.put(job.getUri(), entry);
+		entries.add(entry);
+		LOG.debug("scheduled job "+job.getUri()+" with priority "+queue.getPriority()+(deadline > 0 ? " and deadline "+deadline : ""));
+	}
+
+	/**
+	 * Returns the rank of a scheduled job, lower ranks go first
+	 *
+	 * @param jobUri	uri of the job
+	 * @return the rank, Long.MAX_VALUE if not scheduled
+	 */
+	public long getRank(String jobUri) {
+		Entry entry = jobs.get(jobUri);
+		return entry==null ? Long.MAX_VALUE : entry.rank;
+	}
+
+	/**
+	 * Returns the deadline of a scheduled job
+	 *
+	 * @param jobUri	uri of the job
+	 * @return deadline (in milliseconds since the epoch), 0 if none or not scheduled
+	 */
+	public long getDeadline(String jobUri) {
+		Entry entry = jobs.get(jobUri);
+		return entry==null ? 0 : entry.deadline;
+	}
+
+	/**
+	 * Returns the deadline of a job, the deadline property of the job or else
+	 * the deadline of its queue
+	 *
+	 * @param queue		queue of the job
+	 * @param job		the job
+	 * @param firstSeen	time the job arrived
+	 * @return deadline (in milliseconds since the epoch), 0 if none
+	 */
+	public static long getDeadline(Queue queue, Job job, long firstSeen) {
+		long deadline = parseDeadline(job.getProperty("deadline"));
+		if (deadline > 0) {
+			return deadline;
+		}
+		return queue.getDeadline() > 0 ? firstSeen + queue.getDeadline() * 1000L : 0;
+	}
+
+	/**
+	 * Parses a deadline, in milliseconds since the epoch or as an ISO 8601 date
+	 *
+	 * @param value
+	 * @return deadline (in milliseconds since the epoch), 0 if none or invalid
+	 */
+	private static long parseDeadline(String value) {
+		if (value==null || value.trim().equals("")) {
+			return 0;
+		}
+		value = value.trim();
+		try {
+			return Long.parseLong(value);
+		} catch(NumberFormatException e) {
+			// not a timestamp
+		}
+		String[] formats = {"yyyy-MM-dd'T'HH:mm:ssXXX", "yyyy-MM-dd'T'HH:mm:ss"};
+		for(String format : formats) {
+			try {
+				return new SimpleDateFormat(format).parse(value).getTime();
+			} catch(ParseException e) {
+				// try the next format
+			}
+		}
+		LOG.error("invalid deadline "+value);
+		return 0;
+	}
+
+	private long getRank(Queue queue, long deadline, long cost, long firstSeen) {
+		if (mode.equals(MODE_EDF)) {
+			if (deadline > 0) {
+				return deadline;
+			}
+			return firstSeen + (Queue.PRIORITY_HIGH + 1 - queue.getPriority()) * slack;
+		}
+		long rank = firstSeen - queue.getPriority() * agingInterval;
+		if (mode.equals(MODE_SEJF)) {
+			rank += Math.min(cost, starvationBound);
+		}
+		return rank;
+	}
+
+	/**
+	 * Estimates the time the transcode of a job takes, from the duration and
+	 * size of its original, or of the indexed job when it isn't resolved
+	 *
+	 * @param job
+	 * @return estimate in milliseconds
+	 */
+	private static long getCost(Job job) {
+		double seconds = CostEstimator.getEncodeTime(job);
+		if (!TFHelper.isLocalJob(job)) {
+			seconds += CostEstimator.getTransferTime(job);
+		}
+		return (long) (seconds * 1000);
+	}
+
+	/**
+	 * Removes a job
+	 *
+	 * @param jobUri	uri of the job
+	 */
+	public synchronized void remove(String jobUri) {
+		Entry entry = jobs.remove(jobUri);
+		if (entry!=null) {
+			entries.remove(entry);
+		}
+	}
+
+	/**
+	 * Makes the scheduled jobs of a queue match the given list of jobs
+	 *
+	 * @param queue		the queue
+	 * @param queueJobs	all jobs of the queue
+	 */
+	public synchronized void update(Queue queue, List<Job> queueJobs) {
+		Set<String> uris = new HashSet<String>();
+		for(Job job : queueJobs) {
+			uris.add(job.getUri());
+			add(queue, job);
+		}
+		for(Entry entry : getEntries(queue.getUri())) {
+			if (!uris.contains(entry.job.getUri())) {
+				remove(entry.job.getUri());
+			}
+		}
+	}
+
+	/**
+	 * Removes all jobs of a queue
+	 *
+	 * @param queueUri	uri of the queue
+	 */
+	public synchronized void removeQueue(String queueUri) {
+		for(Entry entry : getEntries(queueUri)) {
+			remove(entry.job.getUri());
+		}
+	}
+
+	/**
+	 * Returns the number of scheduled jobs
+	 *
+	 * @return the number of scheduled jobs
+	 */
+	public int size() {
+		return jobs.size();
+	}
+
+	/**
+	 * Returns the scheduled jobs, highest ranked first
+	 */
+	public Iterator<Job> iterator() {
+		final Iterator<Entry> iter = entries.iterator();
+		return new Iterator<Job>() {
+			public boolean hasNext() {
+				return iter.hasNext();
+			}
+
+			public Job next() {
+				return iter.next().job;
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	private List<Entry> getEntries(String queueUri) {
+		List<Entry> result = new ArrayList<Entry>();
+		for(Entry entry : jobs.values()) {
+			if (entry.queueUri.equals(queueUri)) {
+				result.add(entry);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Scheduled job
+	 */
+	private static class Entry {
+		volatile Job job;
+		final String queueUri;
+		final int priority;
+		final long firstSeen;
+		final long deadline;
+		final long cost;
+		final long rank;
+		final long seq;
+
+		Entry(Job job, Queue queue, long firstSeen, long deadline, long cost, long rank, long seq) {
+			this.job = job;
+			this.queueUri = queue.getUri();
+			this.priority = queue.getPriority();
+			this.firstSeen = firstSeen;
+			this.deadline = deadline;
+			this.cost = cost;
+			this.rank = rank;
+			this.seq = seq;
+		}
+	}
+
+	/**
+	 * Orders entries on rank, lowest rank (oldest, highest priority) first
+	 */
+	private static class RankComparator implements Comparator<Entry> {
+		public int compare(Entry e1, Entry e2) {
+			if (e1.rank != e2.rank) {
+				return e1.rank < e2.rank ? -1 : 1;
+			}
+			if (e1.seq != e2.seq) {
+				return e1.seq < e2.seq ? -1 : 1;
+			}
+			return 0;
+		}
+	}
+}
@@ -0,0 +1,194 @@
+package com.noterik.springfield.willie.queue;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.dom4j.Document;
+import org.dom4j.DocumentException;
+import org.dom4j.DocumentHelper;
+import org.springfield.mojo.interfaces.ServiceInterface;
+import org.springfield.mojo.interfaces.ServiceManager;
+
+import com.noterik.springfield.willie.WillieServer;
+import com.noterik.springfield.willie.homer.LazyMarge;
+import com.noterik.springfield.willie.homer.MargeObserver;
+
+/**
+ * Cache of the parsed parent documents jobs are resolved from, shared by
+ * all workers. Several jobs (bitrates) of the same audio use the same parent
+ * document, so it only has to be requested once. Entries expire after a
+ * while and are dropped as soon as marge signals a change below their uri.
+ *
+ * The cached documents are shared, callers should only read from them.
+ *
+ * @copyright Copyright: Noterik B.V. 2012
+ * @package com.noterik.springfield.willie.queue
+ * @access private
+ *
+ */
+public class ParentDocumentCache implements MargeObserver {
+	/** The ParentDocumentCache's log4j Logger */
+	private static final Logger LOG = Logger.getLogger(ParentDocumentCache.class);
+
+	/** Default maximum number of cached documents */
+	private static final int DEFAULT_SIZE = 500;
+
+	/** Default time a document stays cached (in seconds) */
+	private static final int DEFAULT_TTL = 60;
+
+	/** instance */
+	private static ParentDocumentCache instance = new ParentDocumentCache();
+
+	/** Cached documents by uri, least recently used first */
+	private LinkedHashMap<String, CacheEntry> documents;
+
+	private long hits = 0;
+	private long misses = 0;
+
+	/**
+	 * Sole constructor
+	 */
+	private ParentDocumentCache() {
+		documents = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+				if (size() > getMaxSize()) {
+					LazyMarge.removeObserver(eldest.getKey(), ParentDocumentCache.this);
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Return ParentDocumentCache instance
+	 *
+	 * @return ParentDocumentCache instance
+	 */
+	public static ParentDocumentCache instance() {
+		return instance;
+	}
+
+	/**
+	 * Returns the parsed document of an uri, from cache if possible.
+	 *
+	 * @param uri
+	 * @return the document, null if it could not be retrieved
+	 */
+	public Document get(String uri) {
+		long now = System.currentTimeMillis();
+		synchronized (documents) {
+			CacheEntry entry = documents.get(uri);
+			if (entry!=null && now - entry.fetched < getTtl()) {
+				hits++;
+				return entry.document;
+			}
+			misses++;
+		}
+
+		LOG.debug("sending get request to: " + uri);
+		ServiceInterface smithers = ServiceManager.getService("smithers");
+		if (smithers==null) return null;
+		String response = smithers.get(uri, null, null);
+
+		LOG.debug("response was: " + response);
+		Document document;
+		try {
+			document = DocumentHelper.parseText(response);
+		} catch (DocumentException e) {
+			LOG.error("Could not parse response from smithers for "+uri,e);
+			return null;
+		}
+
+		synchronized (documents) {
+			documents.put(uri, new CacheEntry(document, now));
+		}
+		LazyMarge.addObserver(uri, this);
+		return document;
+	}
+
+	/**
+	 * Something changed below a cached uri, drop the documents that contain it
+	 */
+	public void remoteSignal(String from, String method, String url) {
+		List<String> dropped = new ArrayList<String>();
+		synchronized (documents) {
+			for(Iterator<String> iter = documents.keySet().iterator(); iter.hasNext(); ) {
+				String key = iter.next();
+				if (url.equals(key) || url.startsWith(key+"/")) {
+					iter.remove();
+					dropped.add(key);
+				}
+			}
+		}
+		for(String key : dropped) {
+			LazyMarge.removeObserver(key, this);
+			LOG.debug("invalidated "+key+" by "+method+" "+url);
+		}
+	}
+
+	/**
+	 * @return number of cached documents
+	 */
+	public int size() {
+		synchronized (documents) {
+			return documents.size();
+		}
+	}
+
+	/**
+	 * @return number of requests served from cache
+	 */
+	public long getHits() {
+		synchronized (documents) {
+			return hits;
+		}
+	}
+
+	/**
+	 * @return number of requests that went to smithers
+	 */
+	public long getMisses() {
+		synchronized (documents) {
+			return misses;
+		}
+	}
+
+	/**
+	 * @return fraction of requests served from cache
+	 */
+	public double getHitRate() {
+		synchronized (documents) {
+			return hits+misses == 0 ? 0.0 : (double) hits / (double) (hits+misses);
+		}
+	}
+
+	private int getMaxSize() {
+		WillieServer server = WillieServer.instance();
+		return server==null ? DEFAULT_SIZE : server.getConfigurationInt("parentcachesize", DEFAULT_SIZE);
+	}
+
+	private long getTtl() {
+		WillieServer server = WillieServer.instance();
+		return (server==null ? DEFAULT_TTL : server.getConfigurationInt("parentcachettl", DEFAULT_TTL)) * 1000L;
+	}
+
+	/**
+	 * Cached document
+	 */
+	private static class CacheEntry {
+		final Document document;
+		final long fetched;
+
+		CacheEntry(Document document, long fetched) {
+			this.document = document;
+			this.fetched = fetched;
+		}
+	}
+}
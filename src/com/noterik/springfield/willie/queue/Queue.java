@@ -1,13 +1,13 @@
 package com.noterik.springfield.willie.queue;
 
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
 
 import org.apache.log4j.Logger;
 import org.dom4j.Document;
 import org.dom4j.DocumentException;
 import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
 import org.dom4j.Node;
 import org.springfield.mojo.ftp.URIParser;
 import org.springfield.mojo.interfaces.ServiceInterface;
@@ -40,6 +40,9 @@ public class Queue implements Comparable<Queue> {
 	/** The queue's priority */
 	private int priority;
 	
+	/** Time the jobs of this queue have to be done in (in seconds), 0 if none */
+	private long deadline;
+	
 	/** Some predefined priorities */
 	public static final int PRIORITY_HIGH = 3;
 	public static final int PRIORITY_MEDIUM = 2;
@@ -62,8 +65,20 @@ public class Queue implements Comparable<Queue> {
 	 * @param priority		queue priority
 	 */
 	public Queue(String uri, int priority) {
+		this(uri,priority,0);
+	}
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param uri			filesystem uri
+	 * @param priority		queue priority
+	 * @param deadline		time the jobs have to be done in after they arrive (in seconds), 0 if none
+	 */
+	public Queue(String uri, int priority, long deadline) {
 		this.uri = uri; 
 		this.priority = priority;
+		this.deadline = deadline;
 		this.domain = URIParser.getDomainFromUri(uri);
 	}
 	
@@ -76,6 +91,15 @@ public class Queue implements Comparable<Queue> {
 		return uri;
 	}
 	
+	/**
+	 * Returns the queue's domain
+	 * 
+	 * @return The queue's domain
+	 */
+	public String getDomain() {
+		return domain;
+	}
+	
 	/**
 	 * Returns the queue's priority
 	 * 
@@ -85,6 +109,16 @@ public class Queue implements Comparable<Queue> {
 		return priority;
 	}
 
+	/**
+	 * Returns the time the jobs of this queue have to be done in after they
+	 * arrive, jobs can set an earlier deadline themselves
+	 * 
+	 * @return deadline in seconds, 0 if none
+	 */
+	public long getDeadline() {
+		return deadline;
+	}
+	
 	/**
 	 * Compares the priorities of the queues
 	 */
@@ -127,26 +161,7 @@ public class Queue implements Comparable<Queue> {
 			Document queueDoc = DocumentHelper.parseText(queueXml);
 		
 			// iterate through jobs
-			List<Node> nodeList = queueDoc.selectNodes("//queue/job");
-			Node node;
-			String jobMount, jobUri;
-			for(Iterator<Node> iter2 = nodeList.iterator(); iter2.hasNext(); ) {
-				node = iter2.next();
-				
-				// parse to job
-				jobUri = uri + "/job/" + node.valueOf("@id");
-				
-				// add to job list
-				//log.debug("JOB="+node.asXML());
-				Job job = new Job(jobUri,node.asXML());
-				if (job.isValidJob()) {
-					jobs.add(job);
-				} else {
-					//remove invalid job
-					removeJob(job);
-				}
-			}
-			
+			jobs = parseJobs(queueDoc.selectNodes("//queue/job"));
 		} catch (DocumentException e) {
 			LOG.error("Response from filesystem could not be parsed",e);
 		}
@@ -154,6 +169,87 @@ public class Queue implements Comparable<Queue> {
 		return jobs;
 	}
 	
+	/**
+	 * Get all the jobs in this queue from an already fetched queue element
+	 * 
+	 * @param queueElement	the queue element, including its jobs
+	 * @return The queue's jobs, null if they could not be parsed
+	 */
+	public List<Job> getJobs(Element queueElement) {
+		try {
+			return parseJobs(queueElement.selectNodes("job"));
+		} catch (DocumentException e) {
+			LOG.error("Queue element could not be parsed",e);
+		}
+		return null;
+	}
+	
+	/**
+	 * Parse a list of job nodes, invalid jobs are removed from the queue
+	 * 
+	 * @param nodeList	job nodes
+	 * @return the valid jobs
+	 * @throws DocumentException
+	 */
+	private List<Job> parseJobs(List<?> nodeList) throws DocumentException {
+		List<Job> jobs = new ArrayList<Job>();
+		for(Object node : nodeList) {
+			// add to job list
+			Job job = parseJob((Node) node);
+			if (job!=null) {
+				jobs.add(job);
+			}
+		}
+		return jobs;
+	}
+	
+	/**
+	 * Get a single job of this queue
+	 * 
+	 * @param jobUri	uri of the job
+	 * @return The job, null if it does not exist (anymore) or is invalid
+	 */
+	public Job getJob(String jobUri) {
+		LOG.debug("getting job: "+jobUri);
+		
+		ServiceInterface smithers = ServiceManager.getService("smithers");
+		if (smithers==null) return null;
+		String jobXml = smithers.get(jobUri, null, null);
+		
+		try {
+			Document jobDoc = DocumentHelper.parseText(jobXml);
+			Node node = jobDoc.selectSingleNode("//job");
+			if (node!=null) {
+				return parseJob(node);
+			}
+		} catch (DocumentException e) {
+			LOG.error("Response from filesystem could not be parsed",e);
+		}
+		return null;
+	}
+	
+	/**
+	 * Parse a job node, invalid jobs are removed from the queue
+	 * 
+	 * @param node	job node
+	 * @return The job, null if invalid
+	 * @throws DocumentException
+	 */
+	private Job parseJob(Node node) throws DocumentException {
+		// parse to job
+		String jobUri = uri + "/job/" + node.valueOf("@id");
+		
+		//log.debug("JOB="+node.asXML());
+		Job job = new Job(jobUri,node.asXML());
+		if (job.isValidJob()) {
+			return job;
+		}
+		
+		//remove invalid job
+		removeJob(job);
+		return null;
+	}
+	
 	@Override
 	public String toString() {
 		return "("+uri+","+priority+")";
@@ -2,27 +2,43 @@ package com.noterik.springfield.willie.queue;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.log4j.Logger;
 import org.dom4j.Document;
 import org.dom4j.DocumentException;
 import org.dom4j.DocumentHelper;
 import org.dom4j.Element;
-import org.dom4j.Node;
 import org.springfield.mojo.ftp.URIParser;
 import org.springfield.mojo.interfaces.ServiceInterface;
 import org.springfield.mojo.interfaces.ServiceManager;
 
-import com.noterik.bart.marge.model.Service;
-import com.noterik.bart.marge.server.MargeServer;
 import com.noterik.springfield.willie.WillieServer;
-
+import com.noterik.springfield.willie.TF.AdmissionController;
+import com.noterik.springfield.willie.TF.JobJournal;
+import com.noterik.springfield.willie.TF.TFactory;
 import com.noterik.springfield.willie.homer.LazyHomer;
 import com.noterik.springfield.willie.homer.LazyMarge;
 import com.noterik.springfield.willie.homer.MargeObserver;
+import com.noterik.springfield.willie.homer.WillieProperties;
+import com.noterik.springfield.willie.queue.dist.DecisionEngine;
+import com.noterik.springfield.willie.queue.dist.DistributedDecisionEngine;
+import com.noterik.springfield.willie.queue.dist.OfferDecisionEngine;
+import com.noterik.springfield.willie.queue.dist.RejectionCache;
 import com.noterik.springfield.willie.tools.TFHelper;
+import com.noterik.springfield.willie.util.NameEncoding;
 
 /**
  * Keeps the list of queues
@@ -35,21 +51,114 @@ import com.noterik.springfield.willie.tools.TFHelper;
  * @version $Id: QueueManager.java,v 1.18 2012-07-31 19:06:09 daniel Exp $
  *
  */
-public class QueueManager {
+public class QueueManager implements MargeObserver {
 	/** The QueueManager's log4j Logger */
 	public static final Logger LOG = Logger.getLogger(QueueManager.class);
 	
 	/** Queue URI template */
 	public static final String QUEUE_URI = "/domain/{domain}/service/willie/queue";
 	
+	/** Base uri of the domains */
+	private static final String DOMAIN_URI = "/domain";
+	
+	/** Default weight of a domain when sharing the workers */
+	private static final int DEFAULT_DOMAIN_WEIGHT = 1;
+	
+	/** Default interval between full reconciles of the job index (in seconds) */
+	private static final int DEFAULT_RECONCILE_INTERVAL = 300;
+	
+	/** Default depth of a bulk fetch of a domain's queues: queue, job and rawaudio */
+	private static final int DEFAULT_BULK_FETCH_DEPTH = 3;
+	
+	/** Default number of candidates per job in a batch claim */
+	private static final int DEFAULT_CLAIM_CANDIDATES = 2;
+	
+	/** Default time a job waits before it is promoted one priority level (in seconds) */
+	private static final int DEFAULT_QUEUE_AGING = 600;
+	
+	/** Default time a high priority job without deadline is due after it arrived in edf mode (in seconds) */
+	private static final int DEFAULT_EDF_SLACK = 3600;
+	
+	/** Default longest a job can be passed over for shorter jobs in sejf mode (in seconds) */
+	private static final int DEFAULT_SEJF_BOUND = 3600;
+	
+	/** Default maximum number of siblings claimed with a job, to transcode them in one go */
+	private static final int DEFAULT_MAX_SIBLINGS = 4;
+	
 	/** List of queues to watch */
 	private List<Queue> queues;
 	
+	/** Domains whose queues we watch */
+	private List<String> domains;
+	
+	/** Index of the jobs per queue uri, kept up to date by marge signals */
+	private Map<String, Map<String, Job>> jobIndex;
+	
+	/** Indexed jobs by sibling key and uri, guarded by the jobIndex lock */
+	private Map<String, Map<String, Job>> siblingIndex;
+	
+	/** Orders the indexed jobs of every domain on priority and age */
+	private ConcurrentHashMap<String, JobScheduler> schedulers;
+	
+	/** Weight of every domain when sharing the workers */
+	private ConcurrentHashMap<String, Integer> domainWeights;
+	
+	/** Jobs being evaluated or processed by the workers of this willie */
+	private ConcurrentHashMap<String, Job> claims;
+	
+	/** Domains of the jobs that are claimed by this willie, by job uri */
+	private ConcurrentHashMap<String, String> running;
+	
+	/** Uris of the signalled jobs waiting to be fetched again */
+	private Set<String> refreshing;
+	
+	/** Fetches signalled jobs, off the marge thread */
+	private ExecutorService refresher;
+	
+	/** Time of the last full reconcile of the job index */
+	private volatile long lastReconcile;
+	
+	/** Duration of the last full reconcile (in milliseconds) */
+	private volatile long lastReconcileDuration;
+	
+	/** Releases the claims of willies that are gone */
+	private ClaimRecovery recovery;
+	
+	/** Parks the jobs that wait for another raw */
+	private DependencyTracker dependencies;
+	
+	/** Tells whether the deadlines can be met */
+	private DeadlineAdmission admission;
+	
 	/**
 	 * Default constructor.
 	 */
 	public QueueManager() {
 		queues = new ArrayList<Queue>();
+		domains = new ArrayList<String>();
+		jobIndex = new HashMap<String, Map<String, Job>>();
+		siblingIndex = new HashMap<String, Map<String, Job>>();
+		claims = new ConcurrentHashMap<String, Job>();
+		running = new ConcurrentHashMap<String, String>();
+		schedulers = new ConcurrentHashMap<String, JobScheduler>();
+		domainWeights = new ConcurrentHashMap<String, Integer>();
+		refreshing = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		refresher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "willie-job-refresher");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		lastReconcile = 0;
+		dependencies = new DependencyTracker();
+		admission = new DeadlineAdmission();
+		recovery = new ClaimRecovery(this);
+		recovery.start();
+		
+		// keep the job index up to date with changes in the queues of every
+		// domain, also the ones that are added later on
+		LazyMarge.addObserver(QUEUE_URI.replace("{domain}", "*"), this);
 	}
 	
 	/**
@@ -59,6 +168,11 @@ public class QueueManager {
 	 */
 	public void add(Queue queue) {
 		synchronized (queues) {
+			for(Queue q : queues) {
+				if(q.equals(queue)) {
+					return;
+				}
+			}
 			queues.add(queue);
 		}
 	}
@@ -72,6 +186,10 @@ public class QueueManager {
 		synchronized (queues) {
 			queues.remove(queue);
 		}
+		synchronized (jobIndex) {
+			unindexQueue(queue.getUri());
+		}
+		getScheduler(queue.getDomain()).removeQueue(queue.getUri());
 	}
 	
 	/**
@@ -82,8 +200,26 @@ public class QueueManager {
 	public boolean addDomain(String domain) {
 		LOG.info("Adding domain " + domain);
 		
+		synchronized (domains) {
+			if (!domains.contains(domain)) {
+				domains.add(domain);
+			}
+		}
+		return loadQueues(domain, false);
+	}
+	
+	/**
+	 * Loads the queues of a domain, queues that are already known are kept.
+	 * With jobs the whole queue subtree is requested at once and the jobs of
+	 * every queue are indexed from it, instead of one request per queue.
+	 * 
+	 * @param domain
+	 * @param withJobs	also index the jobs of the queues
+	 */
+	private boolean loadQueues(String domain, boolean withJobs) {
 		String uri = QUEUE_URI.replace("{domain}", domain);
-		String xml = "<fsxml><properties><depth>1</depth></properties></fsxml>";
+		int depth = withJobs ? WillieServer.instance().getConfigurationInt("bulkfetchdepth", DEFAULT_BULK_FETCH_DEPTH) : 1;
+		String xml = "<fsxml><properties><depth>"+depth+"</depth></properties></fsxml>";
 		ServiceInterface smithers = ServiceManager.getService("smithers");
 		if (smithers==null) return false;
 		String response = smithers.get(uri,xml,"text/xml");
@@ -93,13 +229,17 @@ public class QueueManager {
 			// parse response
 			Document doc = DocumentHelper.parseText(response);
 			Element root = doc.getRootElement();
+			domainWeights.put(domain, parseWeight(root.valueOf("properties/weight")));
+			
 			Element elem;
-			String id, priorityStr, queueUri;
+			String id, priorityStr, deadlineStr, queueUri;
 			int priority;
+			long deadline;
 			for(Iterator<Element> iter = root.elementIterator("queue"); iter.hasNext(); ) {
 				elem = iter.next();
 				id = elem.valueOf("@id");
 				priorityStr = elem.valueOf("properties/priority");
+				deadlineStr = elem.valueOf("properties/deadline");
 				queueUri = uri + "/" + id;
 				
 				// parse priority
@@ -116,11 +256,30 @@ public class QueueManager {
 					}
 				}
 				
+				// parse deadline, relative to the arrival of a job
+				deadline = 0;
+				if(deadlineStr!=null && !deadlineStr.trim().equals("")) {
+					try {
+						deadline = Long.parseLong(deadlineStr.trim());
+					} catch(NumberFormatException e) {
+						LOG.error("invalid deadline "+deadlineStr+" for queue "+queueUri);
+					}
+				}
+				
 				// add new queue
-				Queue queue = new Queue(queueUri,priority);
+				Queue queue = new Queue(queueUri,priority,deadline);
 				this.add(queue);
 				
 				LOG.debug("added queue: " + queue.toString());
+				
+				if (withJobs) {
+					// fan the jobs out to the queue we know
+					Queue known = getQueueOfUri(queueUri);
+					List<Job> jobs = known.getJobs(elem);
+					if (jobs!=null) {
+						indexQueue(known, jobs);
+					}
+				}
 			}		
 		} catch(Exception e) {
 			LOG.error("Could not parse response from smithers",e);
@@ -139,6 +298,10 @@ public class QueueManager {
 	public void removeDomain(String domain) {		
 		LOG.info("Removing domain "+domain);
 		
+		synchronized (domains) {
+			domains.remove(domain);
+		}
+		
 		// loop trough all queues and remove if from given domain
 		synchronized(queues) {
 			Queue queue;
@@ -148,10 +311,62 @@ public class QueueManager {
 				queueDomain = URIParser.getDomainFromUri(queue.getUri());
 				if(domain.equals(queueDomain)) {
 					iter.remove();
+					synchronized (jobIndex) {
+						unindexQueue(queue.getUri());
+					}
+					getScheduler(domain).removeQueue(queue.getUri());
 					LOG.debug("removed queue: " + queue);
 				}
 			}
 		}
+		schedulers.remove(domain);
+		domainWeights.remove(domain);
+	}
+	
+	/**
+	 * Discovers the domains in smithers, new domains are added and domains
+	 * that are gone are removed.
+	 */
+	public void discoverDomains() {
+		String xml = "<fsxml><properties><depth>1</depth></properties></fsxml>";
+		ServiceInterface smithers = ServiceManager.getService("smithers");
+		if (smithers==null) return;
+		String response = smithers.get(DOMAIN_URI,xml,"text/xml");
+		
+		List<String> found = new ArrayList<String>();
+		try {
+			// parse response
+			Document doc = DocumentHelper.parseText(response);
+			Element root = doc.getRootElement();
+			for(Object elem : root.elements("domain")) {
+				found.add(((Element) elem).valueOf("@id"));
+			}
+		} catch(Exception e) {
+			LOG.error("Could not retrieve domains.");
+			return;
+		}
+		
+		for(String domain : found) {
+			if (!getDomains().contains(domain)) {
+				addDomain(domain);
+			}
+		}
+		for(String domain : getDomains()) {
+			if (!found.contains(domain)) {
+				removeDomain(domain);
+			}
+		}
+	}
+	
+	/**
+	 * Returns the domains whose queues are watched
+	 * 
+	 * @return list of domains
+	 */
+	public List<String> getDomains() {
+		synchronized (domains) {
+			return new ArrayList<String>(domains);
+		}
 	}
 	
 	/**
@@ -162,44 +377,35 @@ public class QueueManager {
 	public Job getJob() {		
 		LOG.debug("getting new job");
 		
+		// full rescan every now and then, in case we missed signals
+		reconcile();
+		
+		// make sure all queues are indexed
+		List<Queue> snapshot;
 		synchronized (queues) {
-			// sort queues (from high to low)
-			Collections.sort(queues,Collections.reverseOrder());
-			
-			// iterate through queues
-			for(Queue queue : queues) {
-				List<Job> jobs = queue.getJobs();
-				for(Job job : jobs) {
-					if(job!=null) {
-						LOG.debug("job found, checking");
-						// check if job is good according to decision engine
-						if(WillieServer.instance().getDecisionEngine().processJob(job)) {
-							// check if 'useraw' has been set
-							LOG.debug("Check if useraw has been set");
-							String useraw = job.getProperty("useraw");
-							if(useraw!=null) {
-								LOG.debug("checking if following rawaudio is available "+useraw);
-								
-								// determine referid
-								String referid = job.getProperty("referid");
-								if(referid==null) {
-									continue;
-								}
-								
-								// determine the rawaudio
-								String rawURI = URIParser.getPreviousUri(referid)+"/"+useraw;
-								
-								// check if raw is available
-								if(!checkStatus(rawURI,"done")) {
-									continue;
-								}
-							}
-							return job;
-						}
-					}
+			snapshot = new ArrayList<Queue>(queues);
+		}
+		for(Queue queue : snapshot) {
+			getIndexedJobs(queue);
+		}
+		checkDeadlines();
+		
+		// first finish what we were doing before a restart
+		Job resumed = resume();
+		if(resumed!=null) {
+			return resumed;
+		}
+		
+		// take the highest ranked job we can claim, from the domain that
+		// has the smallest share of our workers compared to its weight
+		for(String domain : getDomainsByShare()) {
+			for(Job job : getScheduler(domain)) {
+				if(job!=null && claim(job)) {
+					running(job, domain);
+					return job;
 				}
 			}
-		}		
+		}
 		LOG.debug("no job found");
 		
 		// no job found
@@ -207,47 +413,880 @@ public class QueueManager {
 	}
 
 	/**
-	 * Checks the status of a rawaudio
+	 * Claims up to max jobs in one round of the decision engine, for the
+	 * local queue of the workers.
 	 * 
-	 * @param uri
-	 * @param status
-	 * @return
-	 */	
-	private boolean checkStatus(String uri, String status) {
-		LOG.debug("checking status for "+uri+" - "+status);
-		
-		String domain = URIParser.getDomainFromUri(uri);
-		
-		// get service
-		//MargeServer marge = MargeServer.getInstance(); TODO: fix marge caching
-		MargeServer marge = new MargeServer();
-		Service service = marge.getService("filesystemmanager", domain);
-		if(service==null) {
-			LOG.error("service was null");
+	 * @param max	maximum number of jobs to claim
+	 * @return the claimed jobs, best first
+	 */
+	public List<Job> claimJobs(int max) {
+		if (max <= 0) {
+			return new ArrayList<Job>();
+		}
+		LOG.debug("claiming up to "+max+" jobs");
+		
+		// full rescan every now and then, in case we missed signals
+		reconcile();
+		
+		// make sure all queues are indexed
+		List<Queue> snapshot;
+		synchronized (queues) {
+			snapshot = new ArrayList<Queue>(queues);
+		}
+		for(Queue queue : snapshot) {
+			getIndexedJobs(queue);
+		}
+		checkDeadlines();
+		
+		// reserve the candidates, some more than needed since not all will be won
+		int wanted = max * WillieServer.instance().getConfigurationInt("claimcandidates", DEFAULT_CLAIM_CANDIDATES);
+		boolean bidding = WillieServer.instance().getDecisionEngine().appliesAdmission();
+		List<Job> candidates = new ArrayList<Job>();
+		Map<String, String> candidateDomains = new HashMap<String, String>();
+		for(String domain : getDomainsByShare()) {
+			for(Job job : getScheduler(domain)) {
+				if (candidates.size() >= wanted) {
+					break;
+				}
+				if (isCandidate(job, bidding)) {
+					candidates.add(job);
+					candidateDomains.put(job.getUri(), domain);
+				}
+			}
+		}
+		return claim(candidates, candidateDomains, max);
+	}
+	
+	/**
+	 * Claims the jobs that read the same input as a claimed job, in one round
+	 * of the decision engine, so they can be transcoded in one go.
+	 * 
+	 * @param job	a claimed job
+	 * @return the claimed siblings, without the job itself
+	 */
+	public List<Job> claimSiblings(Job job) {
+		int max = WillieServer.instance().getConfigurationInt("maxsiblings", DEFAULT_MAX_SIBLINGS);
+		String key = job.getSiblingKey();
+		if (max <= 0 || key==null) {
+			return new ArrayList<Job>();
+		}
+		
+		List<Job> siblings;
+		synchronized (jobIndex) {
+			Map<String, Job> indexed = siblingIndex.get(key);
+			siblings = indexed==null ? new ArrayList<Job>() : new ArrayList<Job>(indexed.values());
+		}
+		
+		boolean bidding = WillieServer.instance().getDecisionEngine().appliesAdmission();
+		List<Job> candidates = new ArrayList<Job>();
+		Map<String, String> candidateDomains = new HashMap<String, String>();
+		for(Job sibling : siblings) {
+			if (candidates.size() >= max) {
+				break;
+			}
+			Queue queue = getQueueOfUri(sibling.getUri());
+			if (queue!=null && !sibling.equals(job) && isCandidate(sibling, bidding)) {
+				candidates.add(sibling);
+				candidateDomains.put(sibling.getUri(), queue.getDomain());
+			}
+		}
+		return claim(candidates, candidateDomains, max);
+	}
+	
+	/**
+	 * Reserves a job as candidate of a batch claim
+	 * 
+	 * @param job
+	 * @param bidding	whether the decision engine applies the admission control itself
+	 * @return true if the job is reserved for this worker
+	 */
+	private boolean isCandidate(Job job, boolean bidding) {
+		// jobs we can't do cost nothing until they or the mounts change
+		// and jobs waiting for another raw are claimed once it is done
+		if (job==null || RejectionCache.instance().isRejected(job) || !dependencies.isSatisfied(job) || claims.putIfAbsent(job.getUri(), job)!=null) {
 			return false;
 		}
+		if (!bidding && !reserve(job)) {
+			claims.remove(job.getUri());
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Lets the decision engine pick from the candidates in one round, the
+	 * candidates that aren't won are released again.
+	 * 
+	 * @param candidates
+	 * @param candidateDomains	domain of every candidate by job uri
+	 * @param max				maximum number of jobs to claim
+	 * @return the claimed jobs
+	 */
+	private List<Job> claim(List<Job> candidates, Map<String, String> candidateDomains, int max) {
+		List<Job> claimed = new ArrayList<Job>();
+		if (candidates.isEmpty()) {
+			return claimed;
+		}
 		
-		// request queues from filessystem
-		String xml = "<fsxml><properties><depth>1</depth></properties></fsxml>";
-		ServiceInterface smithers = ServiceManager.getService("smithers");
-		if (smithers==null) return false;
-		String response = smithers.get(uri,xml,"text/xml");
+		List<Job> won = new ArrayList<Job>();
+		try {
+			won = WillieServer.instance().getDecisionEngine().processJobs(candidates, max);
+		} finally {
+			for(Job job : candidates) {
+				if (won.contains(job) && accept(job)) {
+					running(job, candidateDomains.get(job.getUri()));
+					claimed.add(job);
+				} else {
+					claims.remove(job.getUri());
+					AdmissionController.instance().release(job.getUri());
+				}
+			}
+		}
+		LOG.debug("claimed "+claimed.size()+" of "+candidates.size()+" candidates");
+		return claimed;
+	}
 
+	/**
+	 * Tries to claim a job for this willie. A job is evaluated by only one
+	 * worker at a time, different jobs are evaluated in parallel.
+	 * 
+	 * @param job
+	 * @return true if the job was claimed
+	 */
+	private boolean claim(Job job) {
+		// rejected before and nothing changed since
+		if (RejectionCache.instance().isRejected(job)) {
+			return false;
+		}
+		
+		// waiting for another raw
+		if (!dependencies.isSatisfied(job)) {
+			return false;
+		}
+		
+		// another worker is already evaluating or running this job
+		if (claims.putIfAbsent(job.getUri(), job)!=null) {
+			return false;
+		}
+		
+		boolean claimed = false;
 		try {
-			// parse response
-			Document doc = DocumentHelper.parseText(response);
-			Node node = doc.selectSingleNode("//properties/status");
-			if(node == null || !node.getText().trim().toLowerCase().equals(status)) {
+			// some engines apply the admission control themselves, to their offer
+			if (!WillieServer.instance().getDecisionEngine().appliesAdmission() && !reserve(job)) {
 				return false;
 			}
+			LOG.debug("job found, checking");
+			// check if job is good according to decision engine
+			if(!WillieServer.instance().getDecisionEngine().processJob(job)) {
+				return false;
+			}
+			claimed = accept(job);
+		} finally {
+			if (!claimed) {
+				claims.remove(job.getUri());
+				AdmissionController.instance().release(job.getUri());
+			}
+		}
+		return claimed;
+	}
+	
+	/**
+	 * Reserves the room for a job, when this willie has room for it. A busy
+	 * willie leaves the job to the others for a while first.
+	 * 
+	 * @param job
+	 * @return false if there is no room for the job, or not yet
+	 */
+	private boolean reserve(Job job) {
+		AdmissionController admission = AdmissionController.instance();
+		int state = admission.check(job);
+		if (state==AdmissionController.REJECT) {
+			return false;
+		}
+		if (state==AdmissionController.BUSY && !admission.isBusyDelayOver(job)) {
+			LOG.debug("busy, leaving job "+job.getUri()+" to the other willies for now");
+			return false;
+		}
+		admission.reserve(job);
+		return true;
+	}
+	
+	/**
+	 * Checks a job the decision engine gave us can be run: its input and
+	 * output can be resolved.
+	 * 
+	 * @param job
+	 * @return true if the job can be run
+	 */
+	private boolean accept(Job job) {
+		// only now we need to know the input and output of the job
+		if(!job.resolve()) {
+			LOG.debug("could not resolve job "+job.getUri());
+			Queue queue = getQueueOfUri(job.getUri());
+			if(queue!=null) {
+				queue.removeJob(job);
+			}
+			return false;
+		}
+		if(!job.isResolved()) {
+			// the parent can't be read now, keep the job for later
+			handBack(job);
+			return false;
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Gives up the claim on a job this willie can't start right now, so it
+	 * is evaluated again by all willies, this one included.
+	 * 
+	 * @param job
+	 */
+	public void handBack(Job job) {
+		LOG.info("handing back job "+job.getUri());
+		DecisionEngine engine = WillieServer.instance().getDecisionEngine();
+		if (engine instanceof DistributedDecisionEngine) {
+			((DistributedDecisionEngine) engine).getLeaseManager().surrender(job.getUri());
+		}
+		ServiceInterface smithers = ServiceManager.getService("smithers");
+		WillieProperties mp = LazyHomer.getMyWillieProperties();
+		if (smithers!=null) {
+			smithers.delete(job.getUri()+"/status/1/properties/transcoder", null, null);
+			if (mp!=null && engine instanceof OfferDecisionEngine) {
+				smithers.delete(job.getUri()+"/status/1/properties/"+OfferDecisionEngine.getOfferProperty(mp.getName()), null, null);
+			}
+		}
+		release(job);
+	}
+	
+	/**
+	 * Releases a job claimed by this willie, so it will be evaluated again
+	 * 
+	 * @param job
+	 */
+	public void release(Job job) {
+		running.remove(job.getUri());
+		claims.remove(job.getUri());
+		AdmissionController.instance().release(job.getUri());
+		JobJournal.instance().finish(job.getUri());
+	}
+	
+	/**
+	 * Checks a claimed job is still ours, right before a worker starts it
+	 * 
+	 * @param job
+	 * @return false if another willie took the job meanwhile
+	 */
+	public boolean confirm(Job job) {
+		DecisionEngine engine = WillieServer.instance().getDecisionEngine();
+		if (engine instanceof DistributedDecisionEngine) {
+			return ((DistributedDecisionEngine) engine).getLeaseManager().verify(job.getUri());
+		}
+		return true;
+	}
+	
+	/**
+	 * Registers a job that was claimed outside the decision engine, like a
+	 * job taken over from another willie
+	 * 
+	 * @param job
+	 * @return true if no worker of this willie had the job yet
+	 */
+	public boolean adopt(Job job) {
+		if (claims.putIfAbsent(job.getUri(), job)!=null) {
+			return false;
+		}
+		Queue queue = getQueueOfUri(job.getUri());
+		if (queue!=null) {
+			running(job, queue.getDomain());
+		}
+		return true;
+	}
+	
+	/**
+	 * Registers a claimed job as running for a domain
+	 * 
+	 * @param job
+	 * @param domain
+	 */
+	private void running(Job job, String domain) {
+		running.put(job.getUri(), domain);
+		AdmissionController.instance().reserve(job);
+		JobJournal.instance().record(job.getUri(), job.getId(), JobJournal.CLAIMED, "");
+	}
+	
+	/**
+	 * Claims the next job this willie was working on before a restart. A job
+	 * that still names this willie as transcoder is resumed right away. A job
+	 * without transcoder goes through the decision engine like any other job,
+	 * what was done before the restart is used when we win it. Jobs that are
+	 * gone or were taken by another willie meanwhile are cleaned up.
+	 * 
+	 * @return the job, null if there is nothing to resume
+	 */
+	private Job resume() {
+		JobJournal journal = JobJournal.instance();
+		WillieProperties mp = LazyHomer.getMyWillieProperties();
+		if (mp==null) {
+			return null;
+		}
+		String myname = mp.getName();
+		
+		String uri;
+		while ((uri = journal.pollResumable())!=null) {
+			JobJournal.Entry entry = journal.getEntry(uri);
+			Job job = findJob(uri);
+			String transcoder = job==null ? null : job.getStatusProperty("transcoder");
+			// an empty value is a failed read, not an owner
+			String owner = transcoder==null || transcoder.equals("") ? null : NameEncoding.decode(transcoder);
+			if (job==null || (owner!=null && !owner.equals(myname))) {
+				LOG.info("job "+uri+" from before the restart is "+(job==null ? "gone" : "taken by "+owner));
+				if (entry!=null) {
+					TFactory.deleteTempFiles(entry.getJobId());
+				}
+				journal.finish(uri);
+				continue;
+			}
+			if (owner==null) {
+				// free, or unknown: claim it like any other job, the journal
+				// entry stays so a later claim still finds our progress
+				Queue queue = getQueueOfUri(uri);
+				if (queue!=null && claim(job)) {
+					running(job, queue.getDomain());
+					LOG.info("claimed job "+uri+" from before the restart again");
+					return job;
+				}
+				continue;
+			}
+			if (!adopt(job)) {
+				continue;
+			}
+			if (!job.resolve()) {
+				LOG.error("could not resolve job "+uri+" from before the restart");
+				release(job);
+				continue;
+			}
+			DecisionEngine engine = WillieServer.instance().getDecisionEngine();
+			if (engine instanceof DistributedDecisionEngine) {
+				((DistributedDecisionEngine) engine).getLeaseManager().adopt(job);
+			}
+			LOG.info("resuming job "+uri+" from before the restart");
+			return job;
+		}
+		return null;
+	}
+	
+	/**
+	 * Returns an indexed job
+	 * 
+	 * @param jobUri
+	 * @return the job, null if it is not indexed
+	 */
+	public Job findJob(String jobUri) {
+		synchronized (jobIndex) {
+			for(Map<String, Job> jobs : jobIndex.values()) {
+				Job job = jobs.get(jobUri);
+				if (job!=null) {
+					return job;
+				}
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * @param jobUri
+	 * @return true if a worker of this willie is evaluating or running the job
+	 */
+	public boolean isClaimed(String jobUri) {
+		return claims.containsKey(jobUri);
+	}
+	
+	/**
+	 * Handles changes in the queues of the domains we serve, keeps the job
+	 * index in sync without rescanning whole queues.
+	 */
+	public void remoteSignal(String from, String method, String url) {
+		// matches of the queues of every domain come with the pattern appended
+		int comma = url.indexOf(",");
+		if (comma!=-1) {
+			url = url.substring(0, comma);
+		}
+		
+		Queue queue = getQueueOfUri(url);
+		if (queue==null) {
+			// unknown queue or domain, let the next reconcile pick it up
+			LOG.debug("signal for unknown queue "+url);
+			lastReconcile = 0;
+			return;
+		}
+		
+		String rest = url.substring(queue.getUri().length());
+		if (!rest.startsWith("/job/")) {
+			if (method.equals("DELETE") && rest.equals("")) {
+				remove(queue);
+			} else {
+				// queue itself changed, reindex on next request
+				synchronized (jobIndex) {
+					unindexQueue(queue.getUri());
+				}
+			}
+			return;
+		}
+		
+		// determine job and what changed in it
+		String id = rest.substring("/job/".length());
+		String sub = "";
+		int pos = id.indexOf("/");
+		if (pos!=-1) {
+			sub = id.substring(pos);
+			id = id.substring(0, pos);
+		}
+		String jobUri = queue.getUri() + "/job/" + id;
+		
+		// claims and progress don't change the job itself
+		if (sub.startsWith("/status") || sub.startsWith("/error")) {
+			return;
+		}
+		
+		if (method.equals("DELETE") && sub.equals("")) {
+			LOG.debug("removing job from index: "+jobUri);
+			removeFromIndex(queue, jobUri);
+			return;
+		}
+		
+		// job was added or changed, fetch only this job
+		refresh(queue, jobUri);
+	}
+	
+	/**
+	 * Fetches a signalled job in the background, the marge thread delivers
+	 * the other signals meanwhile. Signals that come in before the fetch
+	 * starts are handled by that same fetch.
+	 * 
+	 * @param queue
+	 * @param jobUri
+	 */
+	private void refresh(final Queue queue, final String jobUri) {
+		if (!refreshing.add(jobUri)) {
+			return;
+		}
+		try {
+			refresher.execute(new Runnable() {
+				public void run() {
+					refreshing.remove(jobUri);
+					try {
+						update(queue, jobUri);
+					} catch(Exception e) {
+						LOG.error("Could not update job "+jobUri,e);
+					}
+				}
+			});
+		} catch(RejectedExecutionException e) {
+			// shutting down
+			refreshing.remove(jobUri);
+		}
+	}
+	
+	/**
+	 * Fetches a job and puts it in the index. A job that can't be fetched
+	 * stays indexed as it was, only a delete signal or a reconcile removes it.
+	 * 
+	 * @param queue
+	 * @param jobUri
+	 */
+	private void update(Queue queue, String jobUri) {
+		Job job = queue.getJob(jobUri);
+		if (job==null) {
+			LOG.debug("could not fetch job "+jobUri+", keeping the index as it is");
+			return;
+		}
+		LOG.debug("updating job in index: "+jobUri);
+		RejectionCache.instance().invalidate(jobUri);
+		synchronized (jobIndex) {
+			Map<String, Job> jobs = jobIndex.get(queue.getUri());
+			if (jobs!=null) {
+				unindexSibling(jobs.put(jobUri, job));
+				indexSibling(job);
+				getScheduler(queue.getDomain()).add(queue, job);
+			}
+		}
+	}
+	
+	/**
+	 * Removes a job from the index, for jobs that are done
+	 * 
+	 * @param job
+	 */
+	public void removeFromIndex(Job job) {
+		release(job);
+		Queue queue = getQueueOfUri(job.getUri());
+		if (queue!=null) {
+			removeFromIndex(queue, job.getUri());
+		}
+	}
+	
+	private void removeFromIndex(Queue queue, String jobUri) {
+		synchronized (jobIndex) {
+			Map<String, Job> jobs = jobIndex.get(queue.getUri());
+			if (jobs!=null) {
+				unindexSibling(jobs.remove(jobUri));
+			}
+		}
+		getScheduler(queue.getDomain()).remove(jobUri);
+		RejectionCache.instance().invalidate(jobUri);
+		dependencies.forget(jobUri);
+	}
+	
+	/**
+	 * Returns all indexed jobs
+	 * 
+	 * @return the jobs
+	 */
+	public List<Job> getIndexedJobs() {
+		List<Job> result = new ArrayList<Job>();
+		synchronized (jobIndex) {
+			for(Map<String, Job> jobs : jobIndex.values()) {
+				result.addAll(jobs.values());
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Returns the claim recovery
+	 * 
+	 * @return the claim recovery
+	 */
+	public ClaimRecovery getClaimRecovery() {
+		return recovery;
+	}
+	
+	/**
+	 * Returns the tracker of the jobs waiting for another raw
+	 * 
+	 * @return the dependency tracker
+	 */
+	public DependencyTracker getDependencyTracker() {
+		return dependencies;
+	}
+	
+	/**
+	 * Returns the indexed jobs of a queue, the queue is fetched when it
+	 * has not been indexed yet.
+	 * 
+	 * @param queue
+	 * @return
+	 */
+	private List<Job> getIndexedJobs(Queue queue) {
+		synchronized (jobIndex) {
+			Map<String, Job> jobs = jobIndex.get(queue.getUri());
+			if (jobs!=null) {
+				return new ArrayList<Job>(jobs.values());
+			}
+		}
+		return indexQueue(queue);
+	}
+	
+	/**
+	 * (Re)builds the index of a queue from a full fetch
+	 * 
+	 * @param queue
+	 * @return the jobs of the queue
+	 */
+	private List<Job> indexQueue(Queue queue) {
+		List<Job> jobs = queue.getJobs();
+		if (jobs==null) {
+			// smithers not available, try again next time
+			return new ArrayList<Job>();
+		}
+		return indexQueue(queue, jobs);
+	}
+	
+	/**
+	 * (Re)builds the index of a queue from the given jobs
+	 * 
+	 * @param queue
+	 * @param jobs	all jobs of the queue
+	 * @return the jobs of the queue
+	 */
+	private List<Job> indexQueue(Queue queue, List<Job> jobs) {
+		Map<String, Job> indexed = new LinkedHashMap<String, Job>();
+		for(Job job : jobs) {
+			indexed.put(job.getUri(), job);
+		}
+		synchronized (jobIndex) {
+			unindexQueue(queue.getUri());
+			jobIndex.put(queue.getUri(), indexed);
+			for(Job job : jobs) {
+				indexSibling(job);
+			}
+			getScheduler(queue.getDomain()).update(queue, jobs);
+		}
+		return jobs;
+	}
+	
+	/**
+	 * Removes the jobs of a queue from the index, call with the jobIndex lock
+	 * 
+	 * @param queueUri
+	 */
+	private void unindexQueue(String queueUri) {
+		Map<String, Job> jobs = jobIndex.remove(queueUri);
+		if (jobs!=null) {
+			for(Job job : jobs.values()) {
+				unindexSibling(job);
+			}
+		}
+	}
+	
+	/**
+	 * Adds a job to the sibling index, call with the jobIndex lock
+	 * 
+	 * @param job
+	 */
+	private void indexSibling(Job job) {
+		String key = job.getSiblingKey();
+		if (key==null) {
+			return;
+		}
+		Map<String, Job> siblings = siblingIndex.get(key);
+		if (siblings==null) {
+			siblings = new LinkedHashMap<String, Job>();
+			siblingIndex.put(key, siblings);
+		}
+		siblings.put(job.getUri(), job);
+	}
+	
+	/**
+	 * Removes a job from the sibling index, call with the jobIndex lock
+	 * 
+	 * @param job	the job, may be null
+	 */
+	private void unindexSibling(Job job) {
+		String key = job==null ? null : job.getSiblingKey();
+		if (key==null) {
+			return;
+		}
+		Map<String, Job> siblings = siblingIndex.get(key);
+		if (siblings!=null && siblings.get(job.getUri())==job) {
+			siblings.remove(job.getUri());
+			if (siblings.isEmpty()) {
+				siblingIndex.remove(key);
+			}
+		}
+	}
+	
+	/**
+	 * Rebuilds the whole index when the reconcile interval has passed.
+	 */
+	private void reconcile() {
+		long interval = WillieServer.instance().getConfigurationInt("queuereconcileinterval", DEFAULT_RECONCILE_INTERVAL) * 1000L;
+		long now = System.currentTimeMillis();
+		if (now - lastReconcile < interval) {
+			return;
+		}
+		lastReconcile = now;
+		
+		LOG.debug("reconciling job index");
+		boolean bulk = !"false".equals(WillieServer.instance().getConfiguration().getProperty("bulkfetch"));
+		long start = System.currentTimeMillis();
+		
+		// pick up new domains
+		discoverDomains();
+		
+		List<String> domainSnapshot;
+		synchronized (domains) {
+			domainSnapshot = new ArrayList<String>(domains);
+		}
+		for(String domain : domainSnapshot) {
+			loadQueues(domain, bulk);
+		}
+		
+		List<Queue> snapshot;
+		synchronized (queues) {
+			snapshot = new ArrayList<Queue>(queues);
+		}
+		if (!bulk) {
+			for(Queue queue : snapshot) {
+				indexQueue(queue);
+			}
+		}
+		
+		// forget the rejections of jobs that are gone
+		Set<String> indexed = new HashSet<String>();
+		for(Job job : getIndexedJobs()) {
+			indexed.add(job.getUri());
+		}
+		RejectionCache.instance().retain(indexed);
+		
+		// in case we missed the signal of a raw that is done
+		dependencies.recheck();
+		
+		lastReconcileDuration = System.currentTimeMillis() - start;
+		LOG.info("reconciled "+snapshot.size()+" queues ("+getNumberOfJobs()+" jobs) in "+lastReconcileDuration+" ms using "+(bulk ? "bulk" : "per queue")+" fetch");
+	}
+	
+	/**
+	 * Returns how long the last full reconcile took
+	 * 
+	 * @return duration in milliseconds
+	 */
+	public long getLastReconcileDuration() {
+		return lastReconcileDuration;
+	}
+	
+	/**
+	 * Returns the number of jobs in the index
+	 * 
+	 * @return number of jobs
+	 */
+	public int getNumberOfJobs() {
+		int size = 0;
+		for(JobScheduler scheduler : schedulers.values()) {
+			size += scheduler.size();
+		}
+		return size;
+	}
+	
+	/**
+	 * Returns the scheduler of a domain
+	 * 
+	 * @param domain
+	 * @return the scheduler
+	 */
+	private JobScheduler getScheduler(String domain) {
+		JobScheduler scheduler = schedulers.get(domain);
+		if (scheduler==null) {
+			WillieServer server = WillieServer.instance();
+			long aging = server.getConfigurationInt("queueaging", DEFAULT_QUEUE_AGING) * 1000L;
+			long slack = server.getConfigurationInt("edfslack", DEFAULT_EDF_SLACK) * 1000L;
+			long bound = server.getConfigurationInt("sejfbound", DEFAULT_SEJF_BOUND) * 1000L;
+			schedulers.putIfAbsent(domain, new JobScheduler(aging, getSchedulingMode(), slack, bound));
+			scheduler = schedulers.get(domain);
+		}
+		return scheduler;
+	}
+	
+	/**
+	 * Returns the scheduling mode, set with the schedulingmode option
+	 * 
+	 * @return JobScheduler.MODE_PRIORITY, JobScheduler.MODE_EDF or JobScheduler.MODE_SEJF
+	 */
+	private String getSchedulingMode() {
+		String mode = WillieServer.instance().getConfiguration().getProperty("schedulingmode", JobScheduler.MODE_PRIORITY);
+		if (mode.equalsIgnoreCase(JobScheduler.MODE_EDF)) {
+			return JobScheduler.MODE_EDF;
+		}
+		if (mode.equalsIgnoreCase(JobScheduler.MODE_SEJF)) {
+			return JobScheduler.MODE_SEJF;
+		}
+		return JobScheduler.MODE_PRIORITY;
+	}
+	
+	/**
+	 * Gives feedback on the deadlines of the jobs in edf mode
+	 */
+	private void checkDeadlines() {
+		if (getSchedulingMode().equals(JobScheduler.MODE_EDF)) {
+			admission.check(schedulers.values());
+		}
+	}
+	
+	/**
+	 * Returns the deadline admission
+	 * 
+	 * @return the deadline admission
+	 */
+	public DeadlineAdmission getDeadlineAdmission() {
+		return admission;
+	}
+	
+	/**
+	 * Returns the domains with jobs, the domain that has the smallest share
+	 * of our workers compared to its weight first. 
+	 * 
+	 * @return list of domains
+	 */
+	private List<String> getDomainsByShare() {
+		final Map<String, Integer> active = new HashMap<String, Integer>();
+		for(String domain : running.values()) {
+			Integer count = active.get(domain);
+			active.put(domain, count==null ? 1 : count+1);
+		}
+		
+		List<String> result = new ArrayList<String>();
+		for(Map.Entry<String, JobScheduler> entry : schedulers.entrySet()) {
+			if (entry.getValue().size() > 0) {
+				result.add(entry.getKey());
+			}
+		}
+		Collections.sort(result, new Comparator<String>() {
+			public int compare(String d1, String d2) {
+				// compare active1/weight1 with active2/weight2
+				long share1 = (long) getCount(d1) * getWeight(d2);
+				long share2 = (long) getCount(d2) * getWeight(d1);
+				if (share1 != share2) {
+					return share1 < share2 ? -1 : 1;
+				}
+				return getWeight(d2) - getWeight(d1);
+			}
 			
+			private int getCount(String domain) {
+				Integer count = active.get(domain);
+				return count==null ? 0 : count;
+			}
+		});
+		return result;
+	}
+	
+	/**
+	 * Returns the weight of a domain
+	 * 
+	 * @param domain
+	 * @return the weight
+	 */
+	private int getWeight(String domain) {
+		Integer weight = domainWeights.get(domain);
+		return weight==null ? DEFAULT_DOMAIN_WEIGHT : weight;
+	}
+	
+	/**
+	 * Parses the weight of a domain
+	 * 
+	 * @param weightStr
+	 * @return the weight, at least 1
+	 */
+	private int parseWeight(String weightStr) {
+		try {
+			return Math.max(1, Integer.parseInt(weightStr.trim()));
 		} catch(Exception e) {
-			LOG.error("Could not parse response from smithers",e);
+			return DEFAULT_DOMAIN_WEIGHT;
 		}
-		return true;
 	}
 	
+	/**
+	 * Returns the queue the uri belongs to
+	 * 
+	 * @param uri
+	 * @return the queue, null if not found
+	 */
+	private Queue getQueueOfUri(String uri) {
+		synchronized (queues) {
+			for(Queue queue : queues) {
+				if(uri.equals(queue.getUri()) || uri.startsWith(queue.getUri()+"/")) {
+					return queue;
+				}
+			}
+		}
+		return null;
+	}
+
 	public void destroy() {
-		
+		LazyMarge.removeObserver(QUEUE_URI.replace("{domain}", "*"), this);
+		recovery.destroy();
+		dependencies.destroy();
+		refresher.shutdownNow();
 	}
 }
@@ -0,0 +1,82 @@
+package com.noterik.springfield.willie.queue.dist;
+
+import org.apache.log4j.Logger;
+
+import com.noterik.springfield.willie.WillieServer;
+import com.noterik.springfield.willie.TF.CostEstimator;
+import com.noterik.springfield.willie.TF.InputPrefetcher;
+import com.noterik.springfield.willie.TF.TranscodeStatistics;
+import com.noterik.springfield.willie.queue.Job;
+import com.noterik.springfield.willie.tools.TFHelper;
+
+/**
+ * Offer based decision engine that bids with the estimated time until the
+ * job would be done on this willie, the fastest willie wins. The estimate is
+ * the sum of:
+ * 
+ * - the transfer time and encode time of the input, see CostEstimator
+ * - the time until a worker is free, from the jobs the workers have on hand
+ *   and the average time a job takes
+ * 
+ * All willies of a cluster should use this engine, the bids can't be compared
+ * with the fixed scores of the OfferDecisionEngine.
+ *
+ * @copyright Copyright: Noterik B.V. 2012
+ * @package com.noterik.springfield.willie.queue.dist
+ * @access private
+ *
+ */
+public class CostModelDecisionEngine extends OfferDecisionEngine {
+
+	/** The CostModelDecisionEngine's log4j Logger */
+	private static final Logger log = Logger.getLogger(CostModelDecisionEngine.class);
+	
+	/** Score of a job that would be done right away */
+	private static final int MAX_SCORE = 1000000;
+	
+	protected int getScore(Job job) {
+		boolean local = TFHelper.isLocalJob(job);
+		if (!local && !TFHelper.isFtpJob(job)) {
+			return -1;
+		}
+		
+		// sizes of the input are in the original properties, only the jobs
+		// we bid on get here, see canDo
+		job.resolve();
+		
+		double transfer = local ? 0.0 : CostEstimator.getTransferTime(job);
+		double encode = CostEstimator.getEncodeTime(job);
+		double wait = getWaitTime();
+		double estimate = transfer + encode + wait;
+		
+		log.debug("Estimate for job "+job.getId()+": transfer="+(long) transfer+"s encode="+(long) encode+"s wait="+(long) wait+"s");
+		return (int) Math.max(0, MAX_SCORE - Math.round(estimate));
+	}
+	
+	/**
+	 * The estimate includes the transfer time, so a local file is not a
+	 * certain win.
+	 */
+	protected boolean isCertainWin(int score) {
+		return false;
+	}
+	
+	/**
+	 * Returns the time until a worker is free for the job (in seconds)
+	 */
+	private double getWaitTime() {
+		WillieServer server = WillieServer.instance();
+		if (server==null) {
+			return 0.0;
+		}
+		int active = Math.max(1, server.getNumberOfActiveWorkers());
+		InputPrefetcher prefetcher = server.getInputPrefetcher();
+		int onHand = server.getNumberOfBusyWorkers() + (prefetcher==null ? 0 : prefetcher.size());
+		if (onHand < active) {
+			return 0.0;
+		}
+		long average = TranscodeStatistics.instance().getAverageDuration();
+		double jobTime = average > 0 ? average / 1000.0 : CostEstimator.DEFAULT_ENCODE_TIME;
+		return (onHand - active + 1) * jobTime / active;
+	}
+}
@@ -1,5 +1,7 @@
 package com.noterik.springfield.willie.queue.dist;
 
+import java.util.List;
+
 import com.noterik.springfield.willie.queue.Job;
 
 /**
@@ -19,4 +21,21 @@ public interface DecisionEngine {
 	 * @return If this willie should process the job or not.
 	 */
 	public boolean processJob(Job job);
+	
+	/**
+	 * Returns the jobs this willie should process, in one round for all jobs.
+	 * 
+	 * @param jobs	the candidate jobs, best first
+	 * @param max	maximum number of jobs to take
+	 * @return The jobs this willie should process, at most max.
+	 */
+	public List<Job> processJobs(List<Job> jobs, int max);
+	
+	/**
+	 * Returns if the engine applies the admission control itself, otherwise
+	 * the room for a job is reserved before the engine is asked.
+	 * 
+	 * @return If the engine applies the admission control.
+	 */
+	public boolean appliesAdmission();
 }
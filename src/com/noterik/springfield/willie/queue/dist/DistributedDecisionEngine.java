@@ -1,35 +1,91 @@
 package com.noterik.springfield.willie.queue.dist;
 
 import java.net.UnknownHostException;
+import java.util.List;
 
 import org.apache.log4j.Logger;
 
+import com.noterik.springfield.willie.WillieServer;
+import com.noterik.springfield.willie.homer.LazyHomer;
+import com.noterik.springfield.willie.homer.WillieProperties;
 import com.noterik.springfield.willie.queue.Job;
 
+/**
+ * Decision engine that lets the willie that wins the lease on a job process
+ * it. The lease time is set with the leasettl property (in seconds), the
+ * time competing claims get to come in with leasesettle (in milliseconds).
+ *
+ * @copyright Copyright: Noterik B.V. 2012
+ * @package com.noterik.springfield.willie.queue.dist
+ * @access private
+ *
+ */
 public class DistributedDecisionEngine implements DecisionEngine {
 
 	/** The DistributedDecisionEngine's log4j Logger */
 	private static final Logger LOG = Logger.getLogger(DistributedDecisionEngine.class);
+	
+	/** Default time a lease is valid (in seconds) */
+	private static final int DEFAULT_LEASE_TTL = 60;
+	
+	/** Default time competing claims get to come in (in milliseconds), a few smithers round trips */
+	private static final int DEFAULT_LEASE_SETTLE = 100;
+	
 	private String hostname = null;
+	private LeaseManager leases = null;
+	
+	public DistributedDecisionEngine() {
+		//constructor
+	}
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param leases	lease manager to claim the jobs with
+	 */
+	public DistributedDecisionEngine(LeaseManager leases) {
+		this.leases = leases;
+	}
 	
 	public boolean processJob(Job job) {
-		try {
-			//check if job is already being processed
-			if (!isJobBeingProcessed(job)) {
-				//claim job
-				job.setStatusProperty("transcoder", getHostname());
-				//wait 2,5 seconds to check if we can claim this job
-				Thread.sleep(2500);
-				if (job.getStatusProperty("transcoder") != null && job.getStatusProperty("transcoder").equals(getHostname())) {
-					return true;
-				}
-			}
-		} catch (InterruptedException e) {
-			LOG.error("InterruptedException",e);
-		}
+		return getLeaseManager().acquire(job);
+	}
+	
+	public List<Job> processJobs(List<Job> jobs, int max) {
+		return getLeaseManager().acquireAll(jobs, max);
+	}
+	
+	/**
+	 * The room for a job is reserved before a lease is claimed
+	 */
+	public boolean appliesAdmission() {
 		return false;
 	}
 	
+	/**
+	 * Returns the lease manager, started on first use
+	 * 
+	 * @return the lease manager
+	 */
+	public synchronized LeaseManager getLeaseManager() {
+		if (leases == null) {
+			WillieServer server = WillieServer.instance();
+			int ttl = server==null ? DEFAULT_LEASE_TTL : server.getConfigurationInt("leasettl", DEFAULT_LEASE_TTL);
+			int settle = server==null ? DEFAULT_LEASE_SETTLE : server.getConfigurationInt("leasesettle", DEFAULT_LEASE_SETTLE);
+			leases = new LeaseManager(getOwner(), ttl * 1000L, settle, null);
+		}
+		leases.start();
+		return leases;
+	}
+	
+	private String getOwner() {
+		WillieProperties mp = LazyHomer.getMyWillieProperties();
+		if (mp!=null && mp.getName()!=null) {
+			return mp.getName();
+		}
+		return getHostname();
+	}
+	
 	private String getHostname() {
 		if (hostname == null) {
 			try {
@@ -40,14 +96,4 @@ public class DistributedDecisionEngine implements DecisionEngine {
 		}
 		return hostname;
 	}
-	
-	private boolean isJobBeingProcessed(Job job) {
-		String transcoder = job.getStatusProperty("transcoder");
-		String message = job.getStatusProperty("message");
-		
-		if (transcoder == null && message == null) {
-			return false;
-		}
-		return true;
-	}
 }
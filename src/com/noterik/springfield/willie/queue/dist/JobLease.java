@@ -0,0 +1,139 @@
+package com.noterik.springfield.willie.queue.dist;
+
+import java.util.UUID;
+
+import com.noterik.springfield.willie.util.NameEncoding;
+
+/**
+ * Lease on a job, stored in the lease status property of the job as
+ * owner,token,expires. The token tells the claims of the same owner apart
+ * and orders competing claims, the expiry (in milliseconds since the epoch)
+ * lets other willies take over the job when the owner stops renewing it.
+ *
+ * @copyright Copyright: Noterik B.V. 2012
+ * @package com.noterik.springfield.willie.queue.dist
+ * @access private
+ *
+ */
+public class JobLease {
+	/** Name of the status property the lease is stored in */
+	public static final String PROPERTY = "lease";
+
+	/** Prefix of the status properties the willies put their claims in */
+	public static final String CLAIM_PREFIX = "claim_";
+
+	private String owner;
+	private String token;
+	private long expires;
+
+	/**
+	 * Constructor
+	 *
+	 * @param owner		name of the willie holding the lease
+	 * @param token		token of the claim
+	 * @param expires	expiry time (in milliseconds since the epoch)
+	 */
+	public JobLease(String owner, String token, long expires) {
+		this.owner = owner;
+		this.token = token;
+		this.expires = expires;
+	}
+
+	/**
+	 * Creates a new lease with a fresh token
+	 *
+	 * @param owner		name of the willie holding the lease
+	 * @param ttl		time the lease is valid (in milliseconds)
+	 * @return the lease
+	 */
+	public static JobLease create(String owner, long ttl) {
+		return new JobLease(owner, UUID.randomUUID().toString(), System.currentTimeMillis()+ttl);
+	}
+
+	/**
+	 * Parses the value of the lease status property
+	 *
+	 * @param value
+	 * @return the lease, null if the value is not a valid lease
+	 */
+	public static JobLease parse(String value) {
+		if (value==null) {
+			return null;
+		}
+		// the owner name may contain a comma, the token and expiry don't
+		int last = value.lastIndexOf(",");
+		int middle = last<=0 ? -1 : value.lastIndexOf(",", last-1);
+		if (middle<0) {
+			return null;
+		}
+		try {
+			long expires = Long.parseLong(value.substring(last+1).trim());
+			return new JobLease(value.substring(0, middle), value.substring(middle+1, last), expires);
+		} catch(NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the status property a willie puts its claims in
+	 *
+	 * @param owner	name of the willie
+	 * @return name of the property
+	 */
+	public static String getClaimProperty(String owner) {
+		return CLAIM_PREFIX+NameEncoding.encode(owner);
+	}
+
+	/**
+	 * @param other
+	 * @return true if this claim goes before the other one
+	 */
+	public boolean isBefore(JobLease other) {
+		return token.compareTo(other.token) < 0;
+	}
+
+	/**
+	 * Returns the same claim with a new expiry
+	 *
+	 * @param ttl	time the lease is valid (in milliseconds)
+	 * @return the renewed lease
+	 */
+	public JobLease renew(long ttl) {
+		return new JobLease(owner, token, System.currentTimeMillis()+ttl);
+	}
+
+	/**
+	 * @param now	current time (in milliseconds since the epoch)
+	 * @return true if the lease has expired
+	 */
+	public boolean isExpired(long now) {
+		return now > expires;
+	}
+
+	/**
+	 * @param other
+	 * @return true if the other lease is the same claim
+	 */
+	public boolean isSameClaim(JobLease other) {
+		return other!=null && owner.equals(other.owner) && token.equals(other.token);
+	}
+
+	public String getOwner() {
+		return owner;
+	}
+
+	public String getToken() {
+		return token;
+	}
+
+	public long getExpires() {
+		return expires;
+	}
+
+	/**
+	 * Returns the value of the lease status property
+	 */
+	public String toString() {
+		return owner+","+token+","+expires;
+	}
+}
@@ -0,0 +1,124 @@
+package com.noterik.springfield.willie.queue.dist;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.dom4j.Document;
+import org.dom4j.DocumentException;
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.dom4j.Node;
+import org.springfield.mojo.interfaces.ServiceInterface;
+
+/**
+ * Reads the status properties of jobs. Many jobs are read at once, with one
+ * request per queue instead of one per job. The queue is requested two
+ * levels deep, so every job comes with its status. All status responses are
+ * parsed here.
+ *
+ * @copyright Copyright: Noterik B.V. 2012
+ * @package com.noterik.springfield.willie.queue.dist
+ * @access private
+ *
+ */
+public class JobStatusReader {
+	/** The JobStatusReader's log4j Logger */
+	private static final Logger LOG = Logger.getLogger(JobStatusReader.class);
+
+	/** Depth of the queue request: job and status */
+	private static final String DEPTH_XML = "<fsxml><properties><depth>2</depth></properties></fsxml>";
+
+	/**
+	 * Returns the status properties of a job
+	 *
+	 * @param smithers	smithers to read from
+	 * @param jobUri	uri of the job
+	 * @return the status properties, null if they could not be read
+	 */
+	public static Map<String,String> read(ServiceInterface smithers, String jobUri) {
+		if (smithers==null) {
+			return null;
+		}
+		String response = smithers.get(jobUri + "/status/1/properties", null, null);
+		if (response==null) {
+			return null;
+		}
+		try {
+			Document doc = DocumentHelper.parseText(response);
+			return parseProperties(doc.selectSingleNode("//status/properties"));
+		} catch (DocumentException e) {
+			LOG.error("could not parse response "+response);
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the status properties of jobs
+	 *
+	 * @param smithers	smithers to read from
+	 * @param jobUris	uris of the jobs
+	 * @return the status properties by job uri, jobs that are gone or whose queue could not be read are left out
+	 */
+	public static Map<String, Map<String,String>> read(ServiceInterface smithers, List<String> jobUris) {
+		Map<String, Map<String,String>> result = new HashMap<String, Map<String,String>>();
+		if (smithers==null) {
+			return result;
+		}
+
+		// group the jobs per queue
+		Map<String, List<String>> queues = new LinkedHashMap<String, List<String>>();
+		for(String jobUri : jobUris) {
+			int pos = jobUri.lastIndexOf("/job/");
+			if (pos==-1) {
+				continue;
+			}
+			String queueUri = jobUri.substring(0, pos);
+			List<String> jobs = queues.get(queueUri);
+			if (jobs==null) {
+				jobs = new ArrayList<String>();
+				queues.put(queueUri, jobs);
+			}
+			jobs.add(jobUri);
+		}
+
+		for(Map.Entry<String, List<String>> queue : queues.entrySet()) {
+			String response = smithers.get(queue.getKey(), DEPTH_XML, "text/xml");
+			try {
+				Document doc = DocumentHelper.parseText(response);
+				Map<String, Map<String,String>> statuses = new HashMap<String, Map<String,String>>();
+				for(Object job : doc.selectNodes("//queue/job")) {
+					statuses.put(queue.getKey()+"/job/"+((Node) job).valueOf("@id"), parseProperties(((Node) job).selectSingleNode("status/properties")));
+				}
+				for(String jobUri : queue.getValue()) {
+					// a job that is gone is left out
+					if (statuses.containsKey(jobUri)) {
+						result.put(jobUri, statuses.get(jobUri));
+					}
+				}
+			} catch (DocumentException e) {
+				LOG.error("could not parse response "+response);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the properties below a status properties node
+	 *
+	 * @param pNode	the properties node, may be null
+	 * @return the properties by name
+	 */
+	private static Map<String,String> parseProperties(Node pNode) {
+		Map<String,String> status = new HashMap<String,String>();
+		if (pNode instanceof Element) {
+			for(Object child : ((Element) pNode).elements()) {
+				status.put(((Element) child).getName(), ((Element) child).getText());
+			}
+		}
+		return status;
+	}
+}
@@ -0,0 +1,424 @@
+package com.noterik.springfield.willie.queue.dist;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.springfield.mojo.interfaces.ServiceInterface;
+import org.springfield.mojo.interfaces.ServiceManager;
+
+import com.noterik.springfield.willie.queue.Job;
+import com.noterik.springfield.willie.util.NameEncoding;
+
+/**
+ * Claims jobs with leases and keeps the leases of the claimed jobs alive.
+ *
+ * Smithers has no conditional write, so a claim is decided by a rule every
+ * willie applies to the same data. A willie reads the status properties of
+ * the job, and when there is no valid lease of another willie it writes a
+ * claim in its own claim_{name} property. After a settle delay it reads the
+ * status back: the claim with the lowest token wins, unless another willie
+ * got the lease meanwhile. Only the winner writes the lease. A willie that
+ * claims later than the settle delay finds the lease and backs off. The
+ * lease is checked once more before the job is started.
+ *
+ * A batch claim costs one status read, one claim write per job, the settle
+ * delay, one read back, and a lease and a transcoder write per job won. The
+ * reads are one request per queue. So a claim takes at least the settle
+ * delay plus two round trips, where a willie that simply writes itself as
+ * transcoder takes one. The settle delay only has to cover a read and a
+ * write of another willie, it is kept short for that reason.
+ *
+ * Leases are renewed at a third of their lifetime until the job is deleted,
+ * so the lease of a willie that went down expires and the job can be
+ * claimed again.
+ *
+ * Smithers is passed in, so the protocol can be run against a stand-in.
+ *
+ * @copyright Copyright: Noterik B.V. 2012
+ * @package com.noterik.springfield.willie.queue.dist
+ * @access private
+ *
+ */
+public class LeaseManager {
+	/** The LeaseManager's log4j Logger */
+	private static final Logger LOG = Logger.getLogger(LeaseManager.class);
+
+	/** States of a job */
+	private static final int FREE = 0;
+	private static final int HELD = 1;
+	private static final int TAKEN = 2;
+
+	/** Name of this willie */
+	private String owner;
+
+	/** Time a lease is valid (in milliseconds) */
+	private long ttl;
+
+	/** Time the claims of other willies get to come in (in milliseconds) */
+	private long settle;
+
+	/** Status property this willie puts its claims in */
+	private String claimProperty;
+
+	/** Smithers, null to look it up on every call */
+	private ServiceInterface smithers;
+
+	/** Leases held by this willie by job uri */
+	private Map<String, JobLease> held;
+
+	/** Renews the leases */
+	private ScheduledExecutorService renewer;
+
+	/**
+	 * Constructor
+	 *
+	 * @param owner		name of this willie
+	 * @param ttl		time a lease is valid (in milliseconds)
+	 * @param settle	time the claims of other willies get to come in (in milliseconds)
+	 * @param smithers	smithers to use, null to use the one of the service manager
+	 */
+	public LeaseManager(String owner, long ttl, long settle, ServiceInterface smithers) {
+		this.owner = owner;
+		this.ttl = ttl;
+		this.settle = settle;
+		this.smithers = smithers;
+		claimProperty = JobLease.getClaimProperty(owner);
+		held = new ConcurrentHashMap<String, JobLease>();
+	}
+
+	/**
+	 * Starts renewing the held leases
+	 */
+	public synchronized void start() {
+		if (renewer!=null) {
+			return;
+		}
+		renewer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "willie-lease-renewer");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		long period = Math.max(1000L, ttl/3);
+		renewer.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					renewAll();
+				} catch(Exception e) {
+					LOG.error("Renewing leases failed",e);
+				}
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops renewing the held leases
+	 */
+	public synchronized void destroy() {
+		if (renewer!=null) {
+			renewer.shutdownNow();
+			renewer = null;
+		}
+	}
+
+	/**
+	 * Tries to claim a job
+	 *
+	 * @param job	the job
+	 * @return true if this willie holds the lease on the job
+	 */
+	public boolean acquire(Job job) {
+		List<Job> jobs = new ArrayList<Job>();
+		jobs.add(job);
+		return !acquireAll(jobs, 1).isEmpty();
+	}
+
+	/**
+	 * Tries to claim several jobs at once. The claims are written together
+	 * and read back together after one settle delay.
+	 *
+	 * @param jobs	the candidate jobs, best first
+	 * @param max	maximum number of jobs to claim
+	 * @return the jobs this willie holds the lease on
+	 */
+	public List<Job> acquireAll(List<Job> jobs, int max) {
+		List<Job> result = new ArrayList<Job>();
+		Map<String, Map<String, String>> statuses = readStatuses(jobs);
+
+		long now = System.currentTimeMillis();
+		Map<Job, JobLease> claimed = new LinkedHashMap<Job, JobLease>();
+		for(Job job : jobs) {
+			if (result.size()+claimed.size() >= max) {
+				break;
+			}
+			Map<String, String> properties = statuses.get(job.getUri());
+			if (properties==null) {
+				continue;
+			}
+			int state = getState(job.getUri(), properties, now);
+			if (state==HELD) {
+				result.add(job);
+			} else if (state==FREE) {
+				JobLease claim = JobLease.create(owner, ttl);
+				if (putProperty(job.getUri(), claimProperty, claim.toString())) {
+					claimed.put(job, claim);
+				}
+			}
+		}
+		if (claimed.isEmpty()) {
+			return result;
+		}
+
+		// let the claims of willies that read the status at the same moment come in
+		try {
+			Thread.sleep(settle);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		statuses = readStatuses(new ArrayList<Job>(claimed.keySet()));
+		now = System.currentTimeMillis();
+		for(Map.Entry<Job, JobLease> entry : claimed.entrySet()) {
+			String uri = entry.getKey().getUri();
+			Map<String, String> properties = statuses.get(uri);
+			if (properties==null || !isWinner(entry.getValue(), properties, now)) {
+				LOG.debug("Lost the claim on job "+uri);
+				continue;
+			}
+			held.put(uri, entry.getValue());
+			putLease(uri, entry.getValue());
+			putProperty(uri, "transcoder", NameEncoding.encode(owner));
+			result.add(entry.getKey());
+		}
+		return result;
+	}
+
+	/**
+	 * Decides whether a claim of this willie won, the same way on every willie
+	 *
+	 * @param claim			the claim of this willie
+	 * @param properties	status properties read after the settle delay
+	 * @param now			current time
+	 * @return true if the claim won
+	 */
+	private boolean isWinner(JobLease claim, Map<String, String> properties, long now) {
+		// another willie got the lease meanwhile, or doesn't use leases
+		JobLease current = JobLease.parse(properties.get(JobLease.PROPERTY));
+		if (current==null ? properties.containsKey("transcoder") || properties.containsKey("message") : !current.isExpired(now)) {
+			return false;
+		}
+		// our claim was written over by a later one of ourselves
+		if (!claim.isSameClaim(JobLease.parse(properties.get(claimProperty)))) {
+			return false;
+		}
+		for(Map.Entry<String, String> property : properties.entrySet()) {
+			if (!property.getKey().startsWith(JobLease.CLAIM_PREFIX)) {
+				continue;
+			}
+			JobLease other = JobLease.parse(property.getValue());
+			if (other!=null && !other.isExpired(now) && other.isBefore(claim)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Checks this willie still holds the lease on a job, right before the job
+	 * is started.
+	 *
+	 * @param jobUri	uri of the job
+	 * @return true if the lease is still held
+	 */
+	public boolean verify(String jobUri) {
+		JobLease lease = held.get(jobUri);
+		if (lease==null) {
+			return false;
+		}
+		Map<String, String> properties = getStatusProperties(jobUri);
+		if (properties==null) {
+			// smithers not reachable, the renewal checks again
+			return true;
+		}
+		if (!lease.isSameClaim(JobLease.parse(properties.get(JobLease.PROPERTY)))) {
+			LOG.warn("Lease on job "+jobUri+" is not held anymore, not starting it");
+			held.remove(jobUri);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the status properties of jobs, with one request for a single
+	 * job and one request per queue for more
+	 */
+	private Map<String, Map<String, String>> readStatuses(List<Job> jobs) {
+		if (jobs.size()!=1) {
+			return JobStatusReader.read(getSmithers(), getUris(jobs));
+		}
+		Map<String, Map<String, String>> statuses = new HashMap<String, Map<String, String>>();
+		Map<String, String> properties = getStatusProperties(jobs.get(0).getUri());
+		if (properties!=null) {
+			statuses.put(jobs.get(0).getUri(), properties);
+		}
+		return statuses;
+	}
+
+	/**
+	 * Returns whether a job can be claimed
+	 *
+	 * @return FREE, HELD by this willie or TAKEN by another
+	 */
+	private int getState(String uri, Map<String, String> properties, long now) {
+		JobLease current = JobLease.parse(properties.get(JobLease.PROPERTY));
+		if (current==null) {
+			// processed by a willie that doesn't use leases
+			if (properties.containsKey("transcoder") || properties.containsKey("message")) {
+				return TAKEN;
+			}
+		} else if (!current.isExpired(now)) {
+			if (current.isSameClaim(held.get(uri))) {
+				return HELD;
+			}
+			LOG.debug("Job "+uri+" is leased by "+current.getOwner());
+			return TAKEN;
+		} else {
+			LOG.info("Lease of "+current.getOwner()+" on job "+uri+" expired, claiming it");
+		}
+		return FREE;
+	}
+
+	private List<String> getUris(List<Job> jobs) {
+		List<String> uris = new ArrayList<String>();
+		for(Job job : jobs) {
+			uris.add(job.getUri());
+		}
+		return uris;
+	}
+
+	/**
+	 * Takes the lease on a job that was handed over by another willie
+	 *
+	 * @param job	the job
+	 */
+	public void adopt(Job job) {
+		JobLease lease = JobLease.create(owner, ttl);
+		if (putLease(job.getUri(), lease)) {
+			held.put(job.getUri(), lease);
+		}
+	}
+
+	/**
+	 * Renews the lease on a job
+	 *
+	 * @param jobUri	uri of the job
+	 * @return true if the lease is still held
+	 */
+	public boolean renew(String jobUri) {
+		JobLease lease = held.get(jobUri);
+		if (lease==null) {
+			return false;
+		}
+		Map<String, String> properties = getStatusProperties(jobUri);
+		if (properties==null) {
+			// smithers not reachable, try again next time
+			return true;
+		}
+		JobLease current = JobLease.parse(properties.get(JobLease.PROPERTY));
+		if (current==null) {
+			LOG.debug("Job "+jobUri+" is gone, stop renewing its lease");
+			held.remove(jobUri);
+			return false;
+		}
+		if (!lease.isSameClaim(current)) {
+			LOG.warn("Lease on job "+jobUri+" was taken over by "+current.getOwner());
+			held.remove(jobUri);
+			return false;
+		}
+		JobLease renewed = lease.renew(ttl);
+		if (putLease(jobUri, renewed)) {
+			held.put(jobUri, renewed);
+		}
+		return true;
+	}
+
+	/**
+	 * Stops renewing the lease on a job
+	 *
+	 * @param jobUri	uri of the job
+	 */
+	public void release(String jobUri) {
+		held.remove(jobUri);
+	}
+
+	/**
+	 * Gives up the lease on a job, so it can be handed over to another willie
+	 *
+	 * @param jobUri	uri of the job
+	 */
+	public void surrender(String jobUri) {
+		if (held.remove(jobUri)==null) {
+			return;
+		}
+		ServiceInterface service = getSmithers();
+		if (service==null) return;
+		service.delete(jobUri + "/status/1/properties/"+JobLease.PROPERTY, null, null);
+	}
+
+	/**
+	 * @param jobUri	uri of the job
+	 * @return true if this willie holds the lease on the job
+	 */
+	public boolean isHeld(String jobUri) {
+		return held.containsKey(jobUri);
+	}
+
+	/**
+	 * @return number of leases held
+	 */
+	public int size() {
+		return held.size();
+	}
+
+	private void renewAll() {
+		for(Iterator<String> iter = held.keySet().iterator(); iter.hasNext(); ) {
+			renew(iter.next());
+		}
+	}
+
+	private boolean putLease(String jobUri, JobLease lease) {
+		return putProperty(jobUri, JobLease.PROPERTY, lease.toString());
+	}
+
+	private boolean putProperty(String jobUri, String property, String value) {
+		ServiceInterface service = getSmithers();
+		if (service==null) return false;
+		service.put(jobUri + "/status/1/properties/"+property, value, "text/xml");
+		return true;
+	}
+
+	/**
+	 * Returns all status properties of a job in one request
+	 *
+	 * @param jobUri	uri of the job
+	 * @return the properties, null if smithers could not be reached
+	 */
+	private Map<String, String> getStatusProperties(String jobUri) {
+		return JobStatusReader.read(getSmithers(), jobUri);
+	}
+
+	private ServiceInterface getSmithers() {
+		return smithers!=null ? smithers : ServiceManager.getService("smithers");
+	}
+}
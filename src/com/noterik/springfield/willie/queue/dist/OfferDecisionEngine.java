@@ -1,20 +1,38 @@
 package com.noterik.springfield.willie.queue.dist;
 
-import java.net.URLDecoder;
-import java.net.URLEncoder;
-import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.apache.log4j.Logger;
-import org.dom4j.Node;
+import org.springfield.mojo.interfaces.ServiceManager;
 
+import com.noterik.springfield.willie.WillieServer;
+import com.noterik.springfield.willie.TF.AdmissionController;
+import com.noterik.springfield.willie.homer.HashRing;
+import com.noterik.springfield.willie.homer.HeartbeatMonitor;
 import com.noterik.springfield.willie.homer.LazyHomer;
+import com.noterik.springfield.willie.homer.LazyMarge;
+import com.noterik.springfield.willie.homer.MargeObserver;
+import com.noterik.springfield.willie.homer.WillieProperties;
 import com.noterik.springfield.willie.queue.Job;
 import com.noterik.springfield.willie.tools.TFHelper;
+import com.noterik.springfield.willie.util.NameEncoding;
 
 /**
  * Decision engine to pick who does encoding jobs based on local, ftp access
  *
+ * Every willie writes an offer on the job, a willie that can't do the job
+ * offers -1. The round closes as soon as all live willies made an offer, or
+ * after a timeout that adapts to the observed offer latency and the size
+ * of the cluster (at most offertimeout milliseconds). The highest offer
+ * wins, on equal offers the lowest name.
+ *
  * @author Daniel Ockeloen <daniel@noterik.nl>
  * @copyright Copyright: Noterik B.V. 2012
  * @package com.noterik.springfield.willie.tools
@@ -24,86 +42,395 @@ import com.noterik.springfield.willie.tools.TFHelper;
  */
 public class OfferDecisionEngine implements DecisionEngine {
 
-	/** The DistributedDecisionEngine's log4j Logger */
+	/** The OfferDecisionEngine's log4j Logger */
 	private static final Logger log = Logger.getLogger(OfferDecisionEngine.class);
-	private String hostname = null;
+	
+	/** Offer of a willie that can't do the job */
+	private static final int DECLINE = -1;
+	
+	/** Shortest time to wait for offers (in milliseconds) */
+	private static final long MIN_TIMEOUT = 100;
+	
+	/** Default longest time to wait for offers (in milliseconds) */
+	private static final int DEFAULT_MAX_TIMEOUT = 2500;
+	
+	/** Extra time to wait for each willie (in milliseconds) */
+	private static final long TIMEOUT_PER_WILLIE = 25;
+	
+	/** Weight of a new sample in the latency average */
+	private static final double LATENCY_WEIGHT = 0.2;
+	
+	/** Average time until all offers were in (in milliseconds) */
+	private double latency = 200.0;
+	
+	/**
+	 * Returns the status property a willie puts its offers in
+	 * 
+	 * @param name	name of the willie
+	 * @return name of the property
+	 */
+	public static String getOfferProperty(String name) {
+		return "offer_"+NameEncoding.encode(name);
+	}
 	
 	public boolean processJob(Job job) {
 
 		try {
+			String myname = LazyHomer.getMyWillieProperties().getName();
+			String myoffer = getOfferProperty(myname);
+			
+			// all offer state in one request
+			Map<String,String> status = job.getStatusPropertyMap();
+			if (status==null) {
+				return false;
+			}
 			//check if job is already being processed
-			if (!isJobBeingProcessed(job) && !hasVoted(job)) {
-				String myname = LazyHomer.getMyWillieProperties().getName();
-				int score = 0; // we start with a score of zero
-				
-				// The trick is to make a offer for the job, after x seconds each node
-				// will look at the offers and pick a winner.
-						
-				// do we have access to the file ?
-				//log.debug("LOCALFILE="+TFHelper.isLocalJob(job));
-				if (TFHelper.isLocalJob(job)) {
-					score = score + 1000; // its a local file 
-				} else {
-					if (TFHelper.isFtpJob(job)) {
-						score = score + 100; // its remote but we can reach it using ftp
-					} else {
-						score = -1;
-					}
-				} 
-				
-				// we can use the position in the list and a mod to device a know 'random'
-				if (score!=-1) {
-					try {
-						int m = Integer.parseInt(job.getId())%LazyHomer.getNumberOfWillies();
-						if (m==(LazyHomer.getMyWilliePosition()-1)) {
-							score++;
-						}
-					} catch (Exception e) {};
-						
+			if (isJobBeingProcessed(status) || hasVoted(status, myoffer)) {
+				return false;
+			}
+			
+			if (!canDo(job)) {
+				// we refuse the job, but let the others know so they don't wait for us
+				decline(job, status, myoffer);
+				RejectionCache.instance().reject(job);
+				return false;
+			}
+			int state = AdmissionController.instance().check(job);
+			if (state==AdmissionController.REJECT) {
+				// no room right now, decline but look at the job again later
+				decline(job, status, myoffer);
+				return false;
+			}
+			int score = admit(job, getScore(job), state);
+			log.info("My offer score ="+score+"(willie count ="+LazyHomer.getNumberOfWillies()+" preferred owner="+HashRing.getWillieRing().getOwner(getRingKey(job))+")");
+			if (score==DECLINE) {
+				decline(job, status, myoffer);
+				RejectionCache.instance().reject(job);
+				return false;
+			}
+			
+			if (isCertainWin(score)) {
+				// we claim victory right away we won by default !
+				job.setStatusProperty(myoffer,""+score);
+				job.setStatusProperty("transcoder", NameEncoding.encode(myname));
+				return true;
+			}
+			
+			// The trick is to make a offer for the job, and pick a winner when all 
+			// offers are in. Listen before offering so no offer is missed.
+			OfferRound round = new OfferRound();
+			String statusUri = job.getUri()+"/status";
+			LazyMarge.addObserver(statusUri, round);
+			try {
+				job.setStatusProperty(myoffer,""+score);
+				status = awaitOffers(Collections.singletonList(job), round).get(job.getUri());
+			} finally {
+				LazyMarge.removeObserver(statusUri, round);
+			}
+			
+			if (status!=null && !isJobBeingProcessed(status) && myname.equals(getWinningOffer(status))) {
+				// we won the offer claim it
+				job.setStatusProperty("transcoder",NameEncoding.encode(myname));
+				return true;
+			}
+		} catch (InterruptedException e) {
+			log.error("InterruptedException",e);
+		}
+		return false;
+	}
+	
+	/**
+	 * Makes offers on several jobs in one round, and waits for all offers
+	 * together.
+	 */
+	public List<Job> processJobs(List<Job> jobs, int max) {
+		List<Job> won = new ArrayList<Job>();
+		List<Job> pending = new ArrayList<Job>();
+		OfferRound round = new OfferRound();
+		try {
+			String myname = LazyHomer.getMyWillieProperties().getName();
+			String myoffer = getOfferProperty(myname);
+			
+			// all offer state in one request per queue
+			Map<String,Map<String,String>> statuses = readStatuses(jobs);
+			for(Job job : jobs) {
+				// don't bid on more jobs than we can take, a job we win must be claimed
+				if (won.size()+pending.size() >= max) {
+					break;
 				}
-				log.info("My offer score ="+score+"(willie count ="+LazyHomer.getNumberOfWillies()+" my pos="+LazyHomer.getMyWilliePosition()+")");
-				if (score==-1) {
-					// we refuse to make a offer on the job, so return false;
-					return false;
+				Map<String,String> status = statuses.get(job.getUri());
+				if (status==null || isJobBeingProcessed(status) || hasVoted(status, myoffer)) {
+					continue;
 				}
-				job.setStatusProperty("offer_"+URLEncoder.encode(myname),""+score);
-				
-				//job.setStatusProperty("transcoder", myname);
 				
-				if (score<1000) {
-					// we are not sure if we won so wait for 2.5 seconds and
-					// check the offers
-					if (score<1000) Thread.sleep(2500);
-					if (getWinningOffer(job).equals(myname)) {
-						// we won the offer claim it
-						job.setStatusProperty("transcoder",URLEncoder.encode(myname));
-						return true;	
-					}
+				if (!canDo(job)) {
+					decline(job, status, myoffer);
+					RejectionCache.instance().reject(job);
+					continue;
+				}
+				int state = AdmissionController.instance().check(job);
+				if (state==AdmissionController.REJECT) {
+					// no room right now, decline but look at the job again later
+					decline(job, status, myoffer);
+					continue;
+				}
+				int score = admit(job, getScore(job), state);
+				if (score==DECLINE) {
+					decline(job, status, myoffer);
+					RejectionCache.instance().reject(job);
+				} else if (isCertainWin(score)) {
+					job.setStatusProperty(myoffer,""+score);
+					job.setStatusProperty("transcoder", NameEncoding.encode(myname));
+					won.add(job);
 				} else {
-					// we claim victory right away we won by default !
-					job.setStatusProperty("transcoder", URLEncoder.encode(myname));
-					return true;
+					LazyMarge.addObserver(job.getUri()+"/status", round);
+					pending.add(job);
+					job.setStatusProperty(myoffer,""+score);
+				}
+			}
+			if (pending.isEmpty()) {
+				return won;
+			}
+			log.info("Offered on "+pending.size()+" jobs, "+won.size()+" won right away");
+			
+			statuses = awaitOffers(pending, round);
+			for(Job job : pending) {
+				Map<String,String> status = statuses.get(job.getUri());
+				if (status!=null && !isJobBeingProcessed(status) && myname.equals(getWinningOffer(status))) {
+					job.setStatusProperty("transcoder",NameEncoding.encode(myname));
+					won.add(job);
 				}
 			}
 		} catch (InterruptedException e) {
 			log.error("InterruptedException",e);
+		} finally {
+			for(Job job : pending) {
+				LazyMarge.removeObserver(job.getUri()+"/status", round);
+			}
+		}
+		return won;
+	}
+	
+	/**
+	 * The admission control is applied to the offer, so it is only checked
+	 * for the jobs we bid on
+	 */
+	public boolean appliesAdmission() {
+		return true;
+	}
+	
+	/**
+	 * Returns if this willie can reach the input of a job. This is checked
+	 * before the admission control and the score, so only the jobs we bid on
+	 * are scored.
+	 * 
+	 * @param job
+	 * @return true for a local file or a file we can reach using ftp
+	 */
+	protected boolean canDo(Job job) {
+		return TFHelper.isLocalJob(job) || TFHelper.isFtpJob(job);
+	}
+	
+	/**
+	 * Returns the offer of this willie for a job
+	 * 
+	 * @param job
+	 * @return the score, -1 if we can't do the job
+	 */
+	protected int getScore(Job job) {
+		int score = 0; // we start with a score of zero
+		
+		// do we have access to the file ?
+		//log.debug("LOCALFILE="+TFHelper.isLocalJob(job));
+		if (TFHelper.isLocalJob(job)) {
+			score = score + 1000; // its a local file 
+		} else {
+			if (TFHelper.isFtpJob(job)) {
+				score = score + 100; // its remote but we can reach it using ftp
+			} else {
+				return DECLINE;
+			}
+		} 
+		
+		// the preferred owner of the job on the hash ring breaks the ties, the
+		// same willie keeps the same jobs when other willies join or leave
+		WillieProperties mp = LazyHomer.getMyWillieProperties();
+		if (mp!=null && mp.getName().equals(HashRing.getWillieRing().getOwner(getRingKey(job)))) {
+			score++;
+		}
+		
+		return score;
+	}
+	
+	/**
+	 * Returns the key of a job on the hash ring. Jobs that read the same input
+	 * share a key, so they end up on the same willie and can be transcoded
+	 * in one go.
+	 */
+	private static String getRingKey(Job job) {
+		String key = job.getSiblingKey();
+		return key!=null ? key : job.getUri();
+	}
+	
+	/**
+	 * Applies the admission control to an offer. A busy willie bids half, so
+	 * the other willies get the job first. The room for the job is reserved
+	 * while bidding, so the next jobs of a round can't count on it.
+	 * 
+	 * @param job
+	 * @param score	the offer
+	 * @param state	outcome of the admission check, ADMIT or BUSY
+	 * @return the offer, DECLINE if we decline the job
+	 */
+	private int admit(Job job, int score, int state) {
+		if (score==DECLINE) {
+			return DECLINE;
+		}
+		AdmissionController.instance().reserve(job);
+		return state==AdmissionController.BUSY ? score/2 : score;
+	}
+	
+	/**
+	 * Returns if an offer can't be beaten, so the job can be claimed without
+	 * waiting for the other offers
+	 * 
+	 * @param score
+	 * @return true for a local file
+	 */
+	protected boolean isCertainWin(int score) {
+		return score>=1000;
+	}
+	
+	/**
+	 * Waits until every willie made an offer on the jobs, they are claimed
+	 * or the round times out. After the first read only the status of the
+	 * jobs that were signalled is read again, and once more at the end of the
+	 * round for the jobs that are still open, in case a signal was missed.
+	 * 
+	 * @return the status properties at the end of the round by job uri
+	 */
+	private Map<String,Map<String,String>> awaitOffers(List<Job> jobs, OfferRound round) throws InterruptedException {
+		int willies = HeartbeatMonitor.instance().getNumberOfActiveWillies();
+		long start = System.currentTimeMillis();
+		long deadline = start + getTimeout(willies);
+		
+		Map<String,Map<String,String>> statuses = new HashMap<String,Map<String,String>>();
+		statuses.putAll(readStatuses(jobs));
+		List<Job> open = getOpen(jobs, statuses, willies);
+		while (!open.isEmpty()) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				statuses.putAll(readStatuses(open));
+				open = getOpen(open, statuses, willies);
+				if (!open.isEmpty()) {
+					log.debug("Offer round for "+jobs.size()+" jobs timed out, "+open.size()+" still open");
+					return statuses;
+				}
+				break;
+			}
+			Set<String> changed = round.await(remaining);
+			for(Job job : open) {
+				if (isChanged(job, changed)) {
+					Map<String,String> status = job.getStatusPropertyMap();
+					if (status!=null) {
+						statuses.put(job.getUri(), status);
+					}
+				}
+			}
+			open = getOpen(open, statuses, willies);
+		}
+		updateLatency(System.currentTimeMillis() - start);
+		return statuses;
+	}
+	
+	/**
+	 * Returns the jobs that are not claimed and miss offers
+	 */
+	private List<Job> getOpen(List<Job> jobs, Map<String,Map<String,String>> statuses, int willies) {
+		List<Job> open = new ArrayList<Job>();
+		for(Job job : jobs) {
+			Map<String,String> status = statuses.get(job.getUri());
+			if (status==null || (!isJobBeingProcessed(status) && countOffers(status) < willies)) {
+				open.add(job);
+			}
+		}
+		return open;
+	}
+	
+	private static boolean isChanged(Job job, Set<String> changed) {
+		String statusUri = job.getUri()+"/status";
+		for(String url : changed) {
+			if (url.startsWith(statusUri)) {
+				return true;
+			}
 		}
 		return false;
 	}
 	
-	private String getWinningOffer(Job job) {
+	/**
+	 * Returns the status properties of jobs, one request for a single job or
+	 * one request per queue for more
+	 */
+	private Map<String,Map<String,String>> readStatuses(List<Job> jobs) {
+		if (jobs.size()==1) {
+			Map<String,Map<String,String>> statuses = new HashMap<String,Map<String,String>>();
+			Map<String,String> status = jobs.get(0).getStatusPropertyMap();
+			if (status!=null) {
+				statuses.put(jobs.get(0).getUri(), status);
+			}
+			return statuses;
+		}
+		List<String> uris = new ArrayList<String>();
+		for(Job job : jobs) {
+			uris.add(job.getUri());
+		}
+		return JobStatusReader.read(ServiceManager.getService("smithers"), uris);
+	}
+	
+	/**
+	 * Returns how long to wait for the offers, based on the average latency
+	 * and the number of willies
+	 */
+	private long getTimeout(int willies) {
+		WillieServer server = WillieServer.instance();
+		long max = server==null ? DEFAULT_MAX_TIMEOUT : server.getConfigurationInt("offertimeout", DEFAULT_MAX_TIMEOUT);
+		long timeout;
+		synchronized (this) {
+			timeout = (long) (2 * latency) + TIMEOUT_PER_WILLIE * willies;
+		}
+		return Math.min(max, Math.max(MIN_TIMEOUT, timeout));
+	}
+	
+	private synchronized void updateLatency(long sample) {
+		latency = (1 - LATENCY_WEIGHT) * latency + LATENCY_WEIGHT * sample;
+		log.debug("Offer round closed in "+sample+" ms, average "+(long) latency+" ms");
+	}
+	
+	private int countOffers(Map<String,String> status) {
+		int offers = 0;
+		for(Iterator<String> iter = status.keySet().iterator(); iter.hasNext(); ) {
+			if (iter.next().indexOf("offer_")==0) {
+				offers++;
+			}
+		}
+		return offers;
+	}
+	
+	private String getWinningOffer(Map<String,String> status) {
 		String winner = "unknown";
-		int maxscore = -1;
-		for(Iterator<String> iter = job.getStatusProperties().iterator(); iter.hasNext(); ) {
-			String offer = iter.next();
-			if (offer.indexOf("offer_")==0) { // is it a valid offer ?
-				int pos = offer.indexOf("=");
-				int score = Integer.parseInt(offer.substring(pos+1));
-				if (score>maxscore) {
+		int maxscore = DECLINE;
+		for(Map.Entry<String,String> offer : status.entrySet()) {
+			if (offer.getKey().indexOf("offer_")==0) { // is it a valid offer ?
+				int score;
+				try {
+					score = Integer.parseInt(offer.getValue().trim());
+				} catch (NumberFormatException e) {
+					continue;
+				}
+				String name = NameEncoding.decode(offer.getKey().substring(6));
+				if (score>maxscore || (score==maxscore && score!=DECLINE && name.compareTo(winner)<0)) {
 					maxscore = score;
-					winner = offer.substring(0,pos);
-					winner = winner.substring(6);
-					winner = URLDecoder.decode(winner);
+					winner = name;
 				}
 			}
 		}
@@ -111,8 +438,8 @@ public class OfferDecisionEngine implements DecisionEngine {
 		return winner;
 	}
 	
-	private boolean isJobBeingProcessed(Job job) {
-		String transcoder = job.getStatusProperty("transcoder");
+	private boolean isJobBeingProcessed(Map<String,String> status) {
+		String transcoder = status.get("transcoder");
 		if (transcoder == null) {
 			return false;
 		}
@@ -120,13 +447,55 @@ public class OfferDecisionEngine implements DecisionEngine {
 		return true;
 	}
 	
-	private boolean hasVoted(Job job) {
-		String myname = LazyHomer.getMyWillieProperties().getName();
-		String transcoder = job.getStatusProperty("offer_"+URLEncoder.encode(myname));
-		if (transcoder == null) {
+	/**
+	 * Lets the others know we decline a job, so they don't wait for us. The
+	 * decline is only written when our offer isn't a decline already.
+	 */
+	private void decline(Job job, Map<String,String> status, String myoffer) {
+		if (isDecline(status.get(myoffer))) {
+			return;
+		}
+		job.setStatusProperty(myoffer,""+DECLINE);
+	}
+	
+	private static boolean isDecline(String offer) {
+		return offer!=null && offer.trim().equals(""+DECLINE);
+	}
+	
+	private boolean hasVoted(Map<String,String> status, String myoffer) {
+		String offer = status.get(myoffer);
+		// a declined job is looked at again, we may be able to do it now
+		if (offer == null || isDecline(offer)) {
 			return false;
 		}
-		log.debug("Job is offered "+transcoder);
+		log.debug("Job is offered "+offer);
 		return true;
 	}
+	
+	/**
+	 * Wakes up the offer round when the status of a job changes
+	 */
+	private static class OfferRound implements MargeObserver {
+		/** Urls signalled since the last wait */
+		private Set<String> signalled = new HashSet<String>();
+		
+		public synchronized void remoteSignal(String from, String method, String url) {
+			signalled.add(url);
+			notifyAll();
+		}
+		
+		/**
+		 * Waits for a signal
+		 * 
+		 * @return the urls signalled meanwhile, empty when it timed out
+		 */
+		synchronized Set<String> await(long timeout) throws InterruptedException {
+			if (signalled.isEmpty()) {
+				wait(timeout);
+			}
+			Set<String> urls = signalled;
+			signalled = new HashSet<String>();
+			return urls;
+		}
+	}
 }
@@ -0,0 +1,117 @@
+package com.noterik.springfield.willie.queue.dist;
+
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.noterik.springfield.willie.homer.LazyHomer;
+import com.noterik.springfield.willie.queue.Job;
+
+/**
+ * Remembers the jobs the decision engine rejected because this willie
+ * can't do them, like jobs on a mount it can't reach. Such jobs are
+ * skipped on later scans without asking the decision engine again.
+ *
+ * A rejection is stored with the mount of the job and the version of the
+ * mounts, it no longer counts when either changed. Changes to the job
+ * itself drop the rejection.
+ *
+ * @copyright Copyright: Noterik B.V. 2012
+ * @package com.noterik.springfield.willie.queue.dist
+ * @access private
+ *
+ */
+public class RejectionCache {
+	/** instance */
+	private static RejectionCache instance = new RejectionCache();
+
+	/** Inputs of the rejection by job uri */
+	private ConcurrentHashMap<String, String> rejected;
+
+	/** Number of evaluations saved */
+	private AtomicLong hits;
+
+	/**
+	 * Sole constructor
+	 */
+	private RejectionCache() {
+		rejected = new ConcurrentHashMap<String, String>();
+		hits = new AtomicLong();
+	}
+
+	/**
+	 * Return RejectionCache instance
+	 *
+	 * @return RejectionCache instance
+	 */
+	public static RejectionCache instance() {
+		return instance;
+	}
+
+	/**
+	 * Records that this willie can't do a job
+	 *
+	 * @param job
+	 */
+	public void reject(Job job) {
+		rejected.put(job.getUri(), getInputs(job));
+	}
+
+	/**
+	 * @param job
+	 * @return true if the job was rejected and nothing changed since
+	 */
+	public boolean isRejected(Job job) {
+		String inputs = rejected.get(job.getUri());
+		if (inputs==null) {
+			return false;
+		}
+		if (inputs.equals(getInputs(job))) {
+			hits.incrementAndGet();
+			return true;
+		}
+		rejected.remove(job.getUri());
+		return false;
+	}
+
+	/**
+	 * Drops the rejection of a job
+	 *
+	 * @param jobUri
+	 */
+	public void invalidate(String jobUri) {
+		rejected.remove(jobUri);
+	}
+
+	/**
+	 * Drops the rejections of the jobs that are gone
+	 *
+	 * @param jobUris	uris of the jobs that still exist
+	 */
+	public void retain(Set<String> jobUris) {
+		for(Iterator<String> iter = rejected.keySet().iterator(); iter.hasNext(); ) {
+			if (!jobUris.contains(iter.next())) {
+				iter.remove();
+			}
+		}
+	}
+
+	/**
+	 * @return number of rejected jobs
+	 */
+	public int size() {
+		return rejected.size();
+	}
+
+	/**
+	 * @return number of evaluations saved
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	private static String getInputs(Job job) {
+		return LazyHomer.getMountsVersion()+"|"+job.getProperty("mount");
+	}
+}
@@ -1,6 +1,8 @@
 package com.noterik.springfield.willie.queue.dist;
 
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.log4j.Logger;
 
@@ -30,6 +32,7 @@ public class SimpleDecisionEngine implements DecisionEngine {
 		String[] streams = TFHelper.getStreams(job);
 		if(streams==null) {
 			LOG.error("cannot determine streams for item "+job.getUri());
+			RejectionCache.instance().reject(job);
 			return false;
 		}
 		// Get own IP, and streamer IP
@@ -41,6 +44,7 @@ public class SimpleDecisionEngine implements DecisionEngine {
 			if(localIP.equals(streamIP)) {
 				return true;
 			}
+			RejectionCache.instance().reject(job);
 		} catch (UnknownHostException e) {
 			LOG.error("Could not determine IP adress",e);
 		} catch(Exception e) {
@@ -48,5 +52,28 @@ public class SimpleDecisionEngine implements DecisionEngine {
 		}
 		return false;
 	}
+	
+	/**
+	 * Returns the jobs whose audio file is on this stream.
+	 */
+	public List<Job> processJobs(List<Job> jobs, int max) {
+		List<Job> result = new ArrayList<Job>();
+		for(Job job : jobs) {
+			if(result.size()>=max) {
+				break;
+			}
+			if(processJob(job)) {
+				result.add(job);
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * The room for a job is reserved before this engine looks at it
+	 */
+	public boolean appliesAdmission() {
+		return false;
+	}
 
 }
@@ -1,5 +1,8 @@
 package com.noterik.springfield.willie.queue.dist;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import com.noterik.springfield.willie.queue.Job;
 
 /**
@@ -19,5 +22,19 @@ public class TakeAllDecisionEngine implements DecisionEngine {
 	public boolean processJob(Job job) {
 		return true;
 	}
+	
+	/**
+	 * Take the first jobs
+	 */
+	public List<Job> processJobs(List<Job> jobs, int max) {
+		return new ArrayList<Job>(jobs.subList(0, Math.min(max, jobs.size())));
+	}
+	
+	/**
+	 * No admission control here, the room is reserved by the claimer
+	 */
+	public boolean appliesAdmission() {
+		return false;
+	}
 
 }
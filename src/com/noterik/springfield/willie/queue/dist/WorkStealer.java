@@ -0,0 +1,495 @@
+package com.noterik.springfield.willie.queue.dist;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.dom4j.Document;
+import org.dom4j.DocumentException;
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.dom4j.Node;
+import org.springfield.mojo.interfaces.ServiceInterface;
+import org.springfield.mojo.interfaces.ServiceManager;
+
+import com.noterik.springfield.willie.WillieServer;
+import com.noterik.springfield.willie.TF.InputPrefetcher;
+import com.noterik.springfield.willie.homer.HeartbeatMonitor;
+import com.noterik.springfield.willie.homer.LazyHomer;
+import com.noterik.springfield.willie.homer.LazyMarge;
+import com.noterik.springfield.willie.homer.MargeObserver;
+import com.noterik.springfield.willie.homer.WillieProperties;
+import com.noterik.springfield.willie.queue.Job;
+import com.noterik.springfield.willie.queue.QueueManager;
+import com.noterik.springfield.willie.tools.TFHelper;
+import com.noterik.springfield.willie.util.NameEncoding;
+
+/**
+ * Lets idle willies take over jobs that another willie claimed but didn't
+ * start yet.
+ *
+ * Every willie publishes the uris of the jobs it claimed ahead in the
+ * backlog property of its node. An idle willie picks the live willie with
+ * the largest backlog and asks for its last job by writing a
+ * steal_<name> status property on it, with a token of this attempt.
+ *
+ * The hand over has two steps, so the job never ends up with neither of
+ * them. The owner gets the signal, and when none of its workers started the
+ * job yet, it gives up its lease and writes the thief and the token in the
+ * handover property. The thief takes the job only when it reads its own
+ * token there, it then writes itself as transcoder. Right after its write
+ * the owner reads the status again: when the request is gone and the thief
+ * isn't the transcoder, the thief gave up, so the owner withdraws the
+ * handover and hands the job back to the queue.
+ *
+ * The thief waits for the handover at most stealtimeout milliseconds
+ * (default 5000). A thief that gives up withdraws its request and reads the
+ * handover once more after stealgrace milliseconds (default 2000), the
+ * owner withdraws a handover well within that time. A willie tries to steal
+ * at most once every stealinterval seconds (default 10), set workstealing
+ * to false to turn it off.
+ *
+ * @copyright Copyright: Noterik B.V. 2012
+ * @package com.noterik.springfield.willie.queue.dist
+ * @access private
+ *
+ */
+public class WorkStealer implements MargeObserver {
+	/** The WorkStealer's log4j Logger */
+	private static final Logger LOG = Logger.getLogger(WorkStealer.class);
+
+	/** Prefix of the status properties that ask for a job */
+	private static final String STEAL_PREFIX = "steal_";
+
+	/** Status property the owner hands a job over with, thief:token */
+	private static final String HANDOVER = "handover";
+
+	/** Default time between steal attempts (in seconds) */
+	private static final int DEFAULT_INTERVAL = 10;
+
+	/** Default time to wait for the owner to hand over a job (in milliseconds) */
+	private static final int DEFAULT_TIMEOUT = 5000;
+
+	/** Default time to wait for a late hand over after withdrawing a request (in milliseconds) */
+	private static final int DEFAULT_GRACE = 2000;
+
+	/** instance */
+	private static WorkStealer instance = new WorkStealer();
+
+	/** Jobs of this willie that may be taken over, by uri */
+	private Map<String, Job> offered;
+
+	/** Uris of the offered jobs a hand over is pending for */
+	private Map<String, Boolean> handingOver;
+
+	/** Runs the hand overs, apart from the workers that keep the owner busy */
+	private ExecutorService executor;
+
+	/** Last published backlog */
+	private String published = null;
+
+	/** Time of the last steal attempt */
+	private volatile long lastAttempt = 0;
+
+	/** Set while stealing */
+	private AtomicBoolean stealing;
+
+	private AtomicLong stolen;
+	private AtomicLong yielded;
+
+	/**
+	 * Sole constructor
+	 */
+	private WorkStealer() {
+		offered = new ConcurrentHashMap<String, Job>();
+		handingOver = new ConcurrentHashMap<String, Boolean>();
+		stealing = new AtomicBoolean(false);
+		stolen = new AtomicLong();
+		yielded = new AtomicLong();
+		executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "willie-work-stealer");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Return WorkStealer instance
+	 *
+	 * @return WorkStealer instance
+	 */
+	public static WorkStealer instance() {
+		return instance;
+	}
+
+	/**
+	 * Offers a claimed job that hasn't been started to the other willies
+	 *
+	 * @param job
+	 */
+	public void offer(Job job) {
+		if (!isEnabled()) {
+			return;
+		}
+		offered.put(job.getUri(), job);
+		LazyMarge.addObserver(job.getUri()+"/status", this);
+		publish();
+	}
+
+	/**
+	 * Withdraws an offered job, a worker started it
+	 *
+	 * @param job
+	 */
+	public void withdraw(Job job) {
+		if (offered.remove(job.getUri())==null) {
+			return;
+		}
+		LazyMarge.removeObserver(job.getUri()+"/status", this);
+		publish();
+	}
+
+	/**
+	 * The status of an offered job changed, hand it over when another willie
+	 * asks for it. The hand over reads and writes smithers, so it runs on its
+	 * own thread instead of the marge thread. It doesn't use the worker
+	 * executor, the owner is busy when stealing matters and the hand over
+	 * would wait for a running transcode.
+	 */
+	public void remoteSignal(String from, String method, String url) {
+		for(final Job job : offered.values()) {
+			if (url.startsWith(job.getUri()+"/status")) {
+				if (handingOver.put(job.getUri(), Boolean.TRUE)!=null) {
+					// already pending, it reads the latest status
+					return;
+				}
+				Runnable task = new Runnable() {
+					public void run() {
+						try {
+							handOver(job);
+						} catch(Exception e) {
+							LOG.error("Hand over of job "+job.getUri()+" failed",e);
+						} finally {
+							handingOver.remove(job.getUri());
+						}
+					}
+				};
+				try {
+					executor.execute(task);
+				} catch(RejectedExecutionException e) {
+					// shutting down
+					handingOver.remove(job.getUri());
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Tries to take over a job from the willie with the largest backlog
+	 *
+	 * @return the job, null if there was none
+	 */
+	public Job steal() {
+		if (!isEnabled() || System.currentTimeMillis() - lastAttempt < getConfiguration("stealinterval", DEFAULT_INTERVAL) * 1000L) {
+			return null;
+		}
+		if (!stealing.compareAndSet(false, true)) {
+			return null;
+		}
+		try {
+			lastAttempt = System.currentTimeMillis();
+			QueueManager qm = WillieServer.instance().getQueueManager();
+			WillieProperties mp = LazyHomer.getMyWillieProperties();
+			if (qm==null || mp==null) {
+				return null;
+			}
+			List<String> backlog = getLargestBacklog();
+			for(int i=backlog.size()-1; i>=0; i--) {
+				Job job = qm.findJob(backlog.get(i));
+				if (job==null || !(TFHelper.isLocalJob(job) || TFHelper.isFtpJob(job))) {
+					continue;
+				}
+				if (request(qm, job, mp.getName())) {
+					return job;
+				}
+				// ask for one job at a time
+				return null;
+			}
+		} catch (InterruptedException e) {
+			LOG.error("InterruptedException",e);
+		} finally {
+			stealing.set(false);
+		}
+		return null;
+	}
+
+	/**
+	 * @return number of jobs taken over from other willies
+	 */
+	public long getStolenJobs() {
+		return stolen.get();
+	}
+
+	/**
+	 * @return number of jobs handed over to other willies
+	 */
+	public long getYieldedJobs() {
+		return yielded.get();
+	}
+
+	/**
+	 * Asks the owner for a job and waits for the hand over
+	 */
+	private boolean request(QueueManager qm, Job job, String myname) throws InterruptedException {
+		// our workers shouldn't claim it while we ask for it
+		if (!qm.adopt(job)) {
+			return false;
+		}
+		String request = getRequestProperty(myname);
+		String token = ""+System.currentTimeMillis();
+		String expected = getHandOver(myname, token);
+		HandOver handOver = new HandOver();
+		String statusUri = job.getUri()+"/status";
+		ServiceInterface smithers = ServiceManager.getService("smithers");
+		boolean taken = false;
+		LazyMarge.addObserver(statusUri, handOver);
+		try {
+			job.setStatusProperty(request, token);
+			long deadline = System.currentTimeMillis() + getConfiguration("stealtimeout", DEFAULT_TIMEOUT);
+			while (!taken) {
+				Map<String,String> status = job.getStatusPropertyMap();
+				if (status!=null && expected.equals(status.get(HANDOVER))) {
+					taken = true;
+					break;
+				}
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					break;
+				}
+				handOver.await(Math.min(remaining, 250));
+			}
+			if (!taken) {
+				// withdraw the request, the owner may be handing it over just now
+				if (smithers!=null) {
+					smithers.delete(job.getUri()+"/status/1/properties/"+request, null, null);
+				}
+				// an owner that handed over before it saw the request was
+				// withdrawn takes the handover back within the grace period
+				Thread.sleep(getConfiguration("stealgrace", DEFAULT_GRACE));
+				taken = expected.equals(job.getStatusProperty(HANDOVER));
+			}
+			if (taken) {
+				// the transcoder before the request goes, the owner reads both
+				job.setStatusProperty("transcoder", NameEncoding.encode(myname));
+				if (smithers!=null) {
+					smithers.delete(job.getUri()+"/status/1/properties/"+request, null, null);
+					smithers.delete(job.getUri()+"/status/1/properties/"+HANDOVER, null, null);
+				}
+			}
+		} finally {
+			LazyMarge.removeObserver(statusUri, handOver);
+			if (!taken) {
+				qm.release(job);
+			}
+		}
+		if (!taken) {
+			return false;
+		}
+		if (!job.resolve()) {
+			LOG.error("Could not resolve job "+job.getUri()+" taken over from another willie");
+			qm.release(job);
+			return false;
+		}
+
+		DecisionEngine engine = WillieServer.instance().getDecisionEngine();
+		if (engine instanceof DistributedDecisionEngine) {
+			((DistributedDecisionEngine) engine).getLeaseManager().adopt(job);
+		}
+		stolen.incrementAndGet();
+		LOG.info("took over job "+job.getUri());
+		return true;
+	}
+
+	/**
+	 * Gives up an offered job to the first willie that asked for it
+	 */
+	private void handOver(Job job) {
+		Map<String,String> status = job.getStatusPropertyMap();
+		if (status==null) {
+			return;
+		}
+		String thief = null;
+		String token = null;
+		long first = Long.MAX_VALUE;
+		for(Map.Entry<String,String> property : status.entrySet()) {
+			if (property.getKey().startsWith(STEAL_PREFIX)) {
+				String name = NameEncoding.decode(property.getKey().substring(STEAL_PREFIX.length()));
+				try {
+					long time = Long.parseLong(property.getValue().trim());
+					if (time < first && HeartbeatMonitor.instance().isAlive(name)) {
+						first = time;
+						thief = name;
+						token = property.getValue().trim();
+					}
+				} catch (NumberFormatException e) {
+					// not a request
+				}
+			}
+		}
+		if (thief==null) {
+			return;
+		}
+
+		// a worker may have started it in the meantime
+		InputPrefetcher prefetcher = WillieServer.instance().getInputPrefetcher();
+		if (prefetcher==null || !prefetcher.yield(job)) {
+			return;
+		}
+		withdraw(job);
+		QueueManager qm = WillieServer.instance().getQueueManager();
+		DecisionEngine engine = WillieServer.instance().getDecisionEngine();
+		if (engine instanceof DistributedDecisionEngine) {
+			// before the handover, so we don't delete the lease of the thief
+			((DistributedDecisionEngine) engine).getLeaseManager().surrender(job.getUri());
+		}
+		job.setStatusProperty(HANDOVER, getHandOver(thief, token));
+
+		// the thief may have given up meanwhile, it reads the handover once
+		// more after the grace period, so we can still take it back
+		Map<String,String> after = job.getStatusPropertyMap();
+		if (after!=null && !token.equals(after.get(getRequestProperty(thief)))) {
+			String transcoder = after.get("transcoder");
+			if (transcoder==null || !NameEncoding.decode(transcoder).equals(thief)) {
+				LOG.info("request of "+thief+" for job "+job.getUri()+" was withdrawn");
+				ServiceInterface smithers = ServiceManager.getService("smithers");
+				if (smithers!=null) {
+					smithers.delete(job.getUri()+"/status/1/properties/"+HANDOVER, null, null);
+				}
+				if (qm!=null) {
+					qm.handBack(job);
+				}
+				return;
+			}
+		}
+		if (qm!=null) {
+			qm.release(job);
+		}
+		yielded.incrementAndGet();
+		LOG.info("handed over job "+job.getUri()+" to "+thief);
+	}
+
+	/**
+	 * Publishes the offered jobs in the backlog property of our node
+	 */
+	private synchronized void publish() {
+		StringBuffer backlog = new StringBuffer();
+		for(Iterator<String> iter = offered.keySet().iterator(); iter.hasNext(); ) {
+			backlog.append(iter.next());
+			if (iter.hasNext()) {
+				backlog.append(",");
+			}
+		}
+		if (backlog.toString().equals(published)) {
+			return;
+		}
+		ServiceInterface smithers = ServiceManager.getService("smithers");
+		if (smithers==null) return;
+		smithers.put(HeartbeatMonitor.NODES_URI+"/"+LazyHomer.myip+"/properties/backlog", backlog.toString(), "text/xml");
+		published = backlog.toString();
+	}
+
+	/**
+	 * Returns the backlog of the live willie with the most jobs claimed ahead
+	 */
+	private List<String> getLargestBacklog() {
+		List<String> largest = new ArrayList<String>();
+		ServiceInterface smithers = ServiceManager.getService("smithers");
+		if (smithers==null) return largest;
+		String xml = "<fsxml><properties><depth>1</depth></properties></fsxml>";
+		String nodes = smithers.get(HeartbeatMonitor.NODES_URI, xml, "text/xml");
+		try {
+			Document result = DocumentHelper.parseText(nodes);
+			for(Object node : result.getRootElement().elements()) {
+				Element child = (Element) node;
+				if (child.getName().equals("properties")) {
+					continue;
+				}
+				String ipnumber = child.attributeValue("id");
+				Node backlogNode = child.selectSingleNode("properties/backlog");
+				WillieProperties mp = LazyHomer.getWillie(ipnumber);
+				if (ipnumber==null || ipnumber.equals(LazyHomer.myip) || backlogNode==null || mp==null || !HeartbeatMonitor.instance().isAlive(mp)) {
+					continue;
+				}
+				String backlog = backlogNode.getText().trim();
+				if (backlog.equals("")) {
+					continue;
+				}
+				String[] uris = backlog.split(",");
+				if (uris.length > largest.size()) {
+					largest = new ArrayList<String>();
+					for(String uri : uris) {
+						largest.add(uri);
+					}
+				}
+			}
+		} catch (DocumentException e) {
+			LOG.error("could not parse response "+nodes);
+		}
+		return largest;
+	}
+
+	/**
+	 * Returns the status property a willie asks for a job with
+	 */
+	private static String getRequestProperty(String name) {
+		return STEAL_PREFIX+NameEncoding.encode(name);
+	}
+
+	/**
+	 * Returns the value of the handover property for a thief and its token
+	 */
+	private static String getHandOver(String name, String token) {
+		return NameEncoding.encode(name)+":"+token;
+	}
+
+	private boolean isEnabled() {
+		WillieServer server = WillieServer.instance();
+		return server==null || !"false".equals(server.getConfiguration().getProperty("workstealing"));
+	}
+
+	private int getConfiguration(String key, int defaultValue) {
+		WillieServer server = WillieServer.instance();
+		return server==null ? defaultValue : server.getConfigurationInt(key, defaultValue);
+	}
+
+	/**
+	 * Wakes up the thief when the status of the job changes
+	 */
+	private static class HandOver implements MargeObserver {
+		private boolean signalled = false;
+
+		public synchronized void remoteSignal(String from, String method, String url) {
+			signalled = true;
+			notifyAll();
+		}
+
+		synchronized void await(long timeout) throws InterruptedException {
+			if (!signalled) {
+				wait(timeout);
+			}
+			signalled = false;
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package com.noterik.springfield.willie.restlet;
+
+import org.restlet.Context;
+import org.restlet.Request;
+import org.restlet.Response;
+import org.restlet.data.MediaType;
+import org.restlet.representation.Representation;
+import org.restlet.representation.StringRepresentation;
+import org.restlet.representation.Variant;
+import org.restlet.resource.Get;
+import org.restlet.resource.ServerResource;
+
+import com.noterik.springfield.willie.WillieServer;
+import com.noterik.springfield.willie.TF.AdmissionController;
+import com.noterik.springfield.willie.TF.InputPrefetcher;
+import com.noterik.springfield.willie.TF.TranscodeStatistics;
+import com.noterik.springfield.willie.TF.WorkerScaler;
+import com.noterik.springfield.willie.homer.HeartbeatMonitor;
+import com.noterik.springfield.willie.homer.LazyHomer;
+import com.noterik.springfield.willie.queue.ParentDocumentCache;
+import com.noterik.springfield.willie.queue.QueueManager;
+import com.noterik.springfield.willie.queue.dist.RejectionCache;
+import com.noterik.springfield.willie.queue.dist.WorkStealer;
+
+/**
+ * The status resource shows the runtime statistics of this willie.
+ * 
+ * Resource uri:
+ * 		/status
+ *
+ * @copyright Copyright: Noterik B.V. 2012
+ * @package com.noterik.springfield.willie.restlet
+ * @access private
+ *
+ */
+public class StatusResource extends ServerResource {
+
+	public StatusResource() {
+		//constructor
+	}
+	
+	/**
+	 * doInit
+	 * 
+	 * @param context
+	 * @param request
+	 * @param response
+	 */
+	public void doInit(Context context, Request request, Response response) {
+		super.init(context, request, response);
+		
+		// add representational variants allowed
+        getVariants().add(new Variant(MediaType.TEXT_XML));
+	}
+
+	// allowed actions: GET 
+	public boolean allowPut() {return false;}
+	public boolean allowPost() {return false;}
+	public boolean allowGet() {return true;}
+	public boolean allowDelete() {return false;}
+	
+	/**
+	 * GET
+	 */
+	@Get
+    public void handleGet() {
+		StringBuffer body = new StringBuffer();
+		body.append("<fsxml><properties>");
+		
+		// parent document cache
+		ParentDocumentCache cache = ParentDocumentCache.instance();
+		body.append("<parentcachesize>"+cache.size()+"</parentcachesize>");
+		body.append("<parentcachehits>"+cache.getHits()+"</parentcachehits>");
+		body.append("<parentcachemisses>"+cache.getMisses()+"</parentcachemisses>");
+		body.append("<parentcachehitrate>"+cache.getHitRate()+"</parentcachehitrate>");
+		
+		// job index
+		WillieServer server = WillieServer.instance();
+		QueueManager qm = server==null ? null : server.getQueueManager();
+		if (qm!=null) {
+			body.append("<indexedjobs>"+qm.getNumberOfJobs()+"</indexedjobs>");
+			body.append("<lastreconcileduration>"+qm.getLastReconcileDuration()+"</lastreconcileduration>");
+			body.append("<recoveredjobs>"+qm.getClaimRecovery().getRecoveredJobs()+"</recoveredjobs>");
+			body.append("<parkedjobs>"+qm.getDependencyTracker().getNumberOfParkedJobs()+"</parkedjobs>");
+			body.append("<latejobs>"+qm.getDeadlineAdmission().getLateJobs()+"</latejobs>");
+		}
+		RejectionCache rejections = RejectionCache.instance();
+		body.append("<rejectedjobs>"+rejections.size()+"</rejectedjobs>");
+		body.append("<rejectioncachehits>"+rejections.getHits()+"</rejectioncachehits>");
+		
+		// cluster
+		HeartbeatMonitor heartbeats = HeartbeatMonitor.instance();
+		body.append("<willies>"+LazyHomer.getNumberOfWillies()+"</willies>");
+		body.append("<livewillies>"+heartbeats.getLiveWillies().size()+"</livewillies>");
+		body.append("<stolenjobs>"+WorkStealer.instance().getStolenJobs()+"</stolenjobs>");
+		body.append("<yieldedjobs>"+WorkStealer.instance().getYieldedJobs()+"</yieldedjobs>");
+		
+		// workers
+		WorkerScaler scaler = server==null ? null : server.getWorkerScaler();
+		if (scaler!=null) {
+			body.append("<activeworkers>"+scaler.getActiveWorkers()+"</activeworkers>");
+			body.append("<minworkers>"+scaler.getMinWorkers()+"</minworkers>");
+			body.append("<maxworkers>"+scaler.getMaxWorkers()+"</maxworkers>");
+			body.append("<systemload>"+scaler.getLoad()+"</systemload>");
+			body.append("<cpuload>"+scaler.getCpu()+"</cpuload>");
+			body.append("<lastscaledecision>"+scaler.getLastDecision()+"</lastscaledecision>");
+		}
+		TranscodeStatistics statistics = TranscodeStatistics.instance();
+		body.append("<jobsperminute>"+statistics.getJobsPerMinute()+"</jobsperminute>");
+		body.append("<completedjobs>"+statistics.getCompleted()+"</completedjobs>");
+		body.append("<failedjobs>"+statistics.getFailed()+"</failedjobs>");
+		body.append("<averagejobduration>"+statistics.getAverageDuration()+"</averagejobduration>");
+		
+		// prefetched jobs
+		InputPrefetcher prefetcher = server==null ? null : server.getInputPrefetcher();
+		if (prefetcher!=null) {
+			body.append("<prefetchedjobs>"+prefetcher.size()+"</prefetchedjobs>");
+			body.append("<prefetchedbytes>"+prefetcher.getStagedBytes()+"</prefetchedbytes>");
+		}
+		AdmissionController admission = AdmissionController.instance();
+		body.append("<reservedbytes>"+admission.getReservedBytes()+"</reservedbytes>");
+		body.append("<admissionrejects>"+admission.getRejected()+"</admissionrejects>");
+		
+		body.append("</properties></fsxml>");
+		
+		// return
+		Representation entity = new StringRepresentation(body.toString(), MediaType.TEXT_XML);
+        getResponse().setEntity(entity);
+	}
+}
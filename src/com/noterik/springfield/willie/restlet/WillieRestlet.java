@@ -10,6 +10,9 @@ public class WillieRestlet extends Router {
 		// logging resource
 		this.attach("/logging",LoggingResource.class);
 		
+		// status resource
+		this.attach("/status",StatusResource.class);
+		
 		// default resource
 		this.attach("/",WillieResource.class);
 	}
@@ -0,0 +1,44 @@
+package com.noterik.springfield.willie.util;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+
+/**
+ * Encodes willie names for use in status property names and values, as
+ * UTF-8 url encoding.
+ *
+ * @copyright Copyright: Noterik B.V. 2012
+ * @package com.noterik.springfield.willie.util
+ * @access private
+ *
+ */
+public class NameEncoding {
+	private static final String CHARSET = "UTF-8";
+
+	/**
+	 * @param name
+	 * @return the encoded name
+	 */
+	public static String encode(String name) {
+		try {
+			return URLEncoder.encode(name, CHARSET);
+		} catch (UnsupportedEncodingException e) {
+			// every jvm supports utf-8
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @param name
+	 * @return the decoded name
+	 */
+	public static String decode(String name) {
+		try {
+			return URLDecoder.decode(name, CHARSET);
+		} catch (UnsupportedEncodingException e) {
+			// every jvm supports utf-8
+			throw new IllegalStateException(e);
+		}
+	}
+}
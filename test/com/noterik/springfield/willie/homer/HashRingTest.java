@@ -0,0 +1,114 @@
+package com.noterik.springfield.willie.homer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Checks that the hash ring keeps keys on their member and moves only about
+ * 1/N of them when a member joins or leaves.
+ * Run with the test target of the build file, fails with an AssertionError.
+ *
+ * @copyright Copyright: Noterik B.V. 2012
+ * @package com.noterik.springfield.willie.homer
+ * @access private
+ *
+ */
+public class HashRingTest {
+	private static final int REPLICAS = 100;
+
+	private static final int KEYS = 10000;
+
+	private static final List<String> WILLIES = Arrays.asList("willie-a", "willie-b", "willie-c", "willie-d", "willie-e");
+
+	public static void main(String[] args) {
+		stableOwner();
+		join();
+		leave();
+		emptyRing();
+		System.out.println("HashRingTest passed");
+	}
+
+	/**
+	 * The owner of a key doesn't depend on the order of the members or on
+	 * which ring asks
+	 */
+	private static void stableOwner() {
+		HashRing ring = new HashRing(WILLIES, REPLICAS);
+		List<String> shuffled = new ArrayList<String>(WILLIES);
+		Collections.reverse(shuffled);
+		HashRing other = new HashRing(shuffled, REPLICAS);
+		for(String key : keys()) {
+			String owner = ring.getOwner(key);
+			check(WILLIES.contains(owner), "key "+key+" must belong to a member, got "+owner);
+			check(owner.equals(ring.getOwner(key)), "key "+key+" must keep its owner");
+			check(owner.equals(other.getOwner(key)), "key "+key+" must have the same owner on an equal ring");
+		}
+	}
+
+	/**
+	 * A joining member takes about 1/N of the keys, only from the others
+	 */
+	private static void join() {
+		HashRing before = new HashRing(WILLIES, REPLICAS);
+		List<String> members = new ArrayList<String>(WILLIES);
+		members.add("willie-f");
+		HashRing after = new HashRing(members, REPLICAS);
+		int moved = 0;
+		for(String key : keys()) {
+			String owner = after.getOwner(key);
+			if (!owner.equals(before.getOwner(key))) {
+				check(owner.equals("willie-f"), "key "+key+" may only move to the new member, moved to "+owner);
+				moved++;
+			}
+		}
+		checkShare(moved, members.size(), "join");
+	}
+
+	/**
+	 * The keys of a leaving member move to the others, the rest stay
+	 */
+	private static void leave() {
+		HashRing before = new HashRing(WILLIES, REPLICAS);
+		List<String> members = new ArrayList<String>(WILLIES);
+		members.remove("willie-c");
+		HashRing after = new HashRing(members, REPLICAS);
+		int moved = 0;
+		for(String key : keys()) {
+			String owner = before.getOwner(key);
+			if (!owner.equals(after.getOwner(key))) {
+				check(owner.equals("willie-c"), "key "+key+" of "+owner+" must not move when willie-c leaves");
+				moved++;
+			}
+		}
+		checkShare(moved, WILLIES.size(), "leave");
+	}
+
+	private static void emptyRing() {
+		HashRing ring = new HashRing(new ArrayList<String>(), REPLICAS);
+		check(ring.getOwner("/domain/test/job/1")==null, "an empty ring has no owners");
+	}
+
+	/**
+	 * Checks that about 1/N of the keys moved, within half of that either way
+	 */
+	private static void checkShare(int moved, int members, String change) {
+		double expected = (double) KEYS / members;
+		check(moved > expected/2 && moved < expected*1.5, change+": "+moved+" of "+KEYS+" keys moved, expected about "+(int) expected);
+	}
+
+	private static List<String> keys() {
+		List<String> keys = new ArrayList<String>(KEYS);
+		for(int i=0; i<KEYS; i++) {
+			keys.add("/domain/test/service/willie/queue/default/job/"+i);
+		}
+		return keys;
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new AssertionError(message);
+		}
+	}
+}
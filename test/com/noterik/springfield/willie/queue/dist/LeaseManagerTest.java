@@ -0,0 +1,158 @@
+package com.noterik.springfield.willie.queue.dist;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.noterik.springfield.willie.queue.Job;
+
+/**
+ * Runs the lease protocol of two willies against a smithers stand-in.
+ * Run with the test target of the build file, fails with an AssertionError.
+ *
+ * @copyright Copyright: Noterik B.V. 2012
+ * @package com.noterik.springfield.willie.queue.dist
+ * @access private
+ *
+ */
+public class LeaseManagerTest {
+	private static final String QUEUE = "/domain/test/service/willie/queue/default";
+
+	/** Longest time a smithers call takes (in milliseconds) */
+	private static final int LATENCY = 10;
+
+	/** Settle delay, well above two calls */
+	private static final int SETTLE = 60;
+
+	private static final int ROUNDS = 100;
+
+	public static void main(String[] args) throws Exception {
+		concurrentAcquire();
+		concurrentAcquireAll();
+		lateAcquire();
+		expiredLease();
+		System.out.println("LeaseManagerTest passed");
+	}
+
+	/**
+	 * Two willies claim the same job at the same moment, exactly one wins
+	 */
+	private static void concurrentAcquire() throws Exception {
+		SmithersStandIn smithers = new SmithersStandIn(LATENCY);
+		final LeaseManager a = new LeaseManager("willie-a", 60000, SETTLE, smithers);
+		final LeaseManager b = new LeaseManager("willie-b", 60000, SETTLE, smithers);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			int wonByA = 0;
+			for(int i=0; i<ROUNDS; i++) {
+				final Job job = addJob(smithers, "acquire"+i);
+				final CyclicBarrier start = new CyclicBarrier(2);
+				Future<Boolean> fa = executor.submit(acquire(a, job, start));
+				Future<Boolean> fb = executor.submit(acquire(b, job, start));
+				boolean wa = fa.get();
+				boolean wb = fb.get();
+				check(wa != wb, "round "+i+": exactly one willie must win, a="+wa+" b="+wb);
+
+				LeaseManager winner = wa ? a : b;
+				JobLease lease = JobLease.parse(smithers.getProperty(job.getUri(), JobLease.PROPERTY));
+				check(lease!=null && lease.getOwner().equals(wa ? "willie-a" : "willie-b"), "round "+i+": lease must be of the winner");
+				check(winner.verify(job.getUri()), "round "+i+": winner must keep its lease");
+				check(!(wa ? b : a).verify(job.getUri()), "round "+i+": loser must not hold the lease");
+				wonByA += wa ? 1 : 0;
+			}
+			// the lowest token wins, so both willies win some
+			check(wonByA > 0 && wonByA < ROUNDS, "both willies should win some rounds, a won "+wonByA);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Two willies claim the same batch of jobs at the same moment, every job
+	 * is won by exactly one
+	 */
+	private static void concurrentAcquireAll() throws Exception {
+		SmithersStandIn smithers = new SmithersStandIn(LATENCY);
+		final LeaseManager a = new LeaseManager("willie-a", 60000, SETTLE, smithers);
+		final LeaseManager b = new LeaseManager("willie-b", 60000, SETTLE, smithers);
+		final List<Job> jobs = new ArrayList<Job>();
+		for(int i=0; i<20; i++) {
+			jobs.add(addJob(smithers, "batch"+i));
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			final CyclicBarrier start = new CyclicBarrier(2);
+			Future<List<Job>> fa = executor.submit(acquireAll(a, jobs, start));
+			Future<List<Job>> fb = executor.submit(acquireAll(b, jobs, start));
+			List<Job> wa = fa.get();
+			List<Job> wb = fb.get();
+			for(Job job : jobs) {
+				check(wa.contains(job) != wb.contains(job), "job "+job.getUri()+" must be won by exactly one willie");
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * A willie that claims after the lease was given out backs off
+	 */
+	private static void lateAcquire() {
+		SmithersStandIn smithers = new SmithersStandIn(LATENCY);
+		LeaseManager a = new LeaseManager("willie-a", 60000, SETTLE, smithers);
+		LeaseManager b = new LeaseManager("willie-b", 60000, SETTLE, smithers);
+		Job job = addJob(smithers, "late");
+		check(a.acquire(job), "first willie must win");
+		check(!b.acquire(job), "later willie must back off");
+		check(a.acquire(job), "holder must keep the job");
+	}
+
+	/**
+	 * A lease that isn't renewed expires, another willie can take the job
+	 */
+	private static void expiredLease() throws Exception {
+		SmithersStandIn smithers = new SmithersStandIn(LATENCY);
+		LeaseManager a = new LeaseManager("willie-a", 200, SETTLE, smithers);
+		LeaseManager b = new LeaseManager("willie-b", 60000, SETTLE, smithers);
+		Job job = addJob(smithers, "expired");
+		check(a.acquire(job), "first willie must win");
+		Thread.sleep(300);
+		check(b.acquire(job), "expired lease must be taken over");
+		check(!a.verify(job.getUri()), "old holder must see it lost the lease");
+	}
+
+	private static Job addJob(SmithersStandIn smithers, String id) {
+		String uri = QUEUE+"/job/"+id;
+		smithers.addJob(uri);
+		return new Job(uri, new HashMap<String, String>());
+	}
+
+	private static Callable<Boolean> acquire(final LeaseManager leases, final Job job, final CyclicBarrier start) {
+		return new Callable<Boolean>() {
+			public Boolean call() throws Exception {
+				start.await();
+				return leases.acquire(job);
+			}
+		};
+	}
+
+	private static Callable<List<Job>> acquireAll(final LeaseManager leases, final List<Job> jobs, final CyclicBarrier start) {
+		return new Callable<List<Job>>() {
+			public List<Job> call() throws Exception {
+				start.await();
+				return leases.acquireAll(jobs, jobs.size());
+			}
+		};
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new AssertionError(message);
+		}
+	}
+}
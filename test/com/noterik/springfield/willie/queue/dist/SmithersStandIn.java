@@ -0,0 +1,130 @@
+package com.noterik.springfield.willie.queue.dist;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.springfield.mojo.interfaces.ServiceInterface;
+
+/**
+ * In-process stand-in for smithers that keeps the status properties of
+ * jobs. Every call takes a random time up to the given latency, so the
+ * calls of concurrent willies interleave like they would over the network.
+ *
+ * @copyright Copyright: Noterik B.V. 2012
+ * @package com.noterik.springfield.willie.queue.dist
+ * @access private
+ *
+ */
+public class SmithersStandIn implements ServiceInterface {
+	private static final String STATUS = "/status/1/properties";
+
+	/** Status properties by job uri */
+	private Map<String, Map<String, String>> jobs = new LinkedHashMap<String, Map<String, String>>();
+
+	private int latency;
+	private Random random = new Random();
+
+	/**
+	 * Constructor
+	 *
+	 * @param latency	longest time a call takes (in milliseconds)
+	 */
+	public SmithersStandIn(int latency) {
+		this.latency = latency;
+	}
+
+	/**
+	 * Adds a job without status properties
+	 *
+	 * @param jobUri
+	 */
+	public synchronized void addJob(String jobUri) {
+		jobs.put(jobUri, new HashMap<String, String>());
+	}
+
+	/**
+	 * @param jobUri
+	 * @param property
+	 * @return the status property of a job, null if not set
+	 */
+	public synchronized String getProperty(String jobUri, String property) {
+		Map<String, String> status = jobs.get(jobUri);
+		return status==null ? null : status.get(property);
+	}
+
+	public String getName() {
+		return "smithers";
+	}
+
+	public String get(String uri, String body, String mimeType) {
+		delay();
+		synchronized (this) {
+			if (uri.endsWith(STATUS)) {
+				Map<String, String> status = jobs.get(uri.substring(0, uri.length()-STATUS.length()));
+				if (status==null) {
+					return "<fsxml/>";
+				}
+				return "<fsxml><status id=\"1\">"+toXml(status)+"</status></fsxml>";
+			}
+			// a queue, two levels deep
+			StringBuilder xml = new StringBuilder("<fsxml><queue id=\"q\">");
+			for(Map.Entry<String, Map<String, String>> job : jobs.entrySet()) {
+				if (job.getKey().startsWith(uri+"/job/")) {
+					xml.append("<job id=\""+job.getKey().substring(uri.length()+5)+"\"><status id=\"1\">"+toXml(job.getValue())+"</status></job>");
+				}
+			}
+			return xml.append("</queue></fsxml>").toString();
+		}
+	}
+
+	public String put(String uri, String value, String mimeType) {
+		delay();
+		synchronized (this) {
+			int pos = uri.indexOf(STATUS+"/");
+			Map<String, String> status = pos==-1 ? null : jobs.get(uri.substring(0, pos));
+			if (status!=null) {
+				status.put(uri.substring(pos+STATUS.length()+1), value);
+			}
+		}
+		return "<status>ok</status>";
+	}
+
+	public String post(String uri, String body, String mimeType) {
+		return put(uri, body, mimeType);
+	}
+
+	public String delete(String uri, String body, String mimeType) {
+		delay();
+		synchronized (this) {
+			int pos = uri.indexOf(STATUS+"/");
+			if (pos==-1) {
+				jobs.remove(uri);
+			} else if (jobs.containsKey(uri.substring(0, pos))) {
+				jobs.get(uri.substring(0, pos)).remove(uri.substring(pos+STATUS.length()+1));
+			}
+		}
+		return "<status>ok</status>";
+	}
+
+	private static String toXml(Map<String, String> status) {
+		StringBuilder xml = new StringBuilder("<properties>");
+		for(Map.Entry<String, String> property : status.entrySet()) {
+			xml.append("<"+property.getKey()+">"+property.getValue()+"</"+property.getKey()+">");
+		}
+		return xml.append("</properties>").toString();
+	}
+
+	private void delay() {
+		int time;
+		synchronized (random) {
+			time = random.nextInt(latency+1);
+		}
+		try {
+			Thread.sleep(time);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}